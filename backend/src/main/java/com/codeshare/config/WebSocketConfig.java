@@ -2,52 +2,143 @@ package com.codeshare.config;
 
 import com.codeshare.infrastructure.redis.PresenceService;
 import com.codeshare.infrastructure.security.JwtService;
+import com.codeshare.websocket.AdmissionController;
+import com.codeshare.websocket.ConnectionDrain;
 import com.codeshare.websocket.EditorRoomHandler;
+import com.codeshare.websocket.MuxWebSocketHandler;
 import com.codeshare.websocket.WebSocketAuthInterceptor;
+import com.codeshare.websocket.YjsRoomHandshakeInterceptor;
 import com.codeshare.websocket.YjsWebSocketHandler;
 import java.util.Set;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.*;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 
 @Configuration
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
+  // Sizes the input, output and text-encoding buffers of every Tomcat WebSocket session, 8 KB each
+  // by default; read once, when Tomcat's WebSocket classes load
+  static final String IO_BUFFER_SIZE_PROPERTY = "org.apache.tomcat.websocket.DEFAULT_BUFFER_SIZE";
+  // Density mode's text buffer: /ws/yjs and /ws/mux are binary, and /ws/editor sizes its own
+  static final int DENSITY_TEXT_BUFFER_CHARS = 64;
+
   private final EditorRoomHandler editorRoomHandler;
   private final YjsWebSocketHandler yjsWebSocketHandler;
+  private final MuxWebSocketHandler muxWebSocketHandler;
   private final JwtService jwtService;
   private final PresenceService presenceService;
+  private final ConnectionDrain connectionDrain;
+  private final AdmissionController admissionController;
   private final Set<String> allowedOrigins;
+  // "netty" moves /ws/yjs to NettyYjsServer
+  private final String yjsEngine;
+  // Trims per-session buffers and state so a node holds more idle collaborators
+  private final boolean density;
 
   public WebSocketConfig(
       EditorRoomHandler editorRoomHandler,
       YjsWebSocketHandler yjsWebSocketHandler,
+      MuxWebSocketHandler muxWebSocketHandler,
       JwtService jwtService,
       PresenceService presenceService,
+      ConnectionDrain connectionDrain,
+      AdmissionController admissionController,
       @Value("${security.cors.allowed-origins:http://localhost:3000,https://localhost:3000}")
-          String allowedOriginsStr) {
+          String allowedOriginsStr,
+      @Value("${websocket.yjs.engine:servlet}") String yjsEngine,
+      @Value("${websocket.density.enabled:false}") boolean density) {
     this.editorRoomHandler = editorRoomHandler;
     this.yjsWebSocketHandler = yjsWebSocketHandler;
+    this.muxWebSocketHandler = muxWebSocketHandler;
     this.jwtService = jwtService;
     this.presenceService = presenceService;
+    this.connectionDrain = connectionDrain;
+    this.admissionController = admissionController;
     this.allowedOrigins = Set.of(allowedOriginsStr.split(","));
+    this.yjsEngine = yjsEngine;
+    this.density = density;
+  }
+
+  /**
+   * Binary messages larger than the buffer reach handlers that support partial messages (the Yjs
+   * handler) in chunks of this size, instead of being buffered whole by the container.
+   *
+   * <p>Tomcat allocates this buffer for every session when it opens, idle or not; density mode caps
+   * it at {@code websocket.density.chunk-bytes}. It does the same with a text buffer of 8192 chars,
+   * 16 KB, which the binary endpoints never use; density mode shrinks it to a token size, and
+   * {@link EditorRoomHandler} raises its sessions' limit, which Tomcat applies from their first
+   * text message on.
+   */
+  @Bean
+  public ServletServerContainerFactoryBean webSocketContainer(
+      @Value("${websocket.yjs.frames.chunk-bytes:8192}") int chunkBytes,
+      @Value("${websocket.density.chunk-bytes:4096}") int densityChunkBytes) {
+    ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+    container.setMaxBinaryMessageBufferSize(
+        density ? Math.min(chunkBytes, densityChunkBytes) : chunkBytes);
+    if (density) {
+      container.setMaxTextMessageBufferSize(DENSITY_TEXT_BUFFER_CHARS);
+    }
+    return container;
+  }
+
+  /**
+   * Every open connection holds a socket read and write buffer of 8 KB each, and every WebSocket
+   * session an input, an output and a text-encoding buffer of 8 KB each on top, all sized for
+   * traffic in flight rather than for a WebSocket that is mostly silent; density mode shrinks them.
+   * Larger reads and writes still go through, in more passes.
+   *
+   * <p>The WebSocket buffers are sized by a system property that Tomcat reads for the whole JVM
+   * when its WebSocket classes load, as the server starts after this customizer has run. An
+   * operator's own {@code -Dorg.apache.tomcat.websocket.DEFAULT_BUFFER_SIZE} is left as it is.
+   */
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> densitySocketBuffers(
+      @Value("${websocket.density.socket-buffer-bytes:4096}") int socketBufferBytes,
+      @Value("${websocket.density.io-buffer-bytes:2048}") int ioBufferBytes) {
+    return factory -> {
+      if (density) {
+        factory.addConnectorCustomizers(
+            connector -> {
+              connector.setProperty("socket.appReadBufSize", String.valueOf(socketBufferBytes));
+              connector.setProperty("socket.appWriteBufSize", String.valueOf(socketBufferBytes));
+            });
+        if (System.getProperty(IO_BUFFER_SIZE_PROPERTY) == null) {
+          System.setProperty(IO_BUFFER_SIZE_PROPERTY, String.valueOf(ioBufferBytes));
+        }
+      }
+    };
   }
 
   @Override
   public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
     WebSocketAuthInterceptor authInterceptor =
-        new WebSocketAuthInterceptor(jwtService, allowedOrigins);
+        new WebSocketAuthInterceptor(jwtService, allowedOrigins, admissionController, !density);
 
     registry
         .addHandler(editorRoomHandler, "/ws/editor")
-        .addInterceptors(authInterceptor)
+        .addInterceptors(connectionDrain, authInterceptor)
+        .setAllowedOrigins(allowedOrigins.toArray(new String[0]));
+
+    // Many Yjs rooms over one connection; rooms are subscribed to after the handshake
+    registry
+        .addHandler(muxWebSocketHandler, "/ws/mux")
+        .addInterceptors(connectionDrain, authInterceptor)
         .setAllowedOrigins(allowedOrigins.toArray(new String[0]));
 
+    if ("netty".equals(yjsEngine)) {
+      return;
+    }
     // Map Yjs WebSocket to handle roomId in the path with authentication
     registry
         .addHandler(yjsWebSocketHandler, "/ws/yjs/**")
-        .addInterceptors(authInterceptor)
+        .addInterceptors(connectionDrain, authInterceptor, new YjsRoomHandshakeInterceptor())
         .setAllowedOrigins(allowedOrigins.toArray(new String[0]));
   }
 }
@@ -1,11 +1,15 @@
 package com.codeshare.infrastructure.metrics;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -13,6 +17,9 @@ public class MetricsService {
   private final MeterRegistry meterRegistry;
   private final Map<String, AtomicInteger> activeConnections = new ConcurrentHashMap<>();
   private final Map<String, AtomicInteger> roomConnections = new ConcurrentHashMap<>();
+  private final AtomicLong outboundQueuedFrames = new AtomicLong();
+  private final AtomicLong outboundQueuedBytes = new AtomicLong();
+  private final AtomicInteger activeSpectators = new AtomicInteger();
 
   // Counters
   private final Counter wsConnectionsTotal;
@@ -23,11 +30,22 @@ public class MetricsService {
   private final Counter snapshotsFailedTotal;
   private final Counter roomsCreatedTotal;
   private final Counter roomsDeletedTotal;
+  private final Counter awarenessSupersededTotal;
+  private final Counter heartbeatReapedTotal;
+  private final Counter drainedSessionsTotal;
+  private final Counter spectatorConnectionsTotal;
+  private final Counter duplicateUpdatesSuppressedTotal;
+  private final Counter duplicateBytesSuppressedTotal;
 
   // Timers
   private final Timer snapshotLatency;
   private final Timer messageProcessingLatency;
   private final Timer roomCreationLatency;
+  private final Timer yjsBatchDelay;
+
+  // Distributions
+  private final DistributionSummary yjsBatchUpdates;
+  private final DistributionSummary outboundBacklogMerged;
 
   public MetricsService(MeterRegistry meterRegistry) {
     this.meterRegistry = meterRegistry;
@@ -75,6 +93,36 @@ public class MetricsService {
             .description("Total number of rooms deleted")
             .register(meterRegistry);
 
+    this.awarenessSupersededTotal =
+        Counter.builder("yjs_awareness_superseded_total")
+            .description("Awareness states replaced by a newer one before they were sent")
+            .register(meterRegistry);
+
+    this.heartbeatReapedTotal =
+        Counter.builder("websocket_heartbeat_reaped_total")
+            .description("WebSocket sessions closed because they stopped answering pings")
+            .register(meterRegistry);
+
+    this.drainedSessionsTotal =
+        Counter.builder("websocket_drained_sessions_total")
+            .description("WebSocket sessions closed by the shutdown drain")
+            .register(meterRegistry);
+
+    this.spectatorConnectionsTotal =
+        Counter.builder("websocket_spectator_connections_total")
+            .description("Total number of read-only spectator connections established")
+            .register(meterRegistry);
+
+    this.duplicateUpdatesSuppressedTotal =
+        Counter.builder("yjs_duplicate_updates_suppressed_total")
+            .description("Document updates dropped because the room had just seen them")
+            .register(meterRegistry);
+
+    this.duplicateBytesSuppressedTotal =
+        Counter.builder("yjs_duplicate_bytes_suppressed_total")
+            .description("Bytes of document updates dropped because the room had just seen them")
+            .register(meterRegistry);
+
     // Initialize timers
     this.snapshotLatency =
         Timer.builder("snapshot_latency")
@@ -91,14 +139,42 @@ public class MetricsService {
             .description("Time taken to create rooms")
             .register(meterRegistry);
 
+    this.yjsBatchDelay =
+        Timer.builder("yjs_batch_delay")
+            .description("Time the first update of a Yjs flush batch waited before fan-out")
+            .register(meterRegistry);
+
+    // Initialize distributions
+    this.yjsBatchUpdates =
+        DistributionSummary.builder("yjs_batch_updates")
+            .description("Number of Yjs updates merged into one fan-out frame")
+            .register(meterRegistry);
+
+    this.outboundBacklogMerged =
+        DistributionSummary.builder("websocket_outbound_backlog_merged_updates")
+            .description("Number of queued Yjs updates merged into one frame for a lagging client")
+            .register(meterRegistry);
+
     // Register gauges
-    Gauge.builder("websocket_connections_active")
+    Gauge.builder("websocket_connections_active", this, MetricsService::getTotalActiveConnections)
         .description("Number of active WebSocket connections")
-        .register(meterRegistry, this, MetricsService::getTotalActiveConnections);
+        .register(meterRegistry);
+
+    Gauge.builder("websocket_spectators_active", activeSpectators, AtomicInteger::get)
+        .description("Number of active read-only spectator connections")
+        .register(meterRegistry);
 
-    Gauge.builder("rooms_active")
+    Gauge.builder("rooms_active", this, MetricsService::getTotalActiveRooms)
         .description("Number of active rooms")
-        .register(meterRegistry, this, MetricsService::getTotalActiveRooms);
+        .register(meterRegistry);
+
+    Gauge.builder("websocket_outbound_queue_frames", outboundQueuedFrames, AtomicLong::get)
+        .description("Frames waiting in WebSocket outbound queues")
+        .register(meterRegistry);
+
+    Gauge.builder("websocket_outbound_queue_bytes", outboundQueuedBytes, AtomicLong::get)
+        .description("Bytes waiting in WebSocket outbound queues")
+        .register(meterRegistry);
   }
 
   // WebSocket metrics
@@ -119,6 +195,16 @@ public class MetricsService {
     }
   }
 
+  /** Spectators are counted apart from editors, so they do not show in the connection metrics. */
+  public void recordSpectatorConnection(String roomId) {
+    spectatorConnectionsTotal.increment();
+    activeSpectators.incrementAndGet();
+  }
+
+  public void recordSpectatorDisconnection(String roomId) {
+    activeSpectators.decrementAndGet();
+  }
+
   // Message metrics
   public void recordMessageReceived(String roomId) {
     messagesReceivedTotal.increment();
@@ -128,6 +214,90 @@ public class MetricsService {
     messagesSentTotal.increment();
   }
 
+  public void recordOutboundQueued(int frames, long bytes) {
+    outboundQueuedFrames.addAndGet(frames);
+    outboundQueuedBytes.addAndGet(bytes);
+  }
+
+  public long getOutboundQueuedBytes() {
+    return outboundQueuedBytes.get();
+  }
+
+  public void recordAdmissionRejected(String reason) {
+    Counter.builder("websocket_admission_rejected_total")
+        .description("WebSocket handshakes refused by admission control, by the limit reached")
+        .tag("reason", reason)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  public void recordOutboundOverflow(String action, int frames) {
+    Counter.builder("websocket_outbound_overflow_total")
+        .description("Frames affected by outbound queue overflow, by action taken")
+        .tag("action", action)
+        .register(meterRegistry)
+        .increment(frames);
+  }
+
+  /** A reconnecting client was either caught up from the update ring or needed a full diff. */
+  public void recordYjsResume(boolean resumed) {
+    Counter.builder("yjs_resume_total")
+        .description("Reconnects that presented a sequence, by whether the ring covered the gap")
+        .tag("result", resumed ? "resumed" : "full_resync")
+        .register(meterRegistry)
+        .increment();
+  }
+
+  public void recordOutboundBacklogMerged(int updates) {
+    outboundBacklogMerged.record(updates);
+  }
+
+  public void recordAwarenessSuperseded(int states) {
+    awarenessSupersededTotal.increment(states);
+  }
+
+  public void recordYjsDuplicateSuppressed(int bytes) {
+    duplicateUpdatesSuppressedTotal.increment();
+    duplicateBytesSuppressedTotal.increment(bytes);
+  }
+
+  public void recordHeartbeatReaped() {
+    heartbeatReapedTotal.increment();
+  }
+
+  /** Room lanes: rooms on the hot lane and mailbox turns in progress on each lane. */
+  public void registerYjsLanes(
+      AtomicInteger hotRooms, AtomicInteger normalBusy, AtomicInteger hotBusy) {
+    Gauge.builder("yjs_rooms_hot", hotRooms, AtomicInteger::get)
+        .description("Rooms whose mailboxes run on the hot lane")
+        .register(meterRegistry);
+    Gauge.builder("yjs_lane_busy", normalBusy, AtomicInteger::get)
+        .description("Room mailbox turns running on the lane")
+        .tag("lane", "normal")
+        .register(meterRegistry);
+    Gauge.builder("yjs_lane_busy", hotBusy, AtomicInteger::get)
+        .description("Room mailbox turns running on the lane")
+        .tag("lane", "hot")
+        .register(meterRegistry);
+  }
+
+  public void recordYjsRoomLaneChange(String lane) {
+    Counter.builder("yjs_room_lane_changes_total")
+        .description("Rooms moved between mailbox lanes, by the lane they moved to")
+        .tag("lane", lane)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  public void recordSessionsDrained(int sessions) {
+    drainedSessionsTotal.increment(sessions);
+  }
+
+  public void recordYjsBatchFlush(int updates, long delayNanos) {
+    yjsBatchUpdates.record(updates);
+    yjsBatchDelay.record(delayNanos, TimeUnit.NANOSECONDS);
+  }
+
   public Timer.Sample startMessageProcessingTimer() {
     return Timer.start(meterRegistry);
   }
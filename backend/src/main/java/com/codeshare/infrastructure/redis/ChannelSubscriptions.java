@@ -0,0 +1,148 @@
+package com.codeshare.infrastructure.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+/**
+ * Keeps one listener subscribed to exactly the channels it has asked for, so an instance only
+ * receives the traffic of rooms it hosts. Callers only record what they want; one thread applies
+ * it, and everything asked for while a SUBSCRIBE or UNSUBSCRIBE is in flight goes out together in
+ * the next one, so a join storm costs a handful of commands rather than one per room. A channel
+ * dropped and wanted again before that (a room emptying and filling) never reaches Redis.
+ *
+ * <p>Messages published before a channel's subscription is in place are not received, so {@link
+ * #subscribe} returns a future that completes once the container has confirmed the SUBSCRIBE it
+ * went out in. A room waits for it before asking the other instances for their state; asked any
+ * earlier, their answers could arrive before anything is listening.
+ */
+final class ChannelSubscriptions {
+  private static final Logger logger = LoggerFactory.getLogger(ChannelSubscriptions.class);
+
+  private final RedisMessageListenerContainer container;
+  private final MessageListener listener;
+  private final Executor executor;
+
+  // Channel to whether it should be subscribed, in the order asked; guarded by this
+  private final Map<String, Boolean> pending = new LinkedHashMap<>();
+  private boolean flushQueued;
+  // Completed by the flush that sends the channel's SUBSCRIBE; guarded by this
+  private final Map<String, CompletableFuture<Void>> confirmations = new HashMap<>();
+  // Only touched by flush, which the executor runs one at a time
+  private final Set<String> subscribed = new HashSet<>();
+
+  ChannelSubscriptions(
+      RedisMessageListenerContainer container, MessageListener listener, Executor executor) {
+    this.container = container;
+    this.listener = listener;
+    this.executor = executor;
+  }
+
+  /**
+   * Subscribes to the channel with the next flush. The future completes once the channel is
+   * subscribed, or once subscribing has been given up on: a failed SUBSCRIBE is retried by the
+   * container when it reconnects, and one skipped at shutdown no longer matters.
+   */
+  CompletableFuture<Void> subscribe(String channel) {
+    return change(channel, true);
+  }
+
+  void unsubscribe(String channel) {
+    change(channel, false);
+  }
+
+  private CompletableFuture<Void> change(String channel, boolean wanted) {
+    CompletableFuture<Void> confirmed = null;
+    synchronized (this) {
+      pending.put(channel, wanted);
+      if (wanted) {
+        confirmed = confirmations.computeIfAbsent(channel, c -> new CompletableFuture<>());
+      }
+      if (flushQueued) {
+        return confirmed;
+      }
+      flushQueued = true;
+    }
+    try {
+      executor.execute(this::flush);
+    } catch (RejectedExecutionException e) {
+      // Shutting down: the container drops every subscription as it stops
+      logger.debug("Subscription change for {} skipped: shutting down", channel);
+      List<CompletableFuture<Void>> skipped;
+      synchronized (this) {
+        skipped = confirmations();
+      }
+      confirm(skipped);
+    }
+    return confirmed;
+  }
+
+  /** Sends what has been asked for since the last flush as one SUBSCRIBE and one UNSUBSCRIBE. */
+  void flush() {
+    Map<String, Boolean> changes;
+    List<CompletableFuture<Void>> confirmed;
+    synchronized (this) {
+      changes = new LinkedHashMap<>(pending);
+      pending.clear();
+      flushQueued = false;
+      confirmed = confirmations();
+    }
+    List<Topic> added = new ArrayList<>();
+    List<Topic> removed = new ArrayList<>();
+    changes.forEach(
+        (channel, wanted) -> {
+          if (wanted ? subscribed.add(channel) : subscribed.remove(channel)) {
+            (wanted ? added : removed).add(new ChannelTopic(channel));
+          }
+        });
+    try {
+      if (!added.isEmpty()) {
+        container.addMessageListener(listener, added);
+      }
+      if (!removed.isEmpty()) {
+        container.removeMessageListener(listener, removed);
+      }
+      if (!added.isEmpty() || !removed.isEmpty()) {
+        logger.debug(
+            "Subscribed to {} and unsubscribed from {} channels, {} in all",
+            added.size(),
+            removed.size(),
+            subscribed.size());
+      }
+    } catch (Exception e) {
+      // The container keeps its topics and subscribes to them again once it reconnects
+      logger.warn("Could not update Redis subscriptions: {}", e.getMessage());
+    }
+    // Lettuce's SUBSCRIBE, and so addMessageListener, returns once Redis has acknowledged it
+    confirm(confirmed);
+  }
+
+  /** Takes the futures of the channels asked for so far; the caller holds the lock. */
+  private List<CompletableFuture<Void>> confirmations() {
+    List<CompletableFuture<Void>> taken = new ArrayList<>(confirmations.values());
+    confirmations.clear();
+    return taken;
+  }
+
+  private static void confirm(List<CompletableFuture<Void>> confirmed) {
+    confirmed.forEach(future -> future.complete(null));
+  }
+
+  /** Channels subscribed to as of the last flush. */
+  int size() {
+    return subscribed.size();
+  }
+}
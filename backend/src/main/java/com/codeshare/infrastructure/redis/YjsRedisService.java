@@ -1,138 +1,578 @@
 package com.codeshare.infrastructure.redis;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.Message;
 import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
 @Service
 public class YjsRedisService implements MessageListener {
   private static final Logger logger = LoggerFactory.getLogger(YjsRedisService.class);
+  private static final String CHANNEL_PREFIX = "yjs:room:";
+  private static final String SEQUENCE_PREFIX = "yjs:seq:";
+  private static final String SYNC_ANSWER_PREFIX = "yjs:sync-answer:";
+
+  // Long enough for every instance hosting the room to have seen the request
+  private static final Duration SYNC_ANSWER_TTL = Duration.ofSeconds(30);
+
+  // Idle rooms' counters expire; a client resuming from an older sequence gets a full diff
+  private static final byte[] SEQUENCE_TTL_SECONDS = "604800".getBytes(StandardCharsets.UTF_8);
+
+  // Numbers the update and publishes it in one step, so sequence order is publish order. The
+  // envelope arrives with a zero sequence in bytes 3-10, which the script fills in big-endian.
+  private static final RedisScript<Long> PUBLISH_SEQUENCED =
+      RedisScript.of(
+          """
+          local seq = redis.call('INCR', KEYS[1])
+          redis.call('EXPIRE', KEYS[1], ARGV[2])
+          local bytes = {}
+          local n = seq
+          for i = 8, 1, -1 do
+            bytes[i] = string.char(n % 256)
+            n = math.floor(n / 256)
+          end
+          local envelope = string.sub(ARGV[1], 1, 2) .. table.concat(bytes) .. string.sub(ARGV[1], 11)
+          redis.call('PUBLISH', KEYS[2], envelope)
+          return seq
+          """,
+          Long.class);
 
   private final StringRedisTemplate redisTemplate;
-  private final RedisMessageListenerContainer messageListenerContainer;
-  private final ObjectMapper objectMapper;
+  // Room and relay channels of the rooms open here, and nothing else
+  private final ChannelSubscriptions subscriptions;
+  private final YjsRelayTree relayTree;
   private final Map<String, YjsMessageHandler> roomHandlers = new ConcurrentHashMap<>();
+  // Encoded once per room instead of on every publish
+  private final Map<String, RoomKeys> roomKeys = new ConcurrentHashMap<>();
+  // Frames this large are deflated once here instead of crossing Redis to every instance raw
+  private final int compressMinBytes;
+  // Stamped on every envelope this instance publishes, so it can drop its own when they come back
+  private final long nodeId = newNodeId();
+  private final Executor subscriptionExecutor;
+  // Passes relayed envelopes down the tree, so the listener thread never waits on a PUBLISH
+  private final Executor relayExecutor;
+  // Envelopes received for forwarding and not yet sent on, in arrival order; guarded by this
+  private List<Relayed> relayed = new ArrayList<>();
+  private boolean relayQueued;
 
+  @Autowired
   public YjsRedisService(
       StringRedisTemplate redisTemplate,
       RedisMessageListenerContainer messageListenerContainer,
-      ObjectMapper objectMapper) {
+      YjsRelayTree relayTree,
+      @Value("${websocket.compression.redis-min-bytes:1024}") int compressMinBytes) {
+    this(
+        redisTemplate,
+        messageListenerContainer,
+        relayTree,
+        compressMinBytes,
+        daemonThread("yjs-subscriptions"),
+        daemonThread("yjs-relay"));
+  }
+
+  YjsRedisService(
+      StringRedisTemplate redisTemplate,
+      RedisMessageListenerContainer messageListenerContainer,
+      YjsRelayTree relayTree,
+      int compressMinBytes,
+      Executor subscriptionExecutor,
+      Executor relayExecutor) {
     this.redisTemplate = redisTemplate;
-    this.messageListenerContainer = messageListenerContainer;
-    this.objectMapper = objectMapper;
+    this.relayTree = relayTree;
+    this.compressMinBytes = compressMinBytes;
+    this.subscriptions =
+        new ChannelSubscriptions(messageListenerContainer, this, subscriptionExecutor);
+    this.subscriptionExecutor = subscriptionExecutor;
+    this.relayExecutor = relayExecutor;
+    logger.info("YjsRedisService initialized as node {}", Long.toHexString(nodeId));
+  }
+
+  private static ExecutorService daemonThread(String name) {
+    return Executors.newSingleThreadExecutor(
+        r -> {
+          Thread thread = new Thread(r, name);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
 
-    // Subscribe to all Yjs room channels
-    messageListenerContainer.addMessageListener(this, new ChannelTopic("yjs:room:*"));
-    logger.info("YjsRedisService initialized and subscribed to yjs:room:* channels");
+  private static long newNodeId() {
+    SecureRandom random = new SecureRandom();
+    long id;
+    do {
+      id = random.nextLong();
+    } while (id == 0);
+    return id;
+  }
+
+  /** A room's channel and sequence counter key, as Redis sees them. */
+  private record RoomKeys(byte[] channel, byte[] sequenceKey) {
+    static RoomKeys of(String roomId) {
+      return new RoomKeys(
+          (CHANNEL_PREFIX + roomId).getBytes(StandardCharsets.UTF_8),
+          (SEQUENCE_PREFIX + roomId).getBytes(StandardCharsets.UTF_8));
+    }
   }
 
   public interface YjsMessageHandler {
     void handleMessage(String roomId, YjsMessage message);
   }
 
+  public enum MessageType {
+    DOCUMENT,
+    AWARENESS
+  }
+
+  /**
+   * A Yjs frame relayed between instances. The frame bytes are carried as-is: they are never
+   * transcoded to a String, so remote instances forward exactly what the client sent.
+   *
+   * <p>Document updates published through {@link #publishSequencedUpdate} carry the room-wide
+   * sequence number Redis assigned them; every other message has sequence 0.
+   */
   public static class YjsMessage {
-    private String type;
-    private String content;
-    private String userId;
-    private long timestamp;
+    private static final byte ENVELOPE_VERSION = 3;
+    // Shared by every room; rooms publish and receive from their mailboxes, a few at a time
+    static final ZlibPool ZLIB = new ZlibPool(Runtime.getRuntime().availableProcessors() * 2);
+    // Still read during a rolling deploy: 2 has no origin, 1 has no sequence either
+    private static final byte ENVELOPE_VERSION_UNTAGGED = 2;
+    private static final byte ENVELOPE_VERSION_UNSEQUENCED = 1;
+    // Offset of the origin node id in a current envelope, after version, type, sequence, timestamp
+    private static final int ORIGIN_OFFSET = 18;
+    private static final int HEADER_BYTES = 28;
+    // Set on the type byte when the frame is deflated
+    private static final int COMPRESSED_FLAG = 0x80;
 
-    public YjsMessage() {}
+    private final MessageType type;
+    private final ByteBuffer content;
+    private final String userId;
+    private final long timestamp;
+    private final long sequence;
+    // Node that published it, if it came through Redis in a current envelope
+    private final long origin;
 
-    public YjsMessage(String type, String content, String userId) {
-      this.type = type;
-      this.content = content;
-      this.userId = userId;
-      this.timestamp = System.currentTimeMillis();
+    public YjsMessage(MessageType type, ByteBuffer content, String userId) {
+      this(type, content, userId, 0);
     }
 
-    // Getters and setters
-    public String getType() {
-      return type;
+    public YjsMessage(MessageType type, ByteBuffer content, String userId, long sequence) {
+      this(type, content, userId, System.currentTimeMillis(), sequence, 0);
     }
 
-    public void setType(String type) {
+    private YjsMessage(
+        MessageType type,
+        ByteBuffer content,
+        String userId,
+        long timestamp,
+        long sequence,
+        long origin) {
       this.type = type;
+      this.content = content.asReadOnlyBuffer();
+      this.userId = userId;
+      this.timestamp = timestamp;
+      this.sequence = sequence;
+      this.origin = origin;
     }
 
-    public String getContent() {
-      return content;
+    public MessageType getType() {
+      return type;
     }
 
-    public void setContent(String content) {
-      this.content = content;
+    /** Read-only view of the Yjs frame; callers should {@code duplicate()} before consuming it. */
+    public ByteBuffer getContent() {
+      return content;
     }
 
     public String getUserId() {
       return userId;
     }
 
-    public void setUserId(String userId) {
-      this.userId = userId;
-    }
-
     public long getTimestamp() {
       return timestamp;
     }
 
-    public void setTimestamp(long timestamp) {
-      this.timestamp = timestamp;
+    /** Room-wide sequence number of a document update, or 0 if the message has none. */
+    public long getSequence() {
+      return sequence;
+    }
+
+    byte[] toEnvelope() {
+      return toEnvelope(0, 0);
+    }
+
+    /**
+     * Encodes the binary envelope published on the room channel: version, type, sequence,
+     * timestamp, the publishing node's id, the length-prefixed UTF-8 user id and then the raw
+     * frame. This is the only copy of the frame made on the publish path.
+     *
+     * <p>Frames of at least {@code compressMinBytes} (if positive) are deflated instead, behind
+     * their raw length, and the type byte is flagged; a frame that does not shrink is sent raw.
+     */
+    byte[] toEnvelope(long origin, int compressMinBytes) {
+      byte[] user = userId != null ? userId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+      ByteBuffer frame = content.duplicate();
+      if (compressMinBytes > 0 && frame.remaining() >= compressMinBytes) {
+        byte[] compressed = toCompressedEnvelope(origin, user, frame.duplicate());
+        if (compressed != null) {
+          return compressed;
+        }
+      }
+      ByteBuffer envelope = ByteBuffer.allocate(HEADER_BYTES + user.length + frame.remaining());
+      putHeader(envelope, origin, user, false);
+      envelope.put(frame);
+      return envelope.array();
+    }
+
+    private byte[] toCompressedEnvelope(long origin, byte[] user, ByteBuffer frame) {
+      ZlibPool.Compressor compressor = ZLIB.compressor();
+      try {
+        // Worth it only if the envelope ends up smaller than the raw one would be
+        ByteBuffer envelope = compressor.scratch(HEADER_BYTES + user.length + frame.remaining());
+        putHeader(envelope, origin, user, true);
+        envelope.putInt(frame.remaining());
+        Deflater deflater = compressor.deflater;
+        deflater.setInput(frame);
+        deflater.finish();
+        while (!deflater.finished()) {
+          if (!envelope.hasRemaining()) {
+            return null;
+          }
+          deflater.deflate(envelope);
+        }
+        return Arrays.copyOf(envelope.array(), envelope.position());
+      } finally {
+        ZLIB.release(compressor);
+      }
+    }
+
+    private void putHeader(ByteBuffer envelope, long origin, byte[] user, boolean compressed) {
+      envelope.put(ENVELOPE_VERSION);
+      envelope.put((byte) (type.ordinal() | (compressed ? COMPRESSED_FLAG : 0)));
+      envelope.putLong(sequence);
+      envelope.putLong(timestamp);
+      envelope.putLong(origin);
+      envelope.putShort((short) user.length);
+      envelope.put(user);
+    }
+
+    /** Whether {@code body} was published by node {@code origin}; looks at nothing else. */
+    static boolean isFrom(byte[] body, long origin) {
+      if (body.length < HEADER_BYTES || body[0] != ENVELOPE_VERSION) {
+        return false;
+      }
+      long id = 0;
+      for (int i = ORIGIN_OFFSET; i < ORIGIN_OFFSET + 8; i++) {
+        id = (id << 8) | (body[i] & 0xFF);
+      }
+      return id == origin;
+    }
+
+    /** Decodes an envelope, wrapping (not copying) the frame bytes of {@code body}. */
+    static YjsMessage fromEnvelope(byte[] body) {
+      ByteBuffer envelope = ByteBuffer.wrap(body);
+      byte version = envelope.get();
+      if (version != ENVELOPE_VERSION
+          && version != ENVELOPE_VERSION_UNTAGGED
+          && version != ENVELOPE_VERSION_UNSEQUENCED) {
+        throw new IllegalArgumentException("Unsupported Yjs envelope version: " + version);
+      }
+      int typeByte = envelope.get() & 0xFF;
+      MessageType type = MessageType.values()[typeByte & ~COMPRESSED_FLAG];
+      long sequence = version != ENVELOPE_VERSION_UNSEQUENCED ? envelope.getLong() : 0;
+      long timestamp = envelope.getLong();
+      long origin = version == ENVELOPE_VERSION ? envelope.getLong() : 0;
+      int userLength = envelope.getShort() & 0xFFFF;
+      String userId =
+          userLength > 0
+              ? new String(body, envelope.position(), userLength, StandardCharsets.UTF_8)
+              : null;
+      envelope.position(envelope.position() + userLength);
+      ByteBuffer frame =
+          (typeByte & COMPRESSED_FLAG) != 0
+              ? inflate(envelope.getInt(), envelope)
+              : envelope.slice();
+      return new YjsMessage(type, frame, userId, timestamp, sequence, origin);
+    }
+
+    private static ByteBuffer inflate(int length, ByteBuffer compressed) {
+      Inflater inflater = ZLIB.inflater();
+      try {
+        inflater.setInput(compressed);
+        byte[] frame = new byte[length];
+        if (inflater.inflate(frame) != length) {
+          throw new IllegalArgumentException("Truncated compressed Yjs envelope");
+        }
+        return ByteBuffer.wrap(frame);
+      } catch (DataFormatException e) {
+        throw new IllegalArgumentException("Corrupt compressed Yjs envelope", e);
+      } finally {
+        ZLIB.release(inflater);
+      }
     }
   }
 
-  public void registerRoomHandler(String roomId, YjsMessageHandler handler) {
+  /**
+   * Starts delivering the room's messages to the handler. The SUBSCRIBE goes out later, batched
+   * with other rooms', and messages published before it lands are missed; the returned future
+   * completes once the room's channels are subscribed, so the room can ask for state it will hear
+   * answered.
+   */
+  public CompletableFuture<Void> registerRoomHandler(String roomId, YjsMessageHandler handler) {
     roomHandlers.put(roomId, handler);
+    roomKeys.put(roomId, RoomKeys.of(roomId));
+    // Called while the room registry holds the room's entry, so this only queues the SUBSCRIBE
+    CompletableFuture<Void> subscribed = subscriptions.subscribe(CHANNEL_PREFIX + roomId);
+    if (relayTree.isEnabled()) {
+      // Relayed updates for the room reach this node on a channel of its own
+      subscribed =
+          CompletableFuture.allOf(
+              subscribed, subscriptions.subscribe(YjsRelayTree.channel(roomId, nodeId)));
+      relayTree.join(roomId, nodeId);
+    }
     logger.debug("Registered handler for room: {}", roomId);
+    return subscribed;
   }
 
   public void unregisterRoomHandler(String roomId) {
     roomHandlers.remove(roomId);
+    roomKeys.remove(roomId);
+    subscriptions.unsubscribe(CHANNEL_PREFIX + roomId);
+    if (relayTree.isEnabled()) {
+      relayTree.leave(roomId);
+      subscriptions.unsubscribe(YjsRelayTree.channel(roomId, nodeId));
+    }
     logger.debug("Unregistered handler for room: {}", roomId);
   }
 
   public void publishMessage(String roomId, YjsMessage message) {
+    byte[] channel = publishChannelFor(roomId);
+    byte[] envelope = message.toEnvelope(nodeId, compressMinBytes);
     try {
-      String channel = "yjs:room:" + roomId;
-      String messageJson = objectMapper.writeValueAsString(message);
-
-      redisTemplate.convertAndSend(channel, messageJson);
+      redisTemplate.execute(
+          (RedisCallback<Long>) connection -> connection.publish(channel, envelope));
       logger.debug("Published message to room {}: {}", roomId, message.getType());
-    } catch (JsonProcessingException e) {
-      logger.error("Failed to serialize Yjs message for room {}: {}", roomId, e.getMessage());
+    } catch (Exception e) {
+      logger.error("Failed to publish Yjs message for room {}: {}", roomId, e.getMessage());
     }
   }
 
-  public void publishAwarenessUpdate(String roomId, String userId, String awarenessData) {
-    YjsMessage message = new YjsMessage("awareness", awarenessData, userId);
+  public void publishAwarenessUpdate(String roomId, String userId, ByteBuffer awarenessData) {
+    YjsMessage message = new YjsMessage(MessageType.AWARENESS, awarenessData, userId);
     publishMessage(roomId, message);
   }
 
-  public void publishDocumentUpdate(String roomId, String userId, String documentData) {
-    YjsMessage message = new YjsMessage("document", documentData, userId);
+  public void publishDocumentUpdate(String roomId, String userId, ByteBuffer documentData) {
+    YjsMessage message = new YjsMessage(MessageType.DOCUMENT, documentData, userId);
     publishMessage(roomId, message);
   }
 
-  @Override
-  public void onMessage(Message message, byte[] pattern) {
+  /**
+   * Publishes a document update under the room's next sequence number, which other instances see as
+   * {@link YjsMessage#getSequence()}. Returns the sequence, or 0 if publishing failed.
+   */
+  public long publishSequencedUpdate(String roomId, String userId, ByteBuffer documentData) {
+    byte[] envelope =
+        new YjsMessage(MessageType.DOCUMENT, documentData, userId)
+            .toEnvelope(nodeId, compressMinBytes);
+    byte[] sequenceKey = keysOf(roomId).sequenceKey();
+    byte[] channel = publishChannelFor(roomId);
+    try {
+      Long sequence =
+          redisTemplate.execute(
+              (RedisCallback<Long>)
+                  connection -> {
+                    try {
+                      return connection
+                          .scriptingCommands()
+                          .evalSha(
+                              PUBLISH_SEQUENCED.getSha1(),
+                              ReturnType.INTEGER,
+                              2,
+                              sequenceKey,
+                              channel,
+                              envelope,
+                              SEQUENCE_TTL_SECONDS);
+                    } catch (Exception e) {
+                      if (!isNoScript(e)) {
+                        throw e;
+                      }
+                      // First use on this Redis: send the script itself, which also caches it
+                      return connection
+                          .scriptingCommands()
+                          .eval(
+                              PUBLISH_SEQUENCED
+                                  .getScriptAsString()
+                                  .getBytes(StandardCharsets.UTF_8),
+                              ReturnType.INTEGER,
+                              2,
+                              sequenceKey,
+                              channel,
+                              envelope,
+                              SEQUENCE_TTL_SECONDS);
+                    }
+                  });
+      logger.debug("Published update {} to room {}", sequence, roomId);
+      return sequence != null ? sequence : 0;
+    } catch (Exception e) {
+      logger.error("Failed to publish Yjs update for room {}: {}", roomId, e.getMessage());
+      return 0;
+    }
+  }
+
+  /**
+   * Whether this instance should answer a sync step 1 another instance published. The first
+   * instance to claim the request answers it, so a room open on many instances gets its document
+   * once rather than once from each. If Redis cannot be asked this instance answers anyway: a
+   * second answer costs bandwidth, a missing one costs the document.
+   */
+  public boolean claimSyncAnswer(String roomId, YjsMessage request) {
+    // The publishing node and its clock identify the request; rooms ask once when they open
+    String key =
+        SYNC_ANSWER_PREFIX
+            + roomId
+            + ":"
+            + Long.toHexString(request.origin)
+            + ":"
+            + request.getTimestamp();
+    try {
+      return Boolean.TRUE.equals(
+          redisTemplate.opsForValue().setIfAbsent(key, Long.toHexString(nodeId), SYNC_ANSWER_TTL));
+    } catch (Exception e) {
+      logger.warn("Could not claim sync answer for room {}: {}", roomId, e.getMessage());
+      return true;
+    }
+  }
+
+  private static boolean isNoScript(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The room channel, or the root of the room's relay tree once it has one. */
+  private byte[] publishChannelFor(String roomId) {
+    byte[] root = relayTree.route(roomId);
+    return root != null ? root : keysOf(roomId).channel();
+  }
+
+  private RoomKeys keysOf(String roomId) {
+    RoomKeys keys = roomKeys.get(roomId);
+    // Rooms publish while registered; anything else pays for the encoding
+    return keys != null ? keys : RoomKeys.of(roomId);
+  }
+
+  /** A relayed envelope and the children it goes on to. */
+  private record Relayed(String roomId, List<byte[]> children, byte[] body) {}
+
+  /**
+   * Queues a relayed envelope for this node's children in the room's tree, as received. The relay
+   * thread sends them on in the order they arrived, so each child sees the root's order.
+   */
+  private void forward(String roomId, byte[] body) {
+    List<byte[]> children = relayTree.children(roomId);
+    if (children.isEmpty()) {
+      return;
+    }
+    synchronized (this) {
+      relayed.add(new Relayed(roomId, children, body));
+      if (relayQueued) {
+        return;
+      }
+      relayQueued = true;
+    }
     try {
-      String channel = new String(message.getChannel());
-      String messageBody = new String(message.getBody());
+      relayExecutor.execute(this::flushRelayed);
+    } catch (RejectedExecutionException e) {
+      // Shutting down: the children hear from the root again once the tree is refreshed
+      logger.debug("Relay for room {} skipped: shutting down", roomId);
+    }
+  }
 
-      // Extract room ID from channel pattern: yjs:room:{roomId}
-      String roomId = channel.substring("yjs:room:".length());
+  /**
+   * Publishes everything queued for forwarding since the last flush in one pipeline, which keeps
+   * the publishes in queue order on one connection and costs one round trip for the lot.
+   */
+  void flushRelayed() {
+    List<Relayed> batch;
+    synchronized (this) {
+      batch = relayed;
+      relayed = new ArrayList<>();
+      relayQueued = false;
+    }
+    try {
+      redisTemplate.execute(
+          (RedisCallback<Void>)
+              connection -> {
+                connection.openPipeline();
+                try {
+                  for (Relayed message : batch) {
+                    for (byte[] child : message.children()) {
+                      connection.publish(child, message.body());
+                    }
+                  }
+                } finally {
+                  connection.closePipeline();
+                }
+                return null;
+              });
+    } catch (Exception e) {
+      logger.error(
+          "Failed to relay {} Yjs messages for room {} and others: {}",
+          batch.size(),
+          batch.get(0).roomId(),
+          e.getMessage());
+    }
+  }
 
-      YjsMessage yjsMessage = objectMapper.readValue(messageBody, YjsMessage.class);
+  @Override
+  public void onMessage(Message message, byte[] pattern) {
+    String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+    String relayedRoomId = YjsRelayTree.roomOf(channel);
+    if (relayedRoomId != null) {
+      // The subtree below needs it even if this node published it
+      forward(relayedRoomId, message.getBody());
+    }
+    // Our own publication coming back: the room already sent it to its local sessions
+    if (YjsMessage.isFrom(message.getBody(), nodeId)) {
+      return;
+    }
+    try {
+      // Extract room ID from the room channel, yjs:room:{roomId}, or from the relay channel
+      String roomId =
+          relayedRoomId != null ? relayedRoomId : channel.substring(CHANNEL_PREFIX.length());
 
       YjsMessageHandler handler = roomHandlers.get(roomId);
       if (handler != null) {
+        YjsMessage yjsMessage = YjsMessage.fromEnvelope(message.getBody());
         handler.handleMessage(roomId, yjsMessage);
         logger.debug("Handled message for room {}: {}", roomId, yjsMessage.getType());
       } else {
@@ -143,8 +583,17 @@ public class YjsRedisService implements MessageListener {
     }
   }
 
+  @PreDestroy
   public void cleanup() {
+    if (subscriptionExecutor instanceof ExecutorService service) {
+      service.shutdownNow();
+    }
+    if (relayExecutor instanceof ExecutorService service) {
+      service.shutdownNow();
+    }
+    roomHandlers.keySet().forEach(relayTree::leave);
     roomHandlers.clear();
+    roomKeys.clear();
     logger.info("YjsRedisService cleanup completed");
   }
 }
@@ -0,0 +1,295 @@
+package com.codeshare.infrastructure.redis;
+
+import jakarta.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+/**
+ * Relay topology for rooms open on many instances. Without it, every update is published on the
+ * room channel and Redis delivers a copy to each instance, so the channel's fan-out grows with the
+ * node count. Once a room is open on at least {@code min-nodes} instances, its updates instead go
+ * to the room's root node, and each node forwards what it receives to at most {@code fan-out}
+ * children; every relay channel then has one subscriber and every node publishes at most fan-out
+ * copies, however many nodes the room spans.
+ *
+ * <p>The nodes hosting a room are kept in a sorted set scored by when each last refreshed its
+ * entry; entries a node stopped refreshing are pruned. Each node orders the set by node id and
+ * reads the tree off that order (node {@code i} forwards to {@code i*fanOut+1 ...
+ * i*fanOut+fanOut}), so every node computes the same tree without coordinating. While views differ
+ * after a node joins or leaves, an update may reach a node twice, which Yjs ignores, or miss it
+ * until its next refresh, which the sync step 1 a room sends when it opens on a node covers.
+ *
+ * <p>A refresh renews every room open here in one script call per batch of rooms, and only reads
+ * back the nodes of rooms that have reached {@code min-nodes}; the others, nearly all rooms, just
+ * get their count.
+ */
+@Component
+public class YjsRelayTree {
+  private static final Logger logger = LoggerFactory.getLogger(YjsRelayTree.class);
+
+  static final String CHANNEL_PREFIX = "yjs:relay:";
+  private static final String NODES_PREFIX = "yjs:relay-nodes:";
+  // Rooms renewed per script call, so one call never holds Redis up for long
+  private static final int REFRESH_BATCH = 128;
+
+  // For each room's node set: renews this node's entry, prunes expired ones and returns the nodes,
+  // or just how many there are while the room is below min-nodes. ARGV holds the time, the score
+  // below which entries have expired, the key's TTL in ms and min-nodes, then this node's entry
+  // in each set.
+  @SuppressWarnings("rawtypes")
+  private static final RedisScript<List> REFRESH =
+      RedisScript.of(
+          """
+          local rooms = {}
+          for i, key in ipairs(KEYS) do
+            redis.call('ZADD', key, ARGV[1], ARGV[4 + i])
+            redis.call('ZREMRANGEBYSCORE', key, 0, ARGV[2])
+            redis.call('PEXPIRE', key, ARGV[3])
+            local count = redis.call('ZCARD', key)
+            if count >= tonumber(ARGV[4]) then
+              rooms[i] = redis.call('ZRANGE', key, 0, -1)
+            else
+              rooms[i] = count
+            end
+          end
+          return rooms
+          """,
+          List.class);
+
+  private final StringRedisTemplate redisTemplate;
+  private final boolean enabled;
+  private final int fanOut;
+  private final int minNodes;
+  private final long refreshMillis;
+  // Node entries not refreshed for this long belong to instances that are gone
+  private final long expiryMillis;
+  private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  /** A room open on this node; {@code view} is null while the room is below min-nodes. */
+  private static final class Room {
+    final String node;
+    volatile View view;
+
+    Room(String node) {
+      this.node = node;
+    }
+  }
+
+  /**
+   * Where this node sends the room's updates in the current tree: the root's channel and its own
+   * children's, encoded once per refresh rather than per message.
+   */
+  private record View(byte[] root, List<byte[]> children) {}
+
+  public YjsRelayTree(
+      StringRedisTemplate redisTemplate,
+      @Value("${websocket.yjs.relay.enabled:false}") boolean enabled,
+      @Value("${websocket.yjs.relay.fan-out:4}") int fanOut,
+      @Value("${websocket.yjs.relay.min-nodes:4}") int minNodes,
+      @Value("${websocket.yjs.relay.refresh-ms:1000}") long refreshMillis) {
+    this.redisTemplate = redisTemplate;
+    this.enabled = enabled;
+    this.fanOut = Math.max(1, fanOut);
+    this.minNodes = Math.max(2, minNodes);
+    this.refreshMillis = refreshMillis;
+    this.expiryMillis = refreshMillis * 3;
+    this.scheduler =
+        enabled
+            ? Executors.newSingleThreadScheduledExecutor(
+                r -> {
+                  Thread thread = new Thread(r, "yjs-relay-refresh");
+                  thread.setDaemon(true);
+                  return thread;
+                })
+            : null;
+    if (enabled) {
+      scheduler.scheduleWithFixedDelay(
+          this::refreshAll, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** The channel on which {@code node} receives relayed updates for the room. */
+  public static String channel(String roomId, long node) {
+    return CHANNEL_PREFIX + roomId + ":" + Long.toHexString(node);
+  }
+
+  /** The room of a relay channel, or null if {@code channel} is not one. */
+  static String roomOf(String channel) {
+    int end = channel.lastIndexOf(':');
+    return channel.startsWith(CHANNEL_PREFIX) && end > CHANNEL_PREFIX.length()
+        ? channel.substring(CHANNEL_PREFIX.length(), end)
+        : null;
+  }
+
+  /** Enters this node into the room's tree; it takes part from the next refresh on. */
+  public void join(String roomId, long node) {
+    if (!enabled) {
+      return;
+    }
+    rooms.put(roomId, new Room(Long.toHexString(node)));
+    // Called while the room registry holds its map entry, so Redis is left to the refresh thread
+    try {
+      scheduler.execute(() -> refresh(roomId));
+    } catch (RejectedExecutionException e) {
+      logger.debug("Relay refresh for room {} skipped: shutting down", roomId);
+    }
+  }
+
+  public void leave(String roomId) {
+    Room room = rooms.remove(roomId);
+    if (room != null) {
+      try {
+        scheduler.execute(() -> removeNode(roomId, room.node));
+      } catch (RejectedExecutionException e) {
+        // The entry expires on its own
+      }
+    }
+  }
+
+  /** The channel to publish the room's updates on, or null to use the room channel. */
+  public byte[] route(String roomId) {
+    View view = viewOf(roomId);
+    return view != null ? view.root() : null;
+  }
+
+  /** The channels this node forwards the room's relayed updates to; empty for a leaf. */
+  public List<byte[]> children(String roomId) {
+    View view = viewOf(roomId);
+    return view != null ? view.children() : List.of();
+  }
+
+  private View viewOf(String roomId) {
+    Room room = rooms.get(roomId);
+    return room != null ? room.view : null;
+  }
+
+  void refreshAll() {
+    List<String> batch = new ArrayList<>(REFRESH_BATCH);
+    for (String roomId : rooms.keySet()) {
+      batch.add(roomId);
+      if (batch.size() == REFRESH_BATCH) {
+        refresh(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      refresh(batch);
+    }
+  }
+
+  /** Renews this node's entry for the room and reads the tree back. */
+  void refresh(String roomId) {
+    refresh(List.of(roomId));
+  }
+
+  /** Renews this node's entries for the rooms in one call and reads their trees back. */
+  private void refresh(List<String> roomIds) {
+    List<Room> batch = new ArrayList<>(roomIds.size());
+    List<String> keys = new ArrayList<>(roomIds.size());
+    long now = System.currentTimeMillis();
+    List<Object> args = new ArrayList<>(roomIds.size() + 4);
+    args.add(String.valueOf(now));
+    args.add(String.valueOf(now - expiryMillis));
+    args.add(String.valueOf(expiryMillis));
+    args.add(String.valueOf(minNodes));
+    List<String> ids = new ArrayList<>(roomIds.size());
+    for (String roomId : roomIds) {
+      Room room = rooms.get(roomId);
+      if (room != null) {
+        ids.add(roomId);
+        batch.add(room);
+        keys.add(NODES_PREFIX + roomId);
+        args.add(room.node);
+      }
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<?> results;
+    try {
+      results = redisTemplate.execute(REFRESH, keys, args.toArray());
+    } catch (Exception e) {
+      logger.warn("Could not refresh relay trees of {} rooms: {}", batch.size(), e.getMessage());
+      return;
+    }
+    for (int i = 0; i < batch.size() && results != null && i < results.size(); i++) {
+      update(ids.get(i), batch.get(i), results.get(i));
+    }
+  }
+
+  /** Applies what a refresh read back: the room's nodes, or how many there are below min-nodes. */
+  private void update(String roomId, Room room, Object result) {
+    View view = null;
+    int count;
+    if (result instanceof List<?> members) {
+      List<String> nodes = new ArrayList<>(members.size());
+      for (Object member : members) {
+        nodes.add(String.valueOf(member));
+      }
+      nodes.sort(null);
+      count = nodes.size();
+      view = view(roomId, nodes, nodes.indexOf(room.node));
+    } else {
+      count = result instanceof Number number ? number.intValue() : 0;
+    }
+    if ((view == null) != (room.view == null)) {
+      logger.info(
+          "Room {} {} the relay tree with {} nodes",
+          roomId,
+          view != null ? "moved onto" : "left",
+          count);
+    }
+    room.view = view;
+  }
+
+  private View view(String roomId, List<String> nodes, int self) {
+    List<byte[]> children = new ArrayList<>(fanOut);
+    // A node missing from the set it just joined has no subtree yet
+    if (self >= 0) {
+      int first = self * fanOut + 1;
+      for (int i = first; i < first + fanOut && i < nodes.size(); i++) {
+        children.add(bytes(CHANNEL_PREFIX + roomId + ":" + nodes.get(i)));
+      }
+    }
+    return new View(bytes(CHANNEL_PREFIX + roomId + ":" + nodes.get(0)), List.copyOf(children));
+  }
+
+  private void removeNode(String roomId, String node) {
+    try {
+      redisTemplate.opsForZSet().remove(NODES_PREFIX + roomId, node);
+    } catch (Exception e) {
+      logger.debug("Could not leave relay tree of room {}: {}", roomId, e.getMessage());
+    }
+  }
+
+  private static byte[] bytes(String channel) {
+    return channel.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (scheduler != null) {
+      rooms.forEach((roomId, room) -> removeNode(roomId, room.node));
+      rooms.clear();
+      scheduler.shutdownNow();
+    }
+  }
+}
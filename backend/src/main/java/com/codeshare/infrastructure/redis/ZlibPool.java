@@ -0,0 +1,82 @@
+package com.codeshare.infrastructure.redis;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflaters and inflaters for relayed envelopes, reused rather than created per message: each one
+ * sets up tens to hundreds of KB of native zlib state that only {@code end()} frees, which costs
+ * more than compressing the frame. A deflater comes with a scratch buffer the envelope is deflated
+ * into, so only the final, compressed copy is allocated per message.
+ *
+ * <p>Every borrow must be paired with a release; {@link #outstanding()} counts the ones that are
+ * not, so tests can catch a path that leaks. Entries released into a full pool are ended.
+ */
+final class ZlibPool {
+  // Larger scratch buffers are not kept, so one huge paste does not pin its size for good
+  private static final int MAX_SCRATCH_BYTES = 256 * 1024;
+
+  private final ArrayBlockingQueue<Compressor> compressors;
+  private final ArrayBlockingQueue<Inflater> inflaters;
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  /** A raw deflater and the buffer it deflates into. */
+  static final class Compressor {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    /** A cleared heap buffer limited to {@code capacity} bytes, valid until released. */
+    ByteBuffer scratch(int capacity) {
+      if (scratch.capacity() >= capacity) {
+        return scratch.clear().limit(capacity);
+      }
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      if (capacity <= MAX_SCRATCH_BYTES) {
+        scratch = grown;
+      }
+      return grown;
+    }
+  }
+
+  ZlibPool(int capacity) {
+    this.compressors = new ArrayBlockingQueue<>(capacity);
+    this.inflaters = new ArrayBlockingQueue<>(capacity);
+  }
+
+  Compressor compressor() {
+    outstanding.incrementAndGet();
+    Compressor compressor = compressors.poll();
+    return compressor != null ? compressor : new Compressor();
+  }
+
+  void release(Compressor compressor) {
+    outstanding.decrementAndGet();
+    // Also drops the reference to the input frame
+    compressor.deflater.reset();
+    if (!compressors.offer(compressor)) {
+      compressor.deflater.end();
+    }
+  }
+
+  Inflater inflater() {
+    outstanding.incrementAndGet();
+    Inflater inflater = inflaters.poll();
+    return inflater != null ? inflater : new Inflater(true);
+  }
+
+  void release(Inflater inflater) {
+    outstanding.decrementAndGet();
+    inflater.reset();
+    if (!inflaters.offer(inflater)) {
+      inflater.end();
+    }
+  }
+
+  /** Compressors and inflaters borrowed and not yet released. */
+  int outstanding() {
+    return outstanding.get();
+  }
+}
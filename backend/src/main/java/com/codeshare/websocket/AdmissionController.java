@@ -0,0 +1,145 @@
+package com.codeshare.websocket;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides whether this instance can take another WebSocket session, from its live session count,
+ * the bytes waiting in outbound queues and the heap still in use after the last collection. A
+ * handshake is refused once any of them reaches its limit. Readiness is withdrawn earlier, at
+ * {@code readiness-ratio} of the limits, so the load balancer sends new clients elsewhere well
+ * before handshakes start failing here.
+ */
+@Component
+public class AdmissionController {
+
+  /** What the instance is currently carrying. */
+  public record Load(int sessions, long outboundQueuedBytes, double heapRatio) {}
+
+  private final MetricsService metricsService;
+  private final IntSupplier sessions;
+  private final LongSupplier outboundQueuedBytes;
+  private final DoubleSupplier heapRatio;
+  private final int maxSessions;
+  private final long maxOutboundQueuedBytes;
+  private final double maxHeapRatio;
+  private final double readinessRatio;
+  private final int retryAfterSeconds;
+
+  @Autowired
+  public AdmissionController(
+      MetricsService metricsService,
+      ConnectionDrain connectionDrain,
+      @Value("${websocket.admission.max-sessions:20000}") int maxSessions,
+      @Value("${websocket.admission.max-outbound-queued-bytes:268435456}")
+          long maxOutboundQueuedBytes,
+      @Value("${websocket.admission.max-heap-ratio:0.85}") double maxHeapRatio,
+      @Value("${websocket.admission.readiness-ratio:0.9}") double readinessRatio,
+      @Value("${websocket.admission.retry-after-seconds:5}") int retryAfterSeconds) {
+    this(
+        metricsService,
+        connectionDrain::sessionCount,
+        metricsService::getOutboundQueuedBytes,
+        AdmissionController::heapRatioAfterGc,
+        maxSessions,
+        maxOutboundQueuedBytes,
+        maxHeapRatio,
+        readinessRatio,
+        retryAfterSeconds);
+  }
+
+  AdmissionController(
+      MetricsService metricsService,
+      IntSupplier sessions,
+      LongSupplier outboundQueuedBytes,
+      DoubleSupplier heapRatio,
+      int maxSessions,
+      long maxOutboundQueuedBytes,
+      double maxHeapRatio,
+      double readinessRatio,
+      int retryAfterSeconds) {
+    this.metricsService = metricsService;
+    this.sessions = sessions;
+    this.outboundQueuedBytes = outboundQueuedBytes;
+    this.heapRatio = heapRatio;
+    this.maxSessions = maxSessions;
+    this.maxOutboundQueuedBytes = maxOutboundQueuedBytes;
+    this.maxHeapRatio = maxHeapRatio;
+    this.readinessRatio = readinessRatio;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Returns null if a new session may be admitted, otherwise the limit that has been reached
+   * ({@code sessions}, {@code outbound_queue} or {@code heap}).
+   */
+  public String admit() {
+    String reason = limitReached(load(), 1.0);
+    if (reason != null) {
+      metricsService.recordAdmissionRejected(reason);
+    }
+    return reason;
+  }
+
+  /** Whether the instance should keep receiving new connections from the load balancer. */
+  public boolean isReady(Load load) {
+    return limitReached(load, readinessRatio) == null;
+  }
+
+  public Load load() {
+    return new Load(sessions.getAsInt(), outboundQueuedBytes.getAsLong(), heapRatio.getAsDouble());
+  }
+
+  /**
+   * Seconds a refused client should wait before trying again: the configured hint plus up to as
+   * much again, so refused clients don't all come back in the same second.
+   */
+  public int retryAfterSeconds() {
+    return retryAfterSeconds + ThreadLocalRandom.current().nextInt(retryAfterSeconds + 1);
+  }
+
+  private String limitReached(Load load, double fraction) {
+    if (load.sessions() >= maxSessions * fraction) {
+      return "sessions";
+    }
+    if (load.outboundQueuedBytes() >= maxOutboundQueuedBytes * fraction) {
+      return "outbound_queue";
+    }
+    if (load.heapRatio() >= maxHeapRatio * fraction) {
+      return "heap";
+    }
+    return null;
+  }
+
+  /**
+   * Heap in use after the last collection as a fraction of the maximum. Unlike current usage this
+   * ignores garbage that simply hasn't been collected yet; before the first collection it falls
+   * back to current usage.
+   */
+  private static double heapRatioAfterGc() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = 0;
+    List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+    for (MemoryPoolMXBean pool : pools) {
+      MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+      if (afterGc != null) {
+        used += afterGc.getUsed();
+      }
+    }
+    if (used == 0) {
+      used = runtime.totalMemory() - runtime.freeMemory();
+    }
+    return (double) used / runtime.maxMemory();
+  }
+}
@@ -0,0 +1,32 @@
+package com.codeshare.websocket;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports {@code OUT_OF_SERVICE} while the instance is close to its WebSocket admission limits.
+ * Part of the readiness group, so the load balancer stops routing new connections here before
+ * handshakes start being refused; liveness is unaffected.
+ */
+@Component
+public class AdmissionHealthIndicator implements HealthIndicator {
+
+  private final AdmissionController admissionController;
+
+  public AdmissionHealthIndicator(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+  }
+
+  @Override
+  public Health health() {
+    AdmissionController.Load load = admissionController.load();
+    Health.Builder builder =
+        admissionController.isReady(load) ? Health.up() : Health.outOfService();
+    return builder
+        .withDetail("sessions", load.sessions())
+        .withDetail("outboundQueuedBytes", load.outboundQueuedBytes())
+        .withDetail("heapRatio", load.heapRatio())
+        .build();
+  }
+}
@@ -0,0 +1,178 @@
+package com.codeshare.websocket;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.session.CloseStatuses;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+/**
+ * Drains WebSocket sessions when the instance shuts down, so a rolling deploy doesn't send every
+ * client to the surviving instances at the same moment. Once the drain starts, new handshakes are
+ * refused with 503 and the open sessions are closed in shuffled waves spread over the drain window,
+ * each with {@link CloseStatuses#SERVER_DRAINING}, which tells clients to reconnect after a random
+ * delay of their own.
+ *
+ * <p>Runs in the default lifecycle phase, so it stops before the web server's graceful shutdown and
+ * the surviving sessions still have a working server while they are told to leave. Keep the window
+ * below {@code spring.lifecycle.timeout-per-shutdown-phase}.
+ */
+@Component
+public class ConnectionDrain implements SmartLifecycle, HandshakeInterceptor {
+  private static final Logger logger = LoggerFactory.getLogger(ConnectionDrain.class);
+
+  private final Set<WebSocketSession> sessions = ConcurrentHashMap.newKeySet();
+  private final MetricsService metricsService;
+  private final int waves;
+  private final long windowMillis;
+  private volatile boolean running;
+  private volatile boolean draining;
+
+  public ConnectionDrain(
+      MetricsService metricsService,
+      @Value("${websocket.drain.waves:10}") int waves,
+      @Value("${websocket.drain.window:15s}") Duration window) {
+    this.metricsService = metricsService;
+    this.waves = Math.max(1, waves);
+    this.windowMillis = window.toMillis();
+  }
+
+  /** Called by handlers when a session is established; closes it at once if already draining. */
+  public void track(WebSocketSession session) {
+    sessions.add(session);
+    if (draining && sessions.remove(session)) {
+      close(session);
+    }
+  }
+
+  public void untrack(WebSocketSession session) {
+    sessions.remove(session);
+  }
+
+  public int sessionCount() {
+    return sessions.size();
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  @Override
+  public boolean beforeHandshake(
+      ServerHttpRequest request,
+      ServerHttpResponse response,
+      WebSocketHandler wsHandler,
+      Map<String, Object> attributes) {
+    if (!draining) {
+      return true;
+    }
+    response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+    response.getHeaders().set("Retry-After", "1");
+    return false;
+  }
+
+  @Override
+  public void afterHandshake(
+      ServerHttpRequest request,
+      ServerHttpResponse response,
+      WebSocketHandler wsHandler,
+      Exception exception) {}
+
+  @Override
+  public void start() {
+    draining = false;
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    draining = true;
+    drain();
+    running = false;
+  }
+
+  @Override
+  public void stop(Runnable callback) {
+    draining = true;
+    Thread.ofVirtual()
+        .name("websocket-drain")
+        .start(
+            () -> {
+              try {
+                drain();
+              } finally {
+                running = false;
+                callback.run();
+              }
+            });
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  private void drain() {
+    List<WebSocketSession> remaining = new ArrayList<>(sessions);
+    if (remaining.isEmpty()) {
+      return;
+    }
+    // Shuffled so that no room or client cohort is sent away all in one wave
+    Collections.shuffle(remaining);
+    int waveCount = Math.min(waves, remaining.size());
+    long pauseMillis = windowMillis / waveCount;
+    logger.info(
+        "Draining {} WebSocket sessions in {} waves over {} ms",
+        remaining.size(),
+        waveCount,
+        windowMillis);
+
+    // Closing can block on a dead peer, so each close gets its own virtual thread
+    try (ExecutorService closer = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int wave = 0; wave < waveCount; wave++) {
+        if (wave > 0) {
+          try {
+            Thread.sleep(pauseMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        int from = wave * remaining.size() / waveCount;
+        int to = (wave + 1) * remaining.size() / waveCount;
+        for (WebSocketSession session : remaining.subList(from, to)) {
+          if (sessions.remove(session)) {
+            closer.execute(() -> close(session));
+          }
+        }
+        metricsService.recordSessionsDrained(to - from);
+      }
+    }
+  }
+
+  private static void close(WebSocketSession session) {
+    try {
+      if (session.isOpen()) {
+        session.close(CloseStatuses.SERVER_DRAINING);
+      }
+    } catch (Exception e) {
+      logger.debug("Error closing session {}: {}", session.getId(), e.getMessage());
+    }
+  }
+}
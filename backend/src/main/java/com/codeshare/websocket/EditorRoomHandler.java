@@ -5,10 +5,17 @@ import com.codeshare.infrastructure.metrics.MetricsService;
 import com.codeshare.infrastructure.redis.PresenceService;
 import com.codeshare.infrastructure.security.JwtService;
 import com.codeshare.kafka.EditorEventProducer;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.HeartbeatWheel.Heartbeat;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OutboundSessionFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
@@ -16,30 +23,80 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 @Component
 public class EditorRoomHandler extends TextWebSocketHandler {
 
+  // Session attributes resolved from the handshake URI when the connection is established
+  private static final String ROOM_ID_ATTRIBUTE = "editor.roomId";
+  private static final String USER_ID_ATTRIBUTE = "editor.userId";
+  private static final String HEARTBEAT_ATTRIBUTE = "editor.heartbeat";
+  private static final String SPECTATOR_ATTRIBUTE = "editor.spectator";
+  private static final String OUTBOUND_ATTRIBUTE = "editor.outbound";
+
+  private static final OutboundSession[] NO_SESSIONS = new OutboundSession[0];
+  // Tomcat's default, which density mode lowers for the container's binary endpoints
+  private static final int TEXT_MESSAGE_CHARS = 8192;
+
   private final ObjectMapper objectMapper = new ObjectMapper();
-  private final Map<String, Set<WebSocketSession>> roomSessions = new HashMap<>();
+  // Copy-on-write per room: sessions join and leave far less often than presence is broadcast
+  private final Map<String, OutboundSession[]> roomSessions = new ConcurrentHashMap<>();
+  // Read-only viewers, kept apart so they get editor events but not presence
+  private final Map<String, OutboundSession[]> roomSpectators = new ConcurrentHashMap<>();
   private final EditorEventProducer producer;
   private final PresenceService presenceService;
   private final JwtService jwtService;
   private final MetricsService metricsService;
+  private final HeartbeatWheel heartbeatWheel;
+  private final ConnectionDrain connectionDrain;
+  private final OutboundSessionFactory outboundSessionFactory;
 
   public EditorRoomHandler(
       EditorEventProducer producer,
       PresenceService presenceService,
       JwtService jwtService,
-      MetricsService metricsService) {
+      MetricsService metricsService,
+      HeartbeatWheel heartbeatWheel,
+      ConnectionDrain connectionDrain,
+      OutboundSessionFactory outboundSessionFactory) {
     this.producer = producer;
     this.presenceService = presenceService;
     this.jwtService = jwtService;
     this.metricsService = metricsService;
+    this.heartbeatWheel = heartbeatWheel;
+    this.connectionDrain = connectionDrain;
+    this.outboundSessionFactory = outboundSessionFactory;
   }
 
   @Override
   public void afterConnectionEstablished(WebSocketSession session) {
     Timer.Sample sample = metricsService.startWebSocketConnectionTimer();
-    String roomId = getQueryParam(session, "roomId");
-    String userId = extractUserIdFromSession(session);
-    roomSessions.computeIfAbsent(roomId, k -> new HashSet<>()).add(session);
+    // Editor messages are JSON text; Tomcat sizes its buffer to this from the first one on
+    session.setTextMessageSizeLimit(TEXT_MESSAGE_CHARS);
+    Map<String, String> params = QueryParams.parse(session.getUri());
+    String roomId = params.get("roomId");
+    String userId = extractUserIdFromSession(session, params.get("token"));
+    // Spectators get the room's editor events but neither appear in presence nor get its
+    // broadcasts, which grow with the audience
+    boolean spectator = "spectator".equals(params.get("mode"));
+    if (spectator) {
+      session.getAttributes().put(SPECTATOR_ATTRIBUTE, Boolean.TRUE);
+      userId = null;
+    }
+    // Broadcasts are queued by priority, so presence never holds up editor events
+    OutboundSession outbound = outboundSessionFactory.create(session, roomId);
+    session.getAttributes().put(OUTBOUND_ATTRIBUTE, outbound);
+    if (roomId != null) {
+      session.getAttributes().put(ROOM_ID_ATTRIBUTE, roomId);
+      (spectator ? roomSpectators : roomSessions)
+          .merge(roomId, new OutboundSession[] {outbound}, EditorRoomHandler::concat);
+    }
+    if (userId != null) {
+      session.getAttributes().put(USER_ID_ATTRIBUTE, userId);
+    }
+    // A connection that dies without a close frame would otherwise stay in the presence set
+    session
+        .getAttributes()
+        .put(
+            HEARTBEAT_ATTRIBUTE,
+            heartbeatWheel.register(session, outbound::ping, () -> disconnect(session)));
+    connectionDrain.track(session);
     if (roomId != null && userId != null) {
       presenceService.addUserToRoom(roomId, userId);
       broadcastPresence(roomId);
@@ -50,6 +107,10 @@ public class EditorRoomHandler extends TextWebSocketHandler {
 
   @Override
   protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+    touch(session);
+    if (session.getAttributes().containsKey(SPECTATOR_ATTRIBUTE)) {
+      return;
+    }
     try {
       EditorMessage editorMessage =
           objectMapper.readValue(message.getPayload(), EditorMessage.class);
@@ -58,11 +119,39 @@ public class EditorRoomHandler extends TextWebSocketHandler {
     }
   }
 
+  @Override
+  protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+    touch(session);
+  }
+
+  private static void touch(WebSocketSession session) {
+    Heartbeat heartbeat = (Heartbeat) session.getAttributes().get(HEARTBEAT_ATTRIBUTE);
+    if (heartbeat != null) {
+      heartbeat.touch();
+    }
+  }
+
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
-    String roomId = getQueryParam(session, "roomId");
-    String userId = extractUserIdFromSession(session);
-    roomSessions.values().forEach(sessions -> sessions.remove(session));
+    Heartbeat heartbeat = (Heartbeat) session.getAttributes().get(HEARTBEAT_ATTRIBUTE);
+    // A reaped session has already been cleaned up
+    if (heartbeat == null || heartbeat.cancel()) {
+      disconnect(session);
+    }
+  }
+
+  private void disconnect(WebSocketSession session) {
+    String roomId = (String) session.getAttributes().get(ROOM_ID_ATTRIBUTE);
+    String userId = (String) session.getAttributes().get(USER_ID_ATTRIBUTE);
+    OutboundSession outbound = (OutboundSession) session.getAttributes().get(OUTBOUND_ATTRIBUTE);
+    connectionDrain.untrack(session);
+    if (outbound != null) {
+      outbound.release();
+    }
+    if (roomId != null) {
+      (session.getAttributes().containsKey(SPECTATOR_ATTRIBUTE) ? roomSpectators : roomSessions)
+          .computeIfPresent(roomId, (id, sessions) -> without(sessions, outbound));
+    }
     if (roomId != null && userId != null) {
       presenceService.removeUserFromRoom(roomId, userId);
       broadcastPresence(roomId);
@@ -71,30 +160,51 @@ public class EditorRoomHandler extends TextWebSocketHandler {
   }
 
   public void broadcastToRoom(String roomId, String message) {
-    if (!roomSessions.containsKey(roomId)) return;
-    roomSessions
-        .get(roomId)
-        .forEach(
-            session -> {
-              try {
-                session.sendMessage(new TextMessage(message));
-              } catch (Exception ignored) {
-              }
-            });
+    // Encoded once; every session's queue shares the read-only bytes
+    ByteBuffer text = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    for (OutboundSession session : roomSessions.getOrDefault(roomId, NO_SESSIONS)) {
+      session.sendText(text);
+    }
+    for (OutboundSession session : roomSpectators.getOrDefault(roomId, NO_SESSIONS)) {
+      session.sendText(text);
+    }
+  }
+
+  private static OutboundSession[] concat(OutboundSession[] sessions, OutboundSession[] added) {
+    OutboundSession[] result = Arrays.copyOf(sessions, sessions.length + added.length);
+    System.arraycopy(added, 0, result, sessions.length, added.length);
+    return result;
+  }
+
+  /** Returns {@code sessions} without {@code session}, or null (removing the room) if empty. */
+  private static OutboundSession[] without(OutboundSession[] sessions, OutboundSession session) {
+    OutboundSession[] result = new OutboundSession[sessions.length];
+    int n = 0;
+    for (OutboundSession s : sessions) {
+      if (s != session) {
+        result[n++] = s;
+      }
+    }
+    return n == 0 ? null : Arrays.copyOf(result, n);
   }
 
   private void broadcastPresence(String roomId) {
     Set<String> users = presenceService.getUsersInRoom(roomId);
     try {
-      String message = objectMapper.writeValueAsString(Map.of("type", "presence", "users", users));
-      broadcastToRoom(roomId, message);
+      ByteBuffer message =
+          ByteBuffer.wrap(
+                  objectMapper.writeValueAsBytes(Map.of("type", "presence", "users", users)))
+              .asReadOnlyBuffer();
+      // Lowest priority: a newer list replaces one still queued, and overflow drops it first
+      for (OutboundSession session : roomSessions.getOrDefault(roomId, NO_SESSIONS)) {
+        session.sendPresence(message);
+      }
     } catch (Exception ignored) {
     }
   }
 
-  private String extractUserIdFromSession(WebSocketSession session) {
+  private String extractUserIdFromSession(WebSocketSession session, String token) {
     // Try to extract JWT from query param or cookies
-    String token = getQueryParam(session, "token");
     if (token == null && session.getHandshakeHeaders().containsKey("cookie")) {
       List<String> cookies = session.getHandshakeHeaders().get("cookie");
       for (String cookieHeader : cookies) {
@@ -117,35 +227,10 @@ public class EditorRoomHandler extends TextWebSocketHandler {
     return null;
   }
 
-  private String getQueryParam(WebSocketSession session, String param) {
-    return Optional.ofNullable(session.getUri())
-        .flatMap(
-            uri ->
-                Arrays.stream(uri.getQuery().split("&"))
-                    .map(s -> s.split("="))
-                    .filter(pair -> pair.length == 2 && pair[0].equals(param))
-                    .map(pair -> pair[1])
-                    .findFirst())
-        .orElse(null);
-  }
-
   @PreDestroy
   public void cleanup() {
-    // Close all WebSocket sessions gracefully
-    roomSessions
-        .values()
-        .forEach(
-            sessions ->
-                sessions.forEach(
-                    session -> {
-                      try {
-                        if (session.isOpen()) {
-                          session.close(CloseStatus.SERVER_ERROR);
-                        }
-                      } catch (Exception e) {
-                        // Log but don't throw
-                      }
-                    }));
+    // Sessions have been closed in waves by the ConnectionDrain by now
     roomSessions.clear();
+    roomSpectators.clear();
   }
 }
@@ -0,0 +1,137 @@
+package com.codeshare.websocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * One room's channel on a multiplexed connection, seen as a session of its own so the room and its
+ * {@link com.codeshare.websocket.session.OutboundSession} need not know about multiplexing. Binary
+ * frames are sent on the shared connection behind the channel's 2-byte id, holding the connection's
+ * monitor since every channel and the heartbeat write to it. Closing the channel, as the outbound
+ * queue does when the client falls behind, closes only the channel.
+ */
+final class MuxChannelSession implements WebSocketSession {
+  private final WebSocketSession connection;
+  private final int channel;
+  private final Consumer<CloseStatus> onClose;
+  private volatile boolean closed;
+
+  MuxChannelSession(WebSocketSession connection, int channel, Consumer<CloseStatus> onClose) {
+    this.connection = connection;
+    this.channel = channel;
+    this.onClose = onClose;
+  }
+
+  @Override
+  public String getId() {
+    return connection.getId() + "#" + channel;
+  }
+
+  @Override
+  public URI getUri() {
+    return connection.getUri();
+  }
+
+  @Override
+  public HttpHeaders getHandshakeHeaders() {
+    return connection.getHandshakeHeaders();
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return connection.getAttributes();
+  }
+
+  @Override
+  public Principal getPrincipal() {
+    return connection.getPrincipal();
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return connection.getLocalAddress();
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return connection.getRemoteAddress();
+  }
+
+  @Override
+  public String getAcceptedProtocol() {
+    return connection.getAcceptedProtocol();
+  }
+
+  @Override
+  public void setTextMessageSizeLimit(int messageSizeLimit) {}
+
+  @Override
+  public int getTextMessageSizeLimit() {
+    return connection.getTextMessageSizeLimit();
+  }
+
+  @Override
+  public void setBinaryMessageSizeLimit(int messageSizeLimit) {}
+
+  @Override
+  public int getBinaryMessageSizeLimit() {
+    return connection.getBinaryMessageSizeLimit();
+  }
+
+  @Override
+  public List<WebSocketExtension> getExtensions() {
+    return connection.getExtensions();
+  }
+
+  @Override
+  public void sendMessage(WebSocketMessage<?> message) throws IOException {
+    if (!(message instanceof BinaryMessage binary)) {
+      // Pings are the connection's business; its heartbeat sends them
+      return;
+    }
+    ByteBuffer payload = binary.getPayload();
+    ByteBuffer framed = ByteBuffer.allocate(2 + payload.remaining());
+    framed.putShort((short) channel).put(payload.duplicate()).flip();
+    synchronized (connection) {
+      if (closed) {
+        throw new IOException("Channel " + getId() + " is closed");
+      }
+      connection.sendMessage(new BinaryMessage(framed));
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed && connection.isOpen();
+  }
+
+  @Override
+  public void close() {
+    close(CloseStatus.NORMAL);
+  }
+
+  @Override
+  public void close(CloseStatus status) {
+    if (!closed) {
+      closed = true;
+      onClose.accept(status);
+    }
+  }
+
+  /** Marks the channel closed without calling back, when the handler closes it itself. */
+  void detach() {
+    closed = true;
+  }
+}
@@ -0,0 +1,257 @@
+package com.codeshare.websocket;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.room.YjsRoom;
+import com.codeshare.websocket.room.YjsRoomRegistry;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.HeartbeatWheel.Heartbeat;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OutboundSessionFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+
+/**
+ * Serves many Yjs rooms over one authenticated connection on {@code /ws/mux}, so a client with
+ * several rooms open pays for the handshake, the JWT check and the socket once. Every frame starts
+ * with a 2-byte big-endian channel id. Channels 1 to 65535 carry y-websocket frames for the room
+ * the client subscribed them to, unchanged; channel 0 carries control messages, each starting with
+ * an op byte:
+ *
+ * <ul>
+ *   <li>{@code SUBSCRIBE} (client): channel, 8-byte resume sequence (-1 for none), room id in
+ *       UTF-8. The channel then behaves like a {@code /ws/yjs/{roomId}} connection.
+ *   <li>{@code UNSUBSCRIBE} (client): channel.
+ *   <li>{@code CLOSED} (server): channel, 2-byte close code. The server dropped the channel, with
+ *       the code a single-room connection would have been closed with; the client may resubscribe.
+ * </ul>
+ *
+ * <p>Each channel joins its room through its own {@link OutboundSession} over a {@link
+ * MuxChannelSession}, so rooms, backpressure and resync work per channel exactly as they do per
+ * connection. The heartbeat, drain and admission apply to the connection as a whole.
+ */
+@Component
+public class MuxWebSocketHandler extends BinaryWebSocketHandler {
+  private static final Logger logger = LoggerFactory.getLogger(MuxWebSocketHandler.class);
+
+  static final int CONTROL_CHANNEL = 0;
+  static final byte SUBSCRIBE = 1;
+  static final byte UNSUBSCRIBE = 2;
+  static final byte CLOSED = 3;
+
+  // Session attribute holding the session's Connection
+  private static final String CONNECTION_ATTRIBUTE = "mux.connection";
+
+  private final YjsRoomRegistry roomRegistry;
+  private final MetricsService metricsService;
+  private final OutboundSessionFactory outboundSessionFactory;
+  private final HeartbeatWheel heartbeatWheel;
+  private final ConnectionDrain connectionDrain;
+  private final long maxFrameBytes;
+  private final int maxChannels;
+
+  /** A multiplexed connection and its open channels. */
+  private record Connection(
+      String userId, Heartbeat heartbeat, PartialFrame partial, Map<Integer, Channel> channels) {}
+
+  private record Channel(YjsRoom room, OutboundSession outbound, MuxChannelSession session) {}
+
+  public MuxWebSocketHandler(
+      YjsRoomRegistry roomRegistry,
+      MetricsService metricsService,
+      OutboundSessionFactory outboundSessionFactory,
+      HeartbeatWheel heartbeatWheel,
+      ConnectionDrain connectionDrain,
+      @Value("${websocket.yjs.frames.max-frame-bytes:16777216}") long maxFrameBytes,
+      @Value("${websocket.mux.max-channels:32}") int maxChannels) {
+    this.roomRegistry = roomRegistry;
+    this.metricsService = metricsService;
+    this.outboundSessionFactory = outboundSessionFactory;
+    this.heartbeatWheel = heartbeatWheel;
+    this.connectionDrain = connectionDrain;
+    this.maxFrameBytes = maxFrameBytes;
+    this.maxChannels = maxChannels;
+  }
+
+  @Override
+  public boolean supportsPartialMessages() {
+    return true;
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) {
+    String userId = (String) session.getAttributes().get("userId");
+    // The room is only known once the frame is complete, so the limit is per connection
+    PartialFrame partial = new PartialFrame(new AtomicLong(), maxFrameBytes, maxFrameBytes);
+    Connection connection =
+        new Connection(
+            userId != null ? userId : "anonymous",
+            heartbeatWheel.register(session, () -> disconnect(session)),
+            partial,
+            new ConcurrentHashMap<>());
+    session.getAttributes().put(CONNECTION_ATTRIBUTE, connection);
+    connectionDrain.track(session);
+    logger.info("Multiplexed WebSocket connection established: {}", session.getId());
+  }
+
+  @Override
+  protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    if (connection == null) {
+      return;
+    }
+    connection.heartbeat().touch();
+    ByteBuffer frame;
+    try {
+      frame = connection.partial().append(message.getPayload(), message.isLast());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Closing multiplexed session {}: {}", session.getId(), e.getMessage());
+      closeQuietly(session, CloseStatus.TOO_BIG_TO_PROCESS);
+      return;
+    }
+    if (frame == null) {
+      return;
+    }
+    if (frame.remaining() < 2) {
+      closeQuietly(session, CloseStatus.BAD_DATA);
+      return;
+    }
+
+    int id = frame.getShort(frame.position()) & 0xFFFF;
+    // Read-only like the frame it slices, and indexed from 0 as the room expects
+    ByteBuffer payload = frame.position(frame.position() + 2).slice();
+    if (id == CONTROL_CHANNEL) {
+      control(session, connection, payload);
+      return;
+    }
+    Channel channel = connection.channels().get(id);
+    if (channel == null) {
+      // Frames already in flight when the channel was closed
+      return;
+    }
+    metricsService.recordMessageReceived(channel.room().getRoomId());
+    channel.room().receive(channel.outbound(), connection.userId(), payload);
+  }
+
+  private void control(WebSocketSession session, Connection connection, ByteBuffer message) {
+    if (message.remaining() < 3) {
+      closeQuietly(session, CloseStatus.BAD_DATA);
+      return;
+    }
+    byte op = message.get(0);
+    int id = message.getShort(1) & 0xFFFF;
+    if (op == UNSUBSCRIBE) {
+      closeChannel(session, connection, id, null);
+    } else if (op == SUBSCRIBE && message.remaining() > 11) {
+      long resumeFrom = message.getLong(3);
+      byte[] room = new byte[message.remaining() - 11];
+      message.get(11, room);
+      subscribe(session, connection, id, resumeFrom, new String(room, StandardCharsets.UTF_8));
+    } else {
+      closeQuietly(session, CloseStatus.BAD_DATA);
+    }
+  }
+
+  private void subscribe(
+      WebSocketSession session, Connection connection, int id, long resumeFrom, String roomId) {
+    if (id == CONTROL_CHANNEL
+        || connection.channels().containsKey(id)
+        || connection.channels().size() >= maxChannels) {
+      logger.warn("Refusing channel {} to room {} on session {}", id, roomId, session.getId());
+      sendClosed(session, id, CloseStatus.POLICY_VIOLATION);
+      return;
+    }
+    MuxChannelSession channelSession =
+        new MuxChannelSession(session, id, status -> closeChannel(session, connection, id, status));
+    OutboundSession outbound = outboundSessionFactory.create(channelSession, roomId);
+    YjsRoom room = roomRegistry.acquire(roomId);
+    connection.channels().put(id, new Channel(room, outbound, channelSession));
+    room.join(outbound, resumeFrom);
+    metricsService.recordWebSocketConnection(roomId);
+    // Reaped while subscribing: the reaper may have missed this channel
+    if (session.getAttributes().get(CONNECTION_ATTRIBUTE) != connection) {
+      closeChannel(session, connection, id, null);
+    }
+  }
+
+  /** Leaves the channel's room; tells the client only if {@code status} is given. */
+  private void closeChannel(
+      WebSocketSession session, Connection connection, int id, CloseStatus status) {
+    Channel channel = connection.channels().remove(id);
+    if (channel == null) {
+      return;
+    }
+    channel.session().detach();
+    channel.outbound().release();
+    channel.room().leave(channel.outbound());
+    roomRegistry.release(channel.room());
+    metricsService.recordWebSocketDisconnection(channel.room().getRoomId());
+    if (status != null) {
+      sendClosed(session, id, status);
+    }
+  }
+
+  private static void sendClosed(WebSocketSession session, int id, CloseStatus status) {
+    ByteBuffer message = ByteBuffer.allocate(7);
+    message.putShort((short) CONTROL_CHANNEL).put(CLOSED).putShort((short) id);
+    message.putShort((short) status.getCode()).flip();
+    synchronized (session) {
+      try {
+        if (session.isOpen()) {
+          session.sendMessage(new BinaryMessage(message));
+        }
+      } catch (Exception e) {
+        logger.debug("Failed to close channel {} on {}: {}", id, session.getId(), e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    if (connection != null) {
+      connection.heartbeat().touch();
+    }
+  }
+
+  private static void closeQuietly(WebSocketSession session, CloseStatus status) {
+    try {
+      session.close(status);
+    } catch (Exception e) {
+      logger.warn("Error closing WebSocket session: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    // A reaped session has already left its rooms
+    if (connection != null && connection.heartbeat().cancel()) {
+      disconnect(session);
+    }
+  }
+
+  private void disconnect(WebSocketSession session) {
+    Connection connection = (Connection) session.getAttributes().remove(CONNECTION_ATTRIBUTE);
+    if (connection != null) {
+      connection.partial().discard();
+      connectionDrain.untrack(session);
+      for (Integer id : List.copyOf(connection.channels().keySet())) {
+        closeChannel(session, connection, id, null);
+      }
+      logger.info("Multiplexed WebSocket connection closed: {}", session.getId());
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.codeshare.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the chunks of one inbound frame that the container delivers as a partial message. Each
+ * chunk is copied at its exact size as it arrives and the frame is put together once, when the last
+ * chunk is in, so a large paste never sits in a container buffer sized for the whole frame or in a
+ * buffer that grew by doubling.
+ *
+ * <p>Putting the frame together copies it while the chunks are still held, so a frame peaks at
+ * twice its size on the heap for that moment. The frame size is unknown until the last chunk, so
+ * there is nothing to pre-size a single buffer by, and a growing one would peak higher still.
+ *
+ * <p>A frame may not exceed {@code maxFrameBytes}, and the frames being assembled in one room may
+ * not together take more than {@code maxRoomBytes}, counting the copy of a frame being put
+ * together; the room's total is shared by its sessions' {@code PartialFrame}s. Not thread-safe: the
+ * container delivers one session's messages one at a time.
+ */
+final class PartialFrame {
+  private final AtomicLong roomBytes;
+  private final long maxFrameBytes;
+  private final long maxRoomBytes;
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private long size;
+
+  PartialFrame(AtomicLong roomBytes, long maxFrameBytes, long maxRoomBytes) {
+    this.roomBytes = roomBytes;
+    this.maxFrameBytes = maxFrameBytes;
+    this.maxRoomBytes = maxRoomBytes;
+  }
+
+  /**
+   * Adds a chunk, which is copied since the container reuses its buffer. Returns the whole frame,
+   * read-only, once {@code last} is set, or null while more chunks are expected.
+   *
+   * @throws IllegalArgumentException if the frame or the room goes over its limit; the chunks
+   *     collected so far are discarded
+   */
+  ByteBuffer append(ByteBuffer chunk, boolean last) {
+    int length = chunk.remaining();
+    if (last && chunks.isEmpty()) {
+      // A frame that fitted in one chunk, which is nearly all of them
+      return copy(chunk);
+    }
+    if (size + length > maxFrameBytes) {
+      discard();
+      throw new IllegalArgumentException("Frame exceeds " + maxFrameBytes + " bytes");
+    }
+    reserve(length);
+    chunks.add(copy(chunk));
+    size += length;
+    if (!last) {
+      return null;
+    }
+
+    // The chunks and the frame are both live until the last chunk has been copied
+    reserve(size);
+    ByteBuffer frame = ByteBuffer.allocate((int) size);
+    for (ByteBuffer part : chunks) {
+      frame.put(part);
+    }
+    roomBytes.addAndGet(-size);
+    discard();
+    return frame.flip().asReadOnlyBuffer();
+  }
+
+  private void reserve(long bytes) {
+    if (roomBytes.addAndGet(bytes) > maxRoomBytes) {
+      roomBytes.addAndGet(-bytes);
+      discard();
+      throw new IllegalArgumentException("Room has more than " + maxRoomBytes + " bytes in flight");
+    }
+  }
+
+  /** Drops a frame that will not be completed, returning its bytes to the room's allowance. */
+  void discard() {
+    if (size > 0) {
+      roomBytes.addAndGet(-size);
+    }
+    chunks.clear();
+    size = 0;
+  }
+
+  private static ByteBuffer copy(ByteBuffer payload) {
+    ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+    copy.put(payload.duplicate()).flip();
+    return copy.asReadOnlyBuffer();
+  }
+}
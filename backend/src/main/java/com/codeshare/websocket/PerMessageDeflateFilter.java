@@ -0,0 +1,106 @@
+package com.codeshare.websocket;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Controls permessage-deflate (RFC 7692) on the Yjs endpoints. Tomcat negotiates the extension
+ * straight from the client's {@code Sec-WebSocket-Extensions} offer, so this filter rewrites the
+ * offer before the upgrade: it drops it when compression is disabled and otherwise asks for {@code
+ * server_no_context_takeover}. Without context takeover every message is compressed on its own, so
+ * the server keeps no sliding window between messages for each of its many idle sessions.
+ *
+ * <p>Once negotiated, Tomcat deflates every message it sends: its encoder has no size threshold and
+ * no hook to skip a message, so {@code websocket.compression.min-bytes} only applies on the Netty
+ * engine.
+ */
+@Component
+public class PerMessageDeflateFilter extends OncePerRequestFilter {
+
+  private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+  private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+  private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+  private final boolean enabled;
+  private final boolean serverNoContextTakeover;
+
+  public PerMessageDeflateFilter(
+      @Value("${websocket.compression.enabled:true}") boolean enabled,
+      @Value("${websocket.compression.server-no-context-takeover:true}")
+          boolean serverNoContextTakeover) {
+    this.enabled = enabled;
+    this.serverNoContextTakeover = serverNoContextTakeover;
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    return !(uri.startsWith("/ws/yjs/") || uri.equals("/ws/mux"))
+        || request.getHeader(EXTENSIONS_HEADER) == null;
+  }
+
+  @Override
+  protected void doFilterInternal(
+      HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    List<String> offers = new ArrayList<>();
+    for (Enumeration<String> e = request.getHeaders(EXTENSIONS_HEADER); e.hasMoreElements(); ) {
+      String rewritten = rewriteOffers(e.nextElement(), enabled, serverNoContextTakeover);
+      if (rewritten != null) {
+        offers.add(rewritten);
+      }
+    }
+    filterChain.doFilter(
+        new HttpServletRequestWrapper(request) {
+          @Override
+          public String getHeader(String name) {
+            if (!EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+              return super.getHeader(name);
+            }
+            return offers.isEmpty() ? null : String.join(", ", offers);
+          }
+
+          @Override
+          public Enumeration<String> getHeaders(String name) {
+            if (!EXTENSIONS_HEADER.equalsIgnoreCase(name)) {
+              return super.getHeaders(name);
+            }
+            return Collections.enumeration(offers);
+          }
+        },
+        response);
+  }
+
+  /** Rewrites one header value's comma-separated offers; returns null if none are left. */
+  static String rewriteOffers(String header, boolean enabled, boolean serverNoContextTakeover) {
+    List<String> kept = new ArrayList<>();
+    for (String offer : header.split(",")) {
+      offer = offer.trim();
+      int semicolon = offer.indexOf(';');
+      String name = (semicolon < 0 ? offer : offer.substring(0, semicolon)).trim();
+      if (PERMESSAGE_DEFLATE.equalsIgnoreCase(name)) {
+        if (!enabled) {
+          continue;
+        }
+        if (serverNoContextTakeover && !offer.contains(SERVER_NO_CONTEXT_TAKEOVER)) {
+          offer = offer + "; " + SERVER_NO_CONTEXT_TAKEOVER;
+        }
+      }
+      if (!offer.isEmpty()) {
+        kept.add(offer);
+      }
+    }
+    return kept.isEmpty() ? null : String.join(", ", kept);
+  }
+}
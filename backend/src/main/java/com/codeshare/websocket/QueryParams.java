@@ -0,0 +1,26 @@
+package com.codeshare.websocket;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Parses a handshake URI's query string; done once per connection, never per message. */
+final class QueryParams {
+
+  private QueryParams() {}
+
+  static Map<String, String> parse(URI uri) {
+    String query = uri != null ? uri.getQuery() : null;
+    if (query == null || query.isEmpty()) {
+      return Map.of();
+    }
+    Map<String, String> params = new HashMap<>();
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0 && eq < pair.length() - 1) {
+        params.putIfAbsent(pair.substring(0, eq), pair.substring(eq + 1));
+      }
+    }
+    return params;
+  }
+}
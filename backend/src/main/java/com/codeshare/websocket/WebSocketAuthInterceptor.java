@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.web.socket.WebSocketHandler;
@@ -16,10 +17,24 @@ public class WebSocketAuthInterceptor implements HandshakeInterceptor {
 
   private final JwtService jwtService;
   private final Set<String> allowedOrigins;
+  private final AdmissionController admissionController;
+  // Off in density mode: nothing reads the email after the handshake, so it is only logged
+  private final boolean keepEmail;
 
-  public WebSocketAuthInterceptor(JwtService jwtService, Set<String> allowedOrigins) {
+  public WebSocketAuthInterceptor(
+      JwtService jwtService, Set<String> allowedOrigins, AdmissionController admissionController) {
+    this(jwtService, allowedOrigins, admissionController, true);
+  }
+
+  public WebSocketAuthInterceptor(
+      JwtService jwtService,
+      Set<String> allowedOrigins,
+      AdmissionController admissionController,
+      boolean keepEmail) {
     this.jwtService = jwtService;
     this.allowedOrigins = allowedOrigins;
+    this.admissionController = admissionController;
+    this.keepEmail = keepEmail;
   }
 
   @Override
@@ -30,6 +45,17 @@ public class WebSocketAuthInterceptor implements HandshakeInterceptor {
       Map<String, Object> attributes) {
     logger.info("WebSocket handshake for: {}", request.getURI());
 
+    // 0. Refuse early, before any token parsing, if this instance is at capacity
+    String limit = admissionController.admit();
+    if (limit != null) {
+      logger.warn("WebSocket handshake rejected: {} limit reached", limit);
+      response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+      response
+          .getHeaders()
+          .set("Retry-After", String.valueOf(admissionController.retryAfterSeconds()));
+      return false;
+    }
+
     // 1. Validate Origin against allowlist
     String origin = request.getHeaders().getFirst("Origin");
     if (origin != null && !allowedOrigins.contains(origin)) {
@@ -84,7 +110,9 @@ public class WebSocketAuthInterceptor implements HandshakeInterceptor {
     String email = jwtService.extractEmail(token);
     String userIdStr = jwtService.extractClaim(token, "userId");
     attributes.put("userId", userIdStr);
-    attributes.put("email", email);
+    if (keepEmail) {
+      attributes.put("email", email);
+    }
 
     logger.info("WebSocket handshake successful for user: {}", email);
     return true;
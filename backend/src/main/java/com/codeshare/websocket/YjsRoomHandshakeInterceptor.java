@@ -0,0 +1,69 @@
+package com.codeshare.websocket;
+
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+/**
+ * Resolves which Yjs room a connection is for while the handshake is still plain HTTP, so the
+ * handler never looks at the URI again. Handshakes without a room are rejected.
+ */
+public class YjsRoomHandshakeInterceptor implements HandshakeInterceptor {
+  private static final Logger logger = LoggerFactory.getLogger(YjsRoomHandshakeInterceptor.class);
+
+  public static final String ROOM_ID_ATTRIBUTE = "yjs.roomId";
+  public static final String RESUME_FROM_ATTRIBUTE = "yjs.resumeFrom";
+  public static final String SPECTATOR_ATTRIBUTE = "yjs.spectator";
+
+  private static final String PATH_PREFIX = "/ws/yjs/";
+
+  @Override
+  public boolean beforeHandshake(
+      ServerHttpRequest request,
+      ServerHttpResponse response,
+      WebSocketHandler wsHandler,
+      Map<String, Object> attributes) {
+    Map<String, String> params = QueryParams.parse(request.getURI());
+
+    // Path format: /ws/yjs/{roomId}; the roomId query parameter is kept for backward compatibility
+    String path = request.getURI().getPath();
+    String roomId =
+        path != null && path.startsWith(PATH_PREFIX) && path.length() > PATH_PREFIX.length()
+            ? path.substring(PATH_PREFIX.length())
+            : params.get("roomId");
+    if (roomId == null) {
+      logger.warn("Yjs handshake rejected: no roomId in {}", request.getURI());
+      response.setStatusCode(HttpStatus.BAD_REQUEST);
+      return false;
+    }
+    attributes.put(ROOM_ID_ATTRIBUTE, roomId);
+    attributes.put(RESUME_FROM_ATTRIBUTE, parseResumeFrom(params.get("seq")));
+    attributes.put(SPECTATOR_ATTRIBUTE, "spectator".equals(params.get("mode")));
+    return true;
+  }
+
+  /** The update sequence a reconnecting client last saw (its {@code seq} param), or -1. */
+  private static long parseResumeFrom(String sequence) {
+    if (sequence == null) {
+      return -1L;
+    }
+    try {
+      return Long.parseLong(sequence);
+    } catch (NumberFormatException e) {
+      logger.debug("Ignoring invalid resume sequence: {}", sequence);
+      return -1L;
+    }
+  }
+
+  @Override
+  public void afterHandshake(
+      ServerHttpRequest request,
+      ServerHttpResponse response,
+      WebSocketHandler wsHandler,
+      Exception exception) {}
+}
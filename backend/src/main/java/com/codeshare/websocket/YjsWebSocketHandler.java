@@ -1,80 +1,186 @@
 package com.codeshare.websocket;
 
-import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.room.YjsRoom;
+import com.codeshare.websocket.room.YjsRoomRegistry;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.HeartbeatWheel.Heartbeat;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OutboundSessionFactory;
 import jakarta.annotation.PreDestroy;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
-
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+
+/**
+ * Serves y-websocket rooms. Each active room is a {@link YjsRoom} that keeps a merged copy of the
+ * document, answers sync step 1 itself and relays updates and awareness frames between its sessions
+ * and, via Redis, to other instances. This handler only routes: container threads hand frames to
+ * the room's mailbox, which processes them in order on a virtual thread.
+ *
+ * <p>The room is resolved once: {@link YjsRoomHandshakeInterceptor} reads it from the handshake and
+ * the connection keeps its room and outbound queue in one session attribute, so relaying a frame
+ * takes one attribute lookup and one copy. Frames are never decoded to text: the inbound frame is
+ * copied once and the same read-only bytes are queued for every recipient's {@link
+ * OutboundSession}.
+ *
+ * <p>Large frames are received as partial messages: the container hands over fixed-size chunks,
+ * which {@link PartialFrame} collects up to a per-frame and a per-room limit. A session that goes
+ * over either is closed with 1009 (message too big).
+ *
+ * <p>Every connection is tracked by the {@link HeartbeatWheel}, which pings it through its outbound
+ * queue when it goes quiet and leaves the room on its behalf if the peer has silently vanished.
+ *
+ * <p>Connections opened with {@code ?mode=spectator} join as read-only spectators: the room sends
+ * them batched document updates only, and everything they send is dropped here without a copy.
+ *
+ * <p>In density mode the handshake attributes are dropped once the connection has been resolved, so
+ * an idle session keeps its {@link Connection} and nothing else.
+ */
 @Component
-public class YjsWebSocketHandler extends TextWebSocketHandler
-    implements YjsRedisService.YjsMessageHandler {
+public class YjsWebSocketHandler extends BinaryWebSocketHandler {
   private static final Logger logger = LoggerFactory.getLogger(YjsWebSocketHandler.class);
 
-  private final Map<String, Set<WebSocketSession>> roomSessions = new ConcurrentHashMap<>();
-  private final YjsRedisService yjsRedisService;
-  private final MetricsService metricsService;
+  // Session attribute holding the session's Connection
+  private static final String CONNECTION_ATTRIBUTE = "yjs.connection";
 
-  public YjsWebSocketHandler(YjsRedisService yjsRedisService, MetricsService metricsService) {
-    this.yjsRedisService = yjsRedisService;
+  private final YjsRoomRegistry roomRegistry;
+  private final MetricsService metricsService;
+  private final OutboundSessionFactory outboundSessionFactory;
+  private final HeartbeatWheel heartbeatWheel;
+  private final ConnectionDrain connectionDrain;
+  private final long maxFrameBytes;
+  private final long maxRoomPartialBytes;
+  private final boolean density;
+
+  /** Everything a connection needs per frame, resolved when it is established. */
+  private record Connection(
+      YjsRoom room,
+      OutboundSession outbound,
+      String userId,
+      Heartbeat heartbeat,
+      PartialFrame partial,
+      boolean spectator) {}
+
+  public YjsWebSocketHandler(
+      YjsRoomRegistry roomRegistry,
+      MetricsService metricsService,
+      OutboundSessionFactory outboundSessionFactory,
+      HeartbeatWheel heartbeatWheel,
+      ConnectionDrain connectionDrain,
+      @Value("${websocket.yjs.frames.max-frame-bytes:16777216}") long maxFrameBytes,
+      @Value("${websocket.yjs.frames.max-room-bytes:67108864}") long maxRoomPartialBytes,
+      @Value("${websocket.density.enabled:false}") boolean density) {
+    this.roomRegistry = roomRegistry;
     this.metricsService = metricsService;
+    this.outboundSessionFactory = outboundSessionFactory;
+    this.heartbeatWheel = heartbeatWheel;
+    this.connectionDrain = connectionDrain;
+    this.maxFrameBytes = maxFrameBytes;
+    this.maxRoomPartialBytes = maxRoomPartialBytes;
+    this.density = density;
+  }
+
+  @Override
+  public boolean supportsPartialMessages() {
+    return true;
   }
 
   @Override
   public void afterConnectionEstablished(WebSocketSession session) {
     logger.info("Yjs WebSocket connection established: {}", session.getUri());
 
-    String roomId = extractRoomId(session);
-    if (roomId != null) {
-      logger.info("Adding session to room: {}", roomId);
-      roomSessions.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet()).add(session);
+    Map<String, Object> attributes = session.getAttributes();
+    String roomId = (String) attributes.get(YjsRoomHandshakeInterceptor.ROOM_ID_ATTRIBUTE);
+    if (roomId == null) {
+      logger.warn("No roomId found in session: {}", session.getUri());
+      return;
+    }
+
+    logger.info("Adding session to room: {}", roomId);
+    YjsRoom room = roomRegistry.acquire(roomId);
+    // The room's id rather than the one parsed from this handshake, so sessions share one copy
+    OutboundSession outbound = outboundSessionFactory.create(session, room.getRoomId());
+    // Get user ID from session attributes (set during WebSocket handshake)
+    String userId = (String) attributes.get("userId");
+    if (userId == null) {
+      userId = "anonymous";
+    }
+    boolean spectator =
+        Boolean.TRUE.equals(attributes.get(YjsRoomHandshakeInterceptor.SPECTATOR_ATTRIBUTE));
+    Connection connection =
+        new Connection(
+            room,
+            outbound,
+            userId,
+            heartbeatWheel.register(session, outbound::ping, () -> disconnect(session)),
+            new PartialFrame(room.getPartialFrameBytes(), maxFrameBytes, maxRoomPartialBytes),
+            spectator);
+    Long resumeFrom = (Long) attributes.get(YjsRoomHandshakeInterceptor.RESUME_FROM_ATTRIBUTE);
+    if (density) {
+      attributes.clear();
+    }
+    attributes.put(CONNECTION_ATTRIBUTE, connection);
+    connectionDrain.track(session);
+    if (spectator) {
+      room.joinSpectator(outbound);
+      metricsService.recordSpectatorConnection(roomId);
+      return;
+    }
+    room.join(outbound, resumeFrom != null ? resumeFrom : -1);
+
+    // Record metrics
+    metricsService.recordWebSocketConnection(roomId);
+  }
 
-      // Register this handler for Redis pub/sub if this is the first session in the room
-      if (roomSessions.get(roomId).size() == 1) {
-        yjsRedisService.registerRoomHandler(roomId, this);
+  @Override
+  protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    if (connection != null) {
+      connection.heartbeat().touch();
+      if (connection.spectator()) {
+        // Its sync step 1 and awareness would only cost the room work; the chunk is not even kept
+        return;
+      }
+      // The container reuses its receive buffer once we return, and the room handles the frame
+      // later, so the inbound bytes are copied once; every recipient gets a view of the same buffer
+      ByteBuffer frame;
+      try {
+        frame = connection.partial().append(message.getPayload(), message.isLast());
+      } catch (IllegalArgumentException e) {
+        logger.warn("Closing Yjs session {}: {}", session.getId(), e.getMessage());
+        closeQuietly(session, CloseStatus.TOO_BIG_TO_PROCESS);
+        return;
+      }
+      if (frame == null) {
+        return;
       }
 
       // Record metrics
-      metricsService.recordWebSocketConnection(roomId);
+      metricsService.recordMessageReceived(connection.room().getRoomId());
 
-      logger.info("Total sessions in room {}: {}", roomId, roomSessions.get(roomId).size());
-    } else {
-      logger.warn("No roomId found in session: {}", session.getUri());
+      connection.room().receive(connection.outbound(), connection.userId(), frame);
     }
   }
 
   @Override
-  protected void handleTextMessage(WebSocketSession session, TextMessage message) {
-    String roomId = extractRoomId(session);
-    if (roomId != null && roomSessions.containsKey(roomId)) {
-      logger.debug("Broadcasting message to room: {}", roomId);
-
-      // Get user ID from session attributes (set during WebSocket handshake)
-      String userId = (String) session.getAttributes().get("userId");
+  protected void handlePongMessage(WebSocketSession session, PongMessage message) {
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    if (connection != null) {
+      connection.heartbeat().touch();
+    }
+  }
 
-      // Record metrics
-      metricsService.recordMessageReceived(roomId);
-
-      // Publish to Redis for cross-instance communication
-      yjsRedisService.publishDocumentUpdate(
-          roomId, userId != null ? userId : "anonymous", message.getPayload());
-
-      // Broadcast the message to all other sessions in the room (local instance)
-      roomSessions.get(roomId).stream()
-          .filter(s -> s != session && s.isOpen())
-          .forEach(
-              s -> {
-                try {
-                  s.sendMessage(message);
-                  metricsService.recordMessageSent(roomId);
-                } catch (Exception e) {
-                  logger.error("Failed to send message to session: {}", e.getMessage());
-                }
-              });
+  private static void closeQuietly(WebSocketSession session, CloseStatus status) {
+    try {
+      session.close(status);
+    } catch (Exception e) {
+      logger.warn("Error closing WebSocket session: {}", e.getMessage());
     }
   }
 
@@ -82,97 +188,35 @@ public class YjsWebSocketHandler extends TextWebSocketHandler
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
     logger.info("Yjs WebSocket connection closed: {}", session.getUri());
 
-    String roomId = extractRoomId(session);
-    if (roomId != null) {
-      roomSessions.get(roomId).remove(session);
-
-      // Record metrics
-      metricsService.recordWebSocketDisconnection(roomId);
-
-      // Unregister Redis handler if no more sessions in this room
-      if (roomSessions.get(roomId).isEmpty()) {
-        yjsRedisService.unregisterRoomHandler(roomId);
-        roomSessions.remove(roomId);
-      }
-    } else {
-      // Fallback: remove from all rooms
-      roomSessions.values().forEach(sessions -> sessions.remove(session));
-      roomSessions.entrySet().removeIf(entry -> entry.getValue().isEmpty());
+    Connection connection = (Connection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    // A reaped session has already left its room
+    if (connection != null && connection.heartbeat().cancel()) {
+      disconnect(session);
     }
   }
 
-  private String extractRoomId(WebSocketSession session) {
-    if (session.getUri() == null) {
-      return null;
-    }
-
-    String path = session.getUri().getPath();
-    logger.debug("Extracting roomId from path: {}", path);
+  private void disconnect(WebSocketSession session) {
+    Connection connection = (Connection) session.getAttributes().remove(CONNECTION_ATTRIBUTE);
+    if (connection != null) {
+      connection.partial().discard();
+      connection.outbound().release();
+      connectionDrain.untrack(session);
+      connection.room().leave(connection.outbound());
+      roomRegistry.release(connection.room());
 
-    // Path format: /ws/yjs/{roomId}
-    if (path.startsWith("/ws/yjs/")) {
-      String roomId = path.substring("/ws/yjs/".length());
-      if (!roomId.isEmpty()) {
-        return roomId;
+      // Record metrics
+      if (connection.spectator()) {
+        metricsService.recordSpectatorDisconnection(connection.room().getRoomId());
+      } else {
+        metricsService.recordWebSocketDisconnection(connection.room().getRoomId());
       }
     }
-
-    // Fallback: try query parameter (for backward compatibility)
-    if (session.getUri().getQuery() != null) {
-      String query = session.getUri().getQuery();
-      logger.debug("Trying query parameter: {}", query);
-
-      return Arrays.stream(query.split("&"))
-          .map(s -> s.split("="))
-          .filter(pair -> pair.length == 2 && pair[0].equals("roomId"))
-          .map(pair -> pair[1])
-          .findFirst()
-          .orElse(null);
-    }
-
-    return null;
-  }
-
-  @Override
-  public void handleMessage(String roomId, YjsRedisService.YjsMessage message) {
-    // Handle messages from Redis (from other instances)
-    if (roomSessions.containsKey(roomId)) {
-      logger.debug("Handling Redis message for room {}: {}", roomId, message.getType());
-
-      TextMessage textMessage = new TextMessage(message.getContent());
-
-      // Broadcast to all local sessions in the room
-      roomSessions.get(roomId).stream()
-          .filter(WebSocketSession::isOpen)
-          .forEach(
-              session -> {
-                try {
-                  session.sendMessage(textMessage);
-                } catch (Exception e) {
-                  logger.error("Failed to send Redis message to session: {}", e.getMessage());
-                }
-              });
-    }
   }
 
   @PreDestroy
   public void cleanup() {
-    // Close all WebSocket sessions gracefully
-    roomSessions
-        .values()
-        .forEach(
-            sessions ->
-                sessions.forEach(
-                    session -> {
-                      try {
-                        if (session.isOpen()) {
-                          session.close(CloseStatus.SERVER_ERROR);
-                        }
-                      } catch (Exception e) {
-                        logger.warn("Error closing WebSocket session: {}", e.getMessage());
-                      }
-                    }));
-    roomSessions.clear();
+    // Sessions have been closed in waves by the ConnectionDrain by now
+    roomRegistry.clear();
     logger.info("YjsWebSocketHandler cleanup completed");
   }
 }
@@ -0,0 +1,159 @@
+package com.codeshare.websocket.netty;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.ServerHttpAsyncRequestControl;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import reactor.netty.http.server.HttpServerRequest;
+
+/**
+ * The request and response of a WebSocket handshake on the Netty engine, seen as Spring's servlet
+ * {@link ServerHttpRequest} and {@link ServerHttpResponse}, so the same {@code
+ * HandshakeInterceptor} chain decides both engines' handshakes. Only what interceptors use is
+ * supported: the URI, headers, addresses and, on the response, a status and headers that are sent
+ * if the handshake is refused. There is no body either way.
+ */
+final class NettyHandshake {
+
+  private NettyHandshake() {}
+
+  static final class Request implements ServerHttpRequest {
+    private final HttpServerRequest request;
+    private final URI uri;
+    private final HttpHeaders headers = new HttpHeaders();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private AsyncControl asyncControl;
+
+    Request(HttpServerRequest request) {
+      this.request = request;
+      // Path and query only; interceptors never look at the scheme or host
+      this.uri = URI.create(request.uri());
+      request.requestHeaders().forEach(header -> headers.add(header.getKey(), header.getValue()));
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+      return HttpMethod.valueOf(request.method().name());
+    }
+
+    @Override
+    public URI getURI() {
+      return uri;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return headers;
+    }
+
+    @Override
+    public InputStream getBody() {
+      return InputStream.nullInputStream();
+    }
+
+    @Override
+    public Principal getPrincipal() {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return request.hostAddress();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return request.remoteAddress();
+    }
+
+    @Override
+    public ServerHttpAsyncRequestControl getAsyncRequestControl(ServerHttpResponse response) {
+      if (asyncControl == null) {
+        asyncControl = new AsyncControl();
+      }
+      return asyncControl;
+    }
+  }
+
+  /**
+   * Netty holds no thread for a request, so a handshake is asynchronous whether or not this is
+   * started: the control only keeps the state an interceptor sets, and the handshake is answered as
+   * soon as the interceptors return, as it would be if they had completed it.
+   */
+  static final class AsyncControl implements ServerHttpAsyncRequestControl {
+    private boolean started;
+    private boolean completed;
+
+    @Override
+    public void start() {
+      start(-1);
+    }
+
+    @Override
+    public void start(long timeout) {
+      started = !completed;
+    }
+
+    @Override
+    public boolean isStarted() {
+      return started;
+    }
+
+    @Override
+    public void complete() {
+      started = false;
+      completed = true;
+    }
+
+    @Override
+    public boolean isCompleted() {
+      return completed;
+    }
+  }
+
+  static final class Response implements ServerHttpResponse {
+    private final HttpHeaders headers = new HttpHeaders();
+    // What a refused handshake is answered with when the interceptor did not say
+    private HttpStatusCode status = HttpStatus.FORBIDDEN;
+
+    HttpStatusCode status() {
+      return status;
+    }
+
+    @Override
+    public void setStatusCode(HttpStatusCode status) {
+      this.status = status;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return headers;
+    }
+
+    @Override
+    public OutputStream getBody() {
+      return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
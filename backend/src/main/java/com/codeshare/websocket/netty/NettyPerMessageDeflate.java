@@ -0,0 +1,92 @@
+package com.codeshare.websocket.netty;
+
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.netty.Connection;
+import reactor.netty.NettyPipeline;
+import reactor.netty.http.server.HttpServerRequest;
+
+/**
+ * Negotiates permessage-deflate (RFC 7692) for the Netty engine with a size threshold: messages
+ * under {@code minBytes} go out uncompressed, with RSV1 clear, as the extension allows, since
+ * deflating a few dozen bytes of Yjs update costs more CPU than the bytes it saves. Reactor Netty's
+ * own {@code compress} builds its handshaker without a filter, so this one takes its place,
+ * installed the same way just before the upgrade.
+ *
+ * <p>Only messages are skipped, never a continuation on its own: a fragmented message is compressed
+ * or not as its first frame was. Whatever the client sends is inflated as flagged.
+ */
+final class NettyPerMessageDeflate implements WebSocketExtensionFilterProvider {
+  private static final Logger logger = LoggerFactory.getLogger(NettyPerMessageDeflate.class);
+
+  // Reactor Netty's defaults for its own handshaker
+  private static final int COMPRESSION_LEVEL = 6;
+  private static final int MAX_WINDOW_BITS = 15;
+
+  private final WebSocketExtensionFilter encoderFilter;
+
+  NettyPerMessageDeflate(int minBytes) {
+    this.encoderFilter =
+        frame ->
+            (frame instanceof BinaryWebSocketFrame || frame instanceof TextWebSocketFrame)
+                && frame.content().readableBytes() < minBytes;
+  }
+
+  @Override
+  public WebSocketExtensionFilter encoderFilter() {
+    return encoderFilter;
+  }
+
+  @Override
+  public WebSocketExtensionFilter decoderFilter() {
+    return WebSocketExtensionFilter.NEVER_SKIP;
+  }
+
+  /**
+   * Readies the connection to answer the client's permessage-deflate offer, if it made one, in the
+   * upgrade response {@code sendWebsocket} is about to write. Runs on the connection's event loop.
+   */
+  void offer(Connection connection, HttpServerRequest request) {
+    if (!request.requestHeaders().contains(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS)) {
+      return;
+    }
+    WebSocketServerExtensionHandler handler =
+        new WebSocketServerExtensionHandler(
+            new PerMessageDeflateServerExtensionHandshaker(
+                COMPRESSION_LEVEL,
+                ZlibCodecFactory.isSupportingWindowSizeAndMemLevel(),
+                MAX_WINDOW_BITS,
+                false,
+                false,
+                this));
+    HttpRequest upgrade =
+        new DefaultHttpRequest(request.version(), request.method(), request.uri());
+    upgrade.headers().set(request.requestHeaders());
+    ChannelPipeline pipeline = connection.channel().pipeline();
+    try {
+      // Reads the offer from a copy of the request, which then ends at the tail, as Reactor does
+      handler.channelRead(pipeline.context(NettyPipeline.ReactiveBridge), upgrade);
+      String codec =
+          pipeline.get(NettyPipeline.HttpCodec) != null
+              ? NettyPipeline.HttpCodec
+              : pipeline.context(HttpServerCodec.class).name();
+      // Answers the offer in the 101 and then swaps itself for the deflate encoder and decoder
+      pipeline.addAfter(codec, NettyPipeline.WsCompressionHandler, handler);
+    } catch (Exception e) {
+      // The upgrade goes ahead without the extension
+      logger.warn("Could not offer permessage-deflate: {}", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package com.codeshare.websocket.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * A WebSocket connection on the Netty engine, seen as a Spring {@link WebSocketSession}, so the
+ * handler, outbound queues, heartbeat and drain treat both engines' sessions the same way.
+ *
+ * <p>{@link #sendMessage} keeps the servlet contract of returning once the frame has been written,
+ * which the outbound queue's send-time limit relies on. It waits on a future rather than on Netty's
+ * own, so the writer's virtual thread unmounts instead of pinning its carrier, and it never waits
+ * when called on the event loop, where the write could only complete after it returned.
+ */
+final class NettyWebSocketSession implements WebSocketSession {
+  private final Channel channel;
+  private final URI uri;
+  private final HttpHeaders handshakeHeaders;
+  private final Map<String, Object> attributes;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile int textMessageSizeLimit;
+  private volatile int binaryMessageSizeLimit;
+
+  NettyWebSocketSession(
+      Channel channel, URI uri, HttpHeaders handshakeHeaders, Map<String, Object> attributes) {
+    this.channel = channel;
+    this.uri = uri;
+    this.handshakeHeaders = handshakeHeaders;
+    this.attributes = attributes;
+  }
+
+  @Override
+  public String getId() {
+    return channel.id().asLongText();
+  }
+
+  @Override
+  public URI getUri() {
+    return uri;
+  }
+
+  @Override
+  public HttpHeaders getHandshakeHeaders() {
+    return handshakeHeaders;
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public Principal getPrincipal() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return (InetSocketAddress) channel.localAddress();
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return (InetSocketAddress) channel.remoteAddress();
+  }
+
+  @Override
+  public String getAcceptedProtocol() {
+    return null;
+  }
+
+  @Override
+  public void setTextMessageSizeLimit(int messageSizeLimit) {
+    this.textMessageSizeLimit = messageSizeLimit;
+  }
+
+  @Override
+  public int getTextMessageSizeLimit() {
+    return textMessageSizeLimit;
+  }
+
+  @Override
+  public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+    this.binaryMessageSizeLimit = messageSizeLimit;
+  }
+
+  @Override
+  public int getBinaryMessageSizeLimit() {
+    return binaryMessageSizeLimit;
+  }
+
+  @Override
+  public List<WebSocketExtension> getExtensions() {
+    return List.of();
+  }
+
+  @Override
+  public void sendMessage(WebSocketMessage<?> message) throws IOException {
+    if (!isOpen()) {
+      throw new IOException("WebSocket session " + getId() + " is closed");
+    }
+    WebSocketFrame frame =
+        switch (message) {
+          case BinaryMessage binary -> new BinaryWebSocketFrame(
+              binary.isLast(), 0, Unpooled.wrappedBuffer(binary.getPayload()));
+          case PingMessage ping -> new PingWebSocketFrame(
+              Unpooled.wrappedBuffer(ping.getPayload()));
+          case PongMessage pong -> new PongWebSocketFrame(
+              Unpooled.wrappedBuffer(pong.getPayload()));
+          case TextMessage text -> new TextWebSocketFrame(text.isLast(), 0, text.getPayload());
+          default -> throw new IllegalArgumentException("Unsupported message: " + message);
+        };
+    ChannelFuture write = channel.writeAndFlush(frame);
+    if (!channel.eventLoop().inEventLoop()) {
+      await(write);
+    }
+  }
+
+  private static void await(ChannelFuture write) throws IOException {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    write.addListener(
+        future -> {
+          if (future.isSuccess()) {
+            done.complete(null);
+          } else {
+            done.completeExceptionally(future.cause());
+          }
+        });
+    try {
+      done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed.get() && channel.isActive();
+  }
+
+  @Override
+  public void close() {
+    close(CloseStatus.NORMAL);
+  }
+
+  @Override
+  public void close(CloseStatus status) {
+    if (closed.compareAndSet(false, true) && channel.isActive()) {
+      channel
+          .writeAndFlush(new CloseWebSocketFrame(status.getCode(), status.getReason()))
+          .addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.codeshare.websocket.netty;
+
+import com.codeshare.infrastructure.security.JwtService;
+import com.codeshare.websocket.AdmissionController;
+import com.codeshare.websocket.ConnectionDrain;
+import com.codeshare.websocket.WebSocketAuthInterceptor;
+import com.codeshare.websocket.YjsRoomHandshakeInterceptor;
+import com.codeshare.websocket.YjsWebSocketHandler;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import reactor.core.publisher.Mono;
+import reactor.netty.Connection;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.server.WebsocketServerSpec;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+
+/**
+ * Serves {@code /ws/yjs/{roomId}} from a Reactor Netty server on its own port instead of the
+ * servlet container, selected with {@code websocket.yjs.engine=netty}; REST and {@code /ws/editor}
+ * stay on the servlet stack. Reads happen on Netty's event loops, with no container thread per
+ * connection.
+ *
+ * <p>Only the transport differs. Handshakes go through the same interceptors as the servlet
+ * endpoint (drain, admission, origin and JWT, room), and each connection is handed to the same
+ * {@link YjsWebSocketHandler} as a {@link NettyWebSocketSession}, so rooms, the Redis relay,
+ * outbound queues, heartbeats, drain and metrics behave identically on both engines. Netty decodes
+ * each wire frame, of at most {@code max-frame-bytes}, before handing it over; a message the client
+ * sends in fragments arrives as its first frame and continuations, which the handler puts together
+ * as it does the servlet container's chunks.
+ *
+ * <p>permessage-deflate is negotiated by {@link NettyPerMessageDeflate}, which leaves messages
+ * under {@code websocket.compression.min-bytes} uncompressed.
+ *
+ * <p>Stops after the {@link ConnectionDrain}, so drained sessions still have a server while they
+ * are told to leave.
+ */
+@Component
+@ConditionalOnProperty(name = "websocket.yjs.engine", havingValue = "netty")
+public class NettyYjsServer implements SmartLifecycle {
+  private static final Logger logger = LoggerFactory.getLogger(NettyYjsServer.class);
+
+  private static final String PATH_PREFIX = "/ws/yjs/";
+
+  private final WebSocketHandler handler;
+  private final List<HandshakeInterceptor> interceptors;
+  private final String host;
+  private final int port;
+  private final WebsocketServerSpec spec;
+  // Null when compression is disabled
+  private final NettyPerMessageDeflate deflate;
+  private volatile DisposableServer server;
+
+  @Autowired
+  public NettyYjsServer(
+      YjsWebSocketHandler handler,
+      ConnectionDrain connectionDrain,
+      JwtService jwtService,
+      AdmissionController admissionController,
+      @Value("${security.cors.allowed-origins:http://localhost:3000,https://localhost:3000}")
+          String allowedOrigins,
+      @Value("${websocket.yjs.netty.host:0.0.0.0}") String host,
+      @Value("${websocket.yjs.netty.port:8081}") int port,
+      @Value("${websocket.yjs.frames.max-frame-bytes:16777216}") int maxFrameBytes,
+      @Value("${websocket.compression.enabled:true}") boolean compression,
+      @Value("${websocket.compression.min-bytes:256}") int compressMinBytes,
+      @Value("${websocket.density.enabled:false}") boolean density) {
+    this(
+        handler,
+        List.of(
+            connectionDrain,
+            new WebSocketAuthInterceptor(
+                jwtService, Set.of(allowedOrigins.split(",")), admissionController, !density),
+            new YjsRoomHandshakeInterceptor()),
+        host,
+        port,
+        WebsocketServerSpec.builder().maxFramePayloadLength(maxFrameBytes).build(),
+        compression ? new NettyPerMessageDeflate(compressMinBytes) : null);
+  }
+
+  NettyYjsServer(
+      WebSocketHandler handler,
+      List<HandshakeInterceptor> interceptors,
+      String host,
+      int port,
+      WebsocketServerSpec spec,
+      NettyPerMessageDeflate deflate) {
+    this.handler = handler;
+    this.interceptors = interceptors;
+    this.host = host;
+    this.port = port;
+    this.spec = spec;
+    this.deflate = deflate;
+  }
+
+  /** The port actually bound, which differs from the configured one when that is 0. */
+  int port() {
+    return server.port();
+  }
+
+  @Override
+  public void start() {
+    server = HttpServer.create().host(host).port(port).handle(this::handshake).bindNow();
+    logger.info("Yjs Netty WebSocket engine listening on {}:{}", host, server.port());
+  }
+
+  @Override
+  public void stop() {
+    DisposableServer running = server;
+    if (running != null) {
+      running.disposeNow(Duration.ofSeconds(5));
+      server = null;
+    }
+  }
+
+  @Override
+  public boolean isRunning() {
+    return server != null;
+  }
+
+  @Override
+  public int getPhase() {
+    // Below the ConnectionDrain's default phase, so this stops after it
+    return DEFAULT_PHASE - 1024;
+  }
+
+  private Publisher<Void> handshake(HttpServerRequest request, HttpServerResponse response) {
+    // Requests that are not upgrades are refused by sendWebsocket itself
+    if (!request.uri().startsWith(PATH_PREFIX)) {
+      return response.sendNotFound();
+    }
+    NettyHandshake.Request handshakeRequest = new NettyHandshake.Request(request);
+    NettyHandshake.Response handshakeResponse = new NettyHandshake.Response();
+    // Removed from by the heartbeat reaper while the event loop may be reading it
+    Map<String, Object> attributes = new ConcurrentHashMap<>();
+    try {
+      for (HandshakeInterceptor interceptor : interceptors) {
+        if (!interceptor.beforeHandshake(
+            handshakeRequest, handshakeResponse, handler, attributes)) {
+          return refuse(response, handshakeResponse);
+        }
+      }
+    } catch (Exception e) {
+      logger.error("Yjs handshake failed: {}", e.getMessage());
+      return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send();
+    }
+    if (deflate != null) {
+      response.withConnection(connection -> deflate.offer(connection, request));
+    }
+    return response.sendWebsocket(
+        (in, out) -> connect(in, out, handshakeRequest, attributes), spec);
+  }
+
+  private static Mono<Void> refuse(
+      HttpServerResponse response, NettyHandshake.Response handshakeResponse) {
+    response.status(handshakeResponse.status().value());
+    handshakeResponse
+        .getHeaders()
+        .forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+    return response.send();
+  }
+
+  private Publisher<Void> connect(
+      WebsocketInbound in,
+      WebsocketOutbound out,
+      NettyHandshake.Request request,
+      Map<String, Object> attributes) {
+    AtomicReference<Connection> connection = new AtomicReference<>();
+    in.withConnection(connection::set);
+    NettyWebSocketSession session =
+        new NettyWebSocketSession(
+            connection.get().channel(), request.getURI(), request.getHeaders(), attributes);
+    AtomicReference<CloseStatus> closeStatus = new AtomicReference<>(CloseStatus.NO_CLOSE_FRAME);
+    in.receiveCloseStatus()
+        .subscribe(status -> closeStatus.set(new CloseStatus(status.code(), status.reasonText())));
+
+    try {
+      handler.afterConnectionEstablished(session);
+    } catch (Exception e) {
+      logger.error("Error establishing Yjs session {}: {}", session.getId(), e.getMessage());
+      session.close(CloseStatus.SERVER_ERROR);
+      return Mono.empty();
+    }
+    return in.receiveFrames()
+        .doOnNext(frame -> deliver(session, frame))
+        .doFinally(signal -> closed(session, closeStatus.get()))
+        .then();
+  }
+
+  /** Hands a frame to the handler; Netty releases it as soon as this returns. */
+  private void deliver(NettyWebSocketSession session, WebSocketFrame frame) {
+    WebSocketMessage<?> message =
+        switch (frame) {
+          case BinaryWebSocketFrame binary -> new BinaryMessage(
+              binary.content().nioBuffer(), binary.isFinalFragment());
+          case ContinuationWebSocketFrame continuation -> new BinaryMessage(
+              continuation.content().nioBuffer(), continuation.isFinalFragment());
+          case PongWebSocketFrame pong -> new PongMessage(pong.content().nioBuffer());
+          case TextWebSocketFrame text -> new TextMessage(text.text(), text.isFinalFragment());
+          default -> null;
+        };
+    if (message == null) {
+      return;
+    }
+    try {
+      handler.handleMessage(session, message);
+    } catch (Exception e) {
+      logger.error("Error handling Yjs frame for session {}: {}", session.getId(), e.getMessage());
+      session.close(CloseStatus.SERVER_ERROR);
+    }
+  }
+
+  private void closed(NettyWebSocketSession session, CloseStatus status) {
+    try {
+      handler.afterConnectionClosed(session, status);
+    } catch (Exception e) {
+      logger.warn("Error closing Yjs session {}: {}", session.getId(), e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.codeshare.websocket.room;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The document updates a room has most recently seen, bounded by count and bytes, so one a client
+ * sends again (a retry, or the same edits in the step 2 of a reconnect) can be dropped instead of
+ * being relayed and published once more. Yjs updates carry their client id and clock, so two
+ * updates with the same bytes are the same update.
+ *
+ * <p>Updates are looked up by a hash of their bytes, and a hit is confirmed by comparing the bytes,
+ * so a collision never drops a real update.
+ *
+ * <p>Not thread-safe: the window belongs to one room and is only touched from its mailbox.
+ */
+public class DuplicateWindow {
+
+  private final int capacity;
+  private final long maxBytes;
+  private final ArrayDeque<Key> order = new ArrayDeque<>();
+  private final Set<Key> held = new HashSet<>();
+  private long bytes;
+
+  /** An update's bytes with their hash, computed once. */
+  private record Key(byte[] update, int hash) {
+    Key(byte[] update) {
+      this(update, Arrays.hashCode(update));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key key && hash == key.hash && Arrays.equals(update, key.update);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  public DuplicateWindow(int capacity, long maxBytes) {
+    this.capacity = Math.max(capacity, 0);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Records an update; returns true if it was already in the window. Updates larger than the whole
+   * window are never held, so they are never reported as duplicates.
+   */
+  public boolean seen(byte[] update) {
+    if (capacity == 0 || update.length > maxBytes) {
+      return false;
+    }
+    Key key = new Key(update);
+    if (!held.add(key)) {
+      return true;
+    }
+    order.addLast(key);
+    bytes += update.length;
+    while (order.size() > capacity || bytes > maxBytes) {
+      Key oldest = order.pollFirst();
+      held.remove(oldest);
+      bytes -= oldest.update().length;
+    }
+    return false;
+  }
+}
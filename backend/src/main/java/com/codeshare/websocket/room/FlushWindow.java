@@ -0,0 +1,28 @@
+package com.codeshare.websocket.room;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds of a room's adaptive flush window. Document updates arriving within the window are merged
+ * and fanned out as one frame and one Redis publish. The window starts at {@code minNanos}, doubles
+ * while flushes keep carrying more than one update and shrinks back when they don't; a room that
+ * has been quiet for {@code maxNanos} sends its next update immediately.
+ */
+public record FlushWindow(long minNanos, long maxNanos) {
+
+  public static FlushWindow disabled() {
+    return new FlushWindow(0, 0);
+  }
+
+  public static FlushWindow ofMillis(long minMillis, long maxMillis) {
+    // The window grows by doubling, so it cannot start at zero
+    long min = Math.max(1, minMillis);
+    return new FlushWindow(
+        TimeUnit.MILLISECONDS.toNanos(min),
+        TimeUnit.MILLISECONDS.toNanos(Math.max(min, maxMillis)));
+  }
+
+  public boolean isEnabled() {
+    return maxNanos > 0;
+  }
+}
@@ -0,0 +1,98 @@
+package com.codeshare.websocket.room;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lanes room mailboxes run on. Ordinary rooms share the normal lane; a room that gets busy
+ * enough, by message rate or by member count, is moved to the hot lane, a separate set of threads,
+ * so a classroom of hundreds cannot hold up hundreds of small rooms, and is moved back once it
+ * calms down.
+ *
+ * <p>On either lane a mailbox runs at most {@code quantum} tasks per turn and then queues itself
+ * behind the other rooms waiting on that lane, so every room with work gets an equal share of turns
+ * however much work it has. That takes a lane with a bounded number of threads and a FIFO queue;
+ * the factory builds both lanes that way.
+ */
+public class RoomLanes {
+  private final Executor normal;
+  private final Executor hot;
+  private final int quantum;
+  private final double hotRate;
+  private final int hotMembers;
+  private final long classifyIntervalNanos;
+  private final MetricsService metricsService;
+
+  private final AtomicInteger hotRooms = new AtomicInteger();
+  private final AtomicInteger normalBusy = new AtomicInteger();
+  private final AtomicInteger hotBusy = new AtomicInteger();
+
+  public RoomLanes(
+      Executor normal,
+      Executor hot,
+      int quantum,
+      double hotRate,
+      int hotMembers,
+      long classifyIntervalMillis,
+      MetricsService metricsService) {
+    this.normal = normal;
+    this.hot = hot;
+    this.quantum = quantum > 0 ? quantum : Integer.MAX_VALUE;
+    this.hotRate = hotRate > 0 ? hotRate : Double.POSITIVE_INFINITY;
+    this.hotMembers = hotMembers > 0 ? hotMembers : Integer.MAX_VALUE;
+    this.classifyIntervalNanos = TimeUnit.MILLISECONDS.toNanos(classifyIntervalMillis);
+    this.metricsService = metricsService;
+    if (metricsService != null) {
+      metricsService.registerYjsLanes(hotRooms, normalBusy, hotBusy);
+    }
+  }
+
+  /** One lane, no quantum and no hot rooms: mailboxes drain everything they have in one turn. */
+  public static RoomLanes single(Executor executor) {
+    return new RoomLanes(executor, executor, 0, 0, 0, Long.MAX_VALUE / 1_000_000, null);
+  }
+
+  int quantum() {
+    return quantum;
+  }
+
+  long classifyIntervalNanos() {
+    return classifyIntervalNanos;
+  }
+
+  Executor executor(boolean hot) {
+    return hot ? this.hot : normal;
+  }
+
+  /**
+   * Whether a room with the given recent task rate and member count belongs on the hot lane. A hot
+   * room stays hot until both have dropped below half their thresholds, so a room hovering around a
+   * threshold doesn't flap between lanes.
+   */
+  boolean isHot(boolean hot, double tasksPerSecond, int members) {
+    if (members == 0) {
+      return false;
+    }
+    if (hot) {
+      return tasksPerSecond >= hotRate / 2 || members >= hotMembers / 2;
+    }
+    return tasksPerSecond >= hotRate || members >= hotMembers;
+  }
+
+  void moved(boolean toHot) {
+    hotRooms.addAndGet(toHot ? 1 : -1);
+    if (metricsService != null) {
+      metricsService.recordYjsRoomLaneChange(toHot ? "hot" : "normal");
+    }
+  }
+
+  void enter(boolean hot) {
+    (hot ? hotBusy : normalBusy).incrementAndGet();
+  }
+
+  void exit(boolean hot) {
+    (hot ? hotBusy : normalBusy).decrementAndGet();
+  }
+}
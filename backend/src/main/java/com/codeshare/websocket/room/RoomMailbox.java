@@ -0,0 +1,102 @@
+package com.codeshare.websocket.room;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A room's mailbox: tasks submitted from any thread run one at a time, in submission order. The
+ * mailbox only holds a thread while it has work, so an idle room costs a queue and a flag.
+ *
+ * <p>Tasks run in turns of at most the lanes' quantum; a mailbox with more work queues another turn
+ * behind the other rooms on its lane. Every so often, at the end of a turn, the room is classified
+ * by its task rate and member count and its next turn goes to the matching {@link RoomLanes lane}.
+ */
+public class RoomMailbox implements Executor {
+  private static final Logger logger = LoggerFactory.getLogger(RoomMailbox.class);
+
+  private final String roomId;
+  private final RoomLanes lanes;
+  private final IntSupplier members;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Runnable drainTask = this::drain;
+
+  // Written only by the turn in progress; read by submitters to pick the lane
+  private volatile boolean hot;
+  // Only touched by the turn in progress
+  private long windowStart = System.nanoTime();
+  private long windowTasks;
+
+  public RoomMailbox(String roomId, Executor executor) {
+    this(roomId, RoomLanes.single(executor), () -> 0);
+  }
+
+  /** {@code members} is read at the end of a turn, from the mailbox. */
+  public RoomMailbox(String roomId, RoomLanes lanes, IntSupplier members) {
+    this.roomId = roomId;
+    this.lanes = lanes;
+    this.members = members;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    tasks.add(task);
+    if (scheduled.compareAndSet(false, true)) {
+      lanes.executor(hot).execute(drainTask);
+    }
+  }
+
+  private void drain() {
+    do {
+      boolean lane = hot;
+      lanes.enter(lane);
+      try {
+        int budget = lanes.quantum();
+        Runnable task;
+        while (budget > 0 && (task = tasks.poll()) != null) {
+          budget--;
+          windowTasks++;
+          try {
+            task.run();
+          } catch (Exception e) {
+            logger.error("Error processing task for room {}", roomId, e);
+          }
+        }
+      } finally {
+        lanes.exit(lane);
+      }
+      classify();
+      if (!tasks.isEmpty()) {
+        // Out of quantum: let the rooms already waiting on the lane go first
+        lanes.executor(hot).execute(drainTask);
+        return;
+      }
+      scheduled.set(false);
+      // A task added between the last poll and the reset would otherwise be stranded
+    } while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+  }
+
+  private void classify() {
+    long now = System.nanoTime();
+    long elapsed = now - windowStart;
+    int count = members.getAsInt();
+    // An emptied room leaves the hot lane at once rather than at the end of its window
+    if (elapsed < lanes.classifyIntervalNanos() && !(hot && count == 0)) {
+      return;
+    }
+    double rate = windowTasks * 1e9 / Math.max(elapsed, 1);
+    windowStart = now;
+    windowTasks = 0;
+    boolean nowHot = lanes.isHot(hot, rate, count);
+    if (nowHot != hot) {
+      hot = nowHot;
+      lanes.moved(nowHot);
+      logger.info("Room {} moved to the {} lane", roomId, nowHot ? "hot" : "normal");
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.codeshare.websocket.room;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent document updates of a room, keyed by their room-wide sequence number and bounded
+ * by count and bytes. A reconnecting client presents the last sequence it was told about and, as
+ * long as everything after it is still here, gets just those updates instead of a full diff.
+ *
+ * <p>Updates from other instances can arrive slightly out of order, so the ring tracks a watermark:
+ * the highest sequence up to which it holds every update. Only the watermark is handed to clients.
+ *
+ * <p>Not thread-safe: the ring belongs to one room and is only touched from its mailbox.
+ */
+public class UpdateRing {
+
+  private final long[] sequences;
+  private final byte[][] updates;
+  private final long maxBytes;
+  private long bytes;
+  // Lowest and highest sequence held; both 0 while empty
+  private long first;
+  private long last;
+  private long watermark;
+
+  public UpdateRing(int capacity, long maxBytes) {
+    this.sequences = new long[Math.max(capacity, 0)];
+    this.updates = new byte[sequences.length][];
+    this.maxBytes = maxBytes;
+  }
+
+  /** Adds an update; returns false if it is a duplicate or older than everything held. */
+  public boolean put(long sequence, byte[] update) {
+    if (sequence <= 0 || sequences.length == 0 || (first != 0 && sequence < first)) {
+      return false;
+    }
+    if (first == 0) {
+      first = sequence;
+      last = sequence;
+      watermark = sequence;
+    } else if (sequences[index(sequence)] == sequence) {
+      return false;
+    }
+    while (first != 0 && sequence - first >= sequences.length) {
+      evictFirst();
+    }
+    int index = index(sequence);
+    sequences[index] = sequence;
+    updates[index] = update;
+    bytes += update.length;
+    if (first == 0) {
+      first = sequence;
+      watermark = sequence;
+    }
+    last = Math.max(last, sequence);
+    advanceWatermark();
+    while (bytes > maxBytes && first != 0) {
+      evictFirst();
+    }
+    return true;
+  }
+
+  /** The highest sequence up to which every update is held, or 0 if the ring is empty. */
+  public long watermark() {
+    return watermark;
+  }
+
+  /**
+   * Returns the updates after {@code sequence} in sequence order, or null if some of them are no
+   * longer (or not yet) held and the client needs a full diff instead.
+   */
+  public List<byte[]> since(long sequence) {
+    if (first == 0 || sequence < first - 1 || sequence > last) {
+      return null;
+    }
+    List<byte[]> missed = new ArrayList<>((int) (last - sequence));
+    for (long s = sequence + 1; s <= last; s++) {
+      int index = index(s);
+      if (sequences[index] == s) {
+        missed.add(updates[index]);
+      }
+    }
+    return missed;
+  }
+
+  private void evictFirst() {
+    int index = index(first);
+    if (sequences[index] == first) {
+      bytes -= updates[index].length;
+      sequences[index] = 0;
+      updates[index] = null;
+    }
+    // Skip over sequences that never arrived; they are lost to this ring either way
+    do {
+      first++;
+    } while (first <= last && sequences[index(first)] != first);
+    if (first > last) {
+      first = 0;
+      last = 0;
+      watermark = 0;
+      return;
+    }
+    if (watermark < first) {
+      watermark = first;
+      advanceWatermark();
+    }
+  }
+
+  private void advanceWatermark() {
+    while (watermark < last && sequences[index(watermark + 1)] == watermark + 1) {
+      watermark++;
+    }
+  }
+
+  private int index(long sequence) {
+    return (int) (sequence % sequences.length);
+  }
+}
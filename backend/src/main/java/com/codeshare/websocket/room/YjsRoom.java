@@ -0,0 +1,677 @@
+package com.codeshare.websocket.room;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.yjs.YjsAwareness;
+import com.codeshare.websocket.yjs.YjsDocument;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import com.codeshare.websocket.yjs.YjsUpdates;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One active y-websocket room on this instance. All of its state (members, document) is confined to
+ * the room's mailbox: local frames, frames from other instances, joins and leaves are queued and
+ * handled one at a time, so they are processed in arrival order without locking.
+ *
+ * <p>Document updates are fanned out through an adaptive {@link FlushWindow}: in a busy room the
+ * updates that arrive within the window are merged into one frame and one Redis publish, while the
+ * first update after a quiet period goes out at once.
+ *
+ * <p>Awareness is not relayed frame by frame. The room keeps the latest state per Yjs client id and
+ * sends what changed at most once per awareness interval, so a room's awareness traffic grows with
+ * the number of users rather than with how fast they move their cursors.
+ *
+ * <p>Every update that goes out is numbered room-wide by Redis and kept in an {@link UpdateRing}.
+ * Synced clients are told the latest sequence they have (throttled like awareness) and present it
+ * when they reconnect, to this or any other instance hosting the room; their sync step 1 is then
+ * answered with just the updates they missed, unless those have already left the ring.
+ *
+ * <p>The room never waits on Redis. Its publishes and claims go through an outbox, a second mailbox
+ * on a separate I/O executor that makes them one at a time in the order the room asked for them, so
+ * a turn on the room's lane is CPU work only and Redis latency holds up no other room. What comes
+ * back (the sequence Redis gave an update, whether this instance won a sync answer) is handed back
+ * to the room's mailbox.
+ *
+ * <p>Spectators are read-only members for large audiences. They get the document once when they
+ * join and then one merged update per spectator interval, never awareness or sequence markers, and
+ * whatever they send is dropped before it reaches the room.
+ */
+public class YjsRoom {
+  private static final Logger logger = LoggerFactory.getLogger(YjsRoom.class);
+
+  // User id on frames the server publishes on its own behalf
+  private static final String SERVER_USER_ID = "server";
+
+  private final String roomId;
+  private final RoomMailbox mailbox;
+  // Redis calls, in the order the room makes them
+  private final RoomMailbox outbox;
+  private final ScheduledExecutorService scheduler;
+  private final YjsRedisService yjsRedisService;
+  private final MetricsService metricsService;
+  private final FlushWindow flushWindow;
+  private final long awarenessIntervalNanos;
+  private final UpdateRing updates;
+  private final DuplicateWindow recentUpdates;
+  private final long markerIntervalNanos;
+  private final long spectatorIntervalNanos;
+
+  // Confined to the mailbox
+  // Copied on join and leave, which are rare next to broadcasts, so fan-out is a loop over an array
+  private OutboundSession[] members = new OutboundSession[0];
+  private final YjsDocument document = new YjsDocument();
+  private final List<PendingUpdate> pending = new ArrayList<>();
+  private long batchOpenedAt;
+  private long lastFlushAt;
+  private long windowNanos;
+  private final YjsAwareness awareness = new YjsAwareness();
+  // Awareness client ids announced by each local session, cleared for peers when it leaves
+  private final Map<OutboundSession, Set<Long>> awarenessOwners = new HashMap<>();
+  private long lastAwarenessFlushAt;
+  private boolean awarenessFlushScheduled;
+  // Sequence each reconnecting session presented, until its sync step 1 is answered
+  private final Map<OutboundSession, Long> resumeFrom = new HashMap<>();
+  // Sessions that have been answered sync step 1; only they may be told a sequence
+  private final Set<OutboundSession> synced = new HashSet<>();
+  private long markedSequence;
+  private long lastMarkerAt;
+  private boolean markerScheduled;
+  private OutboundSession[] spectators = new OutboundSession[0];
+  // Updates fanned out to members since the spectators were last sent a batch
+  private final List<byte[]> spectatorUpdates = new ArrayList<>();
+  private boolean spectatorFlushScheduled;
+
+  /**
+   * A document update waiting for the flush; {@code sender} and {@code userId} are null if remote,
+   * and {@code sequence} is only known (non-zero) for remote updates until published.
+   */
+  private record PendingUpdate(
+      byte[] update, ByteBuffer frame, OutboundSession sender, String userId, long sequence) {}
+
+  // Guarded by the handler's room map (updated only inside compute)
+  private int sessionCount;
+
+  // Bytes of partial frames being assembled by this room's sessions, before they reach the mailbox
+  private final AtomicLong partialFrameBytes = new AtomicLong();
+
+  public YjsRoom(
+      String roomId,
+      RoomLanes lanes,
+      ScheduledExecutorService scheduler,
+      YjsRedisService yjsRedisService,
+      Executor redisExecutor,
+      MetricsService metricsService,
+      FlushWindow flushWindow,
+      long awarenessIntervalNanos,
+      UpdateRing updates,
+      DuplicateWindow recentUpdates,
+      long markerIntervalNanos,
+      long spectatorIntervalNanos) {
+    this.roomId = roomId;
+    this.mailbox = new RoomMailbox(roomId, lanes, () -> members.length + spectators.length);
+    this.outbox = new RoomMailbox(roomId, redisExecutor);
+    this.scheduler = scheduler;
+    this.yjsRedisService = yjsRedisService;
+    this.metricsService = metricsService;
+    this.flushWindow = flushWindow;
+    this.windowNanos = flushWindow.minNanos();
+    this.lastFlushAt = System.nanoTime() - flushWindow.maxNanos();
+    this.awarenessIntervalNanos = awarenessIntervalNanos;
+    this.lastAwarenessFlushAt = System.nanoTime() - awarenessIntervalNanos;
+    this.updates = updates;
+    this.recentUpdates = recentUpdates;
+    this.markerIntervalNanos = markerIntervalNanos;
+    this.lastMarkerAt = System.nanoTime() - markerIntervalNanos;
+    this.spectatorIntervalNanos = spectatorIntervalNanos;
+  }
+
+  public String getRoomId() {
+    return roomId;
+  }
+
+  /**
+   * Asks instances already hosting the room for their state; one of them answers with what this
+   * document lacks. Call it once the room's channel is subscribed, or the answer can go unheard.
+   */
+  public void requestState() {
+    mailbox.execute(
+        () -> {
+          ByteBuffer request = YjsProtocol.syncStep1(document.encodeStateVector());
+          outbox.execute(
+              () -> yjsRedisService.publishDocumentUpdate(roomId, SERVER_USER_ID, request));
+        });
+  }
+
+  public AtomicLong getPartialFrameBytes() {
+    return partialFrameBytes;
+  }
+
+  /** Adjusts the session count; only call from inside the handler's room map compute. */
+  public int addSessions(int delta) {
+    sessionCount += delta;
+    return sessionCount;
+  }
+
+  /**
+   * Adds a session; {@code resumeFrom} is the sequence it presented when reconnecting, or negative
+   * for a fresh connection.
+   */
+  public void join(OutboundSession session, long resumeFrom) {
+    mailbox.execute(
+        () -> {
+          members = Arrays.copyOf(members, members.length + 1);
+          members[members.length - 1] = session;
+          if (resumeFrom >= 0) {
+            this.resumeFrom.put(session, resumeFrom);
+          }
+          // Start the sync: the client answers with step 2 (what we lack) and its own step 1
+          session.send(YjsProtocol.syncStep1(document.encodeStateVector()));
+          sendAwarenessSnapshot(session);
+        });
+  }
+
+  /**
+   * Adds a read-only session. It is sent the whole document as sync step 2, which y-websocket
+   * treats as synced, and from then on only batched updates.
+   */
+  public void joinSpectator(OutboundSession session) {
+    mailbox.execute(
+        () -> {
+          spectators = Arrays.copyOf(spectators, spectators.length + 1);
+          spectators[spectators.length - 1] = session;
+          try {
+            session.send(YjsProtocol.syncStep2(document.encodeDiff(YjsUpdates.EMPTY_STATE_VECTOR)));
+          } catch (IllegalArgumentException e) {
+            logger.warn(
+                "Could not send the document to a spectator in {}: {}", roomId, e.getMessage());
+          }
+        });
+  }
+
+  public void leave(OutboundSession session) {
+    mailbox.execute(
+        () -> {
+          spectators = without(spectators, session);
+          members = without(members, session);
+          resumeFrom.remove(session);
+          synced.remove(session);
+          // Tell the others the session's cursors are gone, like y-websocket's own server does
+          Set<Long> owned = awarenessOwners.remove(session);
+          if (owned != null && !owned.isEmpty()) {
+            awareness.remove(owned, System.nanoTime());
+            scheduleAwarenessFlush();
+          }
+        });
+  }
+
+  /** A frame from a local client; {@code frame} must not be modified afterwards. */
+  public void receive(OutboundSession sender, String userId, ByteBuffer frame) {
+    mailbox.execute(() -> handleLocalFrame(sender, userId, frame));
+  }
+
+  /** A frame published by another instance. */
+  public void deliver(YjsRedisService.YjsMessage message) {
+    mailbox.execute(() -> handleRemoteMessage(message));
+  }
+
+  private void handleLocalFrame(OutboundSession sender, String userId, ByteBuffer frame) {
+    int messageType = YjsProtocol.messageType(frame);
+    if (messageType == YjsProtocol.MESSAGE_SYNC) {
+      handleSyncMessage(sender, userId, frame);
+      return;
+    }
+
+    if (messageType == YjsProtocol.MESSAGE_AWARENESS) {
+      handleAwareness(sender, frame);
+      return;
+    }
+    if (messageType == YjsProtocol.MESSAGE_QUERY_AWARENESS) {
+      sendAwarenessSnapshot(sender);
+      return;
+    }
+
+    // Publish to Redis for cross-instance communication
+    outbox.execute(() -> yjsRedisService.publishDocumentUpdate(roomId, userId, frame));
+
+    // Broadcast the message to all other sessions in the room (local instance)
+    broadcast(frame, sender);
+  }
+
+  private void handleSyncMessage(OutboundSession sender, String userId, ByteBuffer frame) {
+    YjsProtocol.SyncMessage sync;
+    try {
+      sync = YjsProtocol.readSyncMessage(frame);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Dropping malformed sync message in room {}: {}", roomId, e.getMessage());
+      return;
+    }
+
+    if (sync.type() == YjsProtocol.SYNC_STEP1) {
+      try {
+        // Answer from the server's copy; the other clients never see the request
+        sender.send(YjsProtocol.syncStep2(missingUpdates(sender, sync.payload())));
+      } catch (IllegalArgumentException e) {
+        // Fall back to letting the peers answer, as they did before the server held state
+        logger.warn("Could not answer sync step 1 in room {}: {}", roomId, e.getMessage());
+        outbox.execute(() -> yjsRedisService.publishDocumentUpdate(roomId, userId, frame));
+        broadcast(frame, sender);
+        return;
+      }
+      synced.add(sender);
+      if (updates.watermark() > 0) {
+        sender.send(YjsProtocol.resumeMarker(updates.watermark()));
+      }
+      return;
+    }
+
+    if (recentUpdates.seen(sync.payload())) {
+      // A retry, or edits resent on reconnect: the room has it, so nothing to relay or publish
+      metricsService.recordYjsDuplicateSuppressed(sync.payload().length);
+      return;
+    }
+    applyUpdate(sync.payload());
+
+    // Peers only need the update itself; a step 2 is re-framed so they don't treat it as a reply
+    ByteBuffer update =
+        sync.type() == YjsProtocol.SYNC_UPDATE ? frame : YjsProtocol.syncUpdate(sync.payload());
+    dispatchUpdate(new PendingUpdate(sync.payload(), update, sender, userId, 0));
+  }
+
+  /**
+   * What a client that sent sync step 1 lacks: if it is resuming and the ring still holds every
+   * update after its sequence, just those; otherwise the diff against its state vector.
+   */
+  private byte[] missingUpdates(OutboundSession sender, byte[] stateVector) {
+    Long sequence = resumeFrom.remove(sender);
+    if (sequence != null) {
+      List<byte[]> missed = updates.since(sequence);
+      if (missed != null) {
+        try {
+          byte[] update =
+              missed.isEmpty() ? YjsUpdates.EMPTY_UPDATE : YjsUpdates.mergeUpdates(missed);
+          metricsService.recordYjsResume(true);
+          return update;
+        } catch (IllegalArgumentException e) {
+          logger.warn("Could not merge missed updates in room {}: {}", roomId, e.getMessage());
+        }
+      }
+      metricsService.recordYjsResume(false);
+    }
+    return document.encodeDiff(stateVector);
+  }
+
+  private void handleRemoteMessage(YjsRedisService.YjsMessage message) {
+    logger.debug("Handling Redis message for room {}: {}", roomId, message.getType());
+
+    ByteBuffer frame = message.getContent();
+    if (message.getType() == YjsRedisService.MessageType.AWARENESS) {
+      handleAwareness(null, frame);
+      return;
+    }
+    if (message.getType() == YjsRedisService.MessageType.DOCUMENT
+        && YjsProtocol.messageType(frame) == YjsProtocol.MESSAGE_SYNC) {
+      YjsProtocol.SyncMessage sync;
+      try {
+        sync = YjsProtocol.readSyncMessage(frame);
+      } catch (IllegalArgumentException e) {
+        logger.warn("Dropping malformed sync message from Redis: {}", e.getMessage());
+        return;
+      }
+      if (sync.type() == YjsProtocol.SYNC_STEP1) {
+        // Another instance just opened the room; one of those hosting it brings it up to date
+        if (!document.isEmpty()) {
+          answerSyncRequest(message, sync.payload());
+        }
+        return;
+      }
+      if (recentUpdates.seen(sync.payload())) {
+        // Delivered twice, e.g. while relay views differ; its sequence still counts
+        metricsService.recordYjsDuplicateSuppressed(sync.payload().length);
+        record(message.getSequence(), sync.payload());
+        return;
+      }
+      if (sync.type() == YjsProtocol.SYNC_STEP2 && holds(sync.payload())) {
+        // An answer meant for an instance that just opened the room; every member here has it
+        metricsService.recordYjsDuplicateSuppressed(sync.payload().length);
+        return;
+      }
+      applyUpdate(sync.payload());
+      if (sync.type() == YjsProtocol.SYNC_STEP2) {
+        frame = YjsProtocol.syncUpdate(sync.payload());
+      }
+      dispatchUpdate(new PendingUpdate(sync.payload(), frame, null, null, message.getSequence()));
+      return;
+    }
+
+    // Broadcast to all local sessions in the room
+    broadcast(frame, null);
+  }
+
+  /** Sends an update now if the room has been quiet, otherwise adds it to the open batch. */
+  private void dispatchUpdate(PendingUpdate update) {
+    long now = System.nanoTime();
+    if (pending.isEmpty()) {
+      if (!flushWindow.isEnabled() || now - lastFlushAt >= flushWindow.maxNanos()) {
+        lastFlushAt = now;
+        windowNanos = flushWindow.minNanos();
+        send(update);
+        return;
+      }
+      batchOpenedAt = now;
+      scheduleFlush();
+    }
+    pending.add(update);
+  }
+
+  private void scheduleFlush() {
+    schedule(this::flush, windowNanos);
+  }
+
+  /** Runs {@code task} in the mailbox after {@code delayNanos}. */
+  private void schedule(Runnable task, long delayNanos) {
+    try {
+      scheduler.schedule(() -> mailbox.execute(task), delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shutting down: run right away instead of waiting for a timer that will never fire
+      mailbox.execute(task);
+    }
+  }
+
+  private void flush() {
+    int count = pending.size();
+    if (count == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    metricsService.recordYjsBatchFlush(count, now - batchOpenedAt);
+    lastFlushAt = now;
+    // Widen the window while batches keep filling up, narrow it again as the room calms down
+    windowNanos =
+        count > 1
+            ? Math.min(windowNanos * 2, flushWindow.maxNanos())
+            : Math.max(windowNanos / 2, flushWindow.minNanos());
+
+    List<PendingUpdate> batch = new ArrayList<>(pending);
+    pending.clear();
+    if (count == 1) {
+      send(batch.get(0));
+      return;
+    }
+    try {
+      sendMerged(batch);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Could not merge updates in room {}: {}", roomId, e.getMessage());
+      batch.forEach(this::send);
+    }
+  }
+
+  /**
+   * Claims the answer to another instance's sync step 1 and, if this instance wins it, publishes
+   * what that instance lacks. The diff is only computed once the claim is won.
+   */
+  private void answerSyncRequest(YjsRedisService.YjsMessage request, byte[] stateVector) {
+    outbox.execute(
+        () -> {
+          if (!yjsRedisService.claimSyncAnswer(roomId, request)) {
+            return;
+          }
+          mailbox.execute(
+              () -> {
+                ByteBuffer answer;
+                try {
+                  answer = YjsProtocol.syncStep2(document.encodeDiff(stateVector));
+                } catch (IllegalArgumentException e) {
+                  logger.warn("Could not answer remote sync step 1: {}", e.getMessage());
+                  return;
+                }
+                outbox.execute(
+                    () -> yjsRedisService.publishDocumentUpdate(roomId, SERVER_USER_ID, answer));
+              });
+        });
+  }
+
+  private void send(PendingUpdate update) {
+    broadcast(update.frame(), update.sender());
+    toSpectators(update.update());
+    if (update.userId() != null) {
+      publishSequenced(update.userId(), update.frame(), update.update());
+    } else {
+      record(update.sequence(), update.update());
+    }
+  }
+
+  /** Publishes a local update; it joins the ring once Redis has numbered it. */
+  private void publishSequenced(String userId, ByteBuffer frame, byte[] update) {
+    outbox.execute(
+        () -> {
+          long sequence = yjsRedisService.publishSequencedUpdate(roomId, userId, frame);
+          mailbox.execute(() -> record(sequence, update));
+        });
+  }
+
+  private void sendMerged(List<PendingUpdate> batch) {
+    List<byte[]> all = new ArrayList<>(batch.size());
+    List<byte[]> local = new ArrayList<>(batch.size());
+    OutboundSession sender = batch.get(0).sender();
+    String userId = null;
+    for (PendingUpdate update : batch) {
+      all.add(update.update());
+      if (update.sender() != sender) {
+        sender = null;
+      }
+      if (update.userId() != null) {
+        local.add(update.update());
+        userId =
+            userId == null || userId.equals(update.userId()) ? update.userId() : SERVER_USER_ID;
+      }
+    }
+    byte[] mergedUpdate = YjsUpdates.mergeUpdates(all);
+    ByteBuffer merged = YjsProtocol.syncUpdate(mergedUpdate);
+
+    // With several authors in the batch each gets its own edits back; applying them is a no-op
+    broadcast(merged, sender);
+    toSpectators(mergedUpdate);
+
+    // Only updates from our own clients go to Redis; the rest came from there
+    if (local.size() == all.size()) {
+      publishSequenced(userId, merged, mergedUpdate);
+    } else if (!local.isEmpty()) {
+      byte[] published = YjsUpdates.mergeUpdates(local);
+      publishSequenced(userId, YjsProtocol.syncUpdate(published), published);
+    }
+    for (PendingUpdate update : batch) {
+      if (update.userId() == null) {
+        record(update.sequence(), update.update());
+      }
+    }
+  }
+
+  /** Adds an update to the spectators' next batch, sending it right away without an interval. */
+  private void toSpectators(byte[] update) {
+    if (spectators.length == 0) {
+      return;
+    }
+    spectatorUpdates.add(update);
+    if (spectatorIntervalNanos <= 0) {
+      flushSpectators();
+    } else if (!spectatorFlushScheduled) {
+      spectatorFlushScheduled = true;
+      schedule(this::flushSpectators, spectatorIntervalNanos);
+    }
+  }
+
+  /** Sends the spectators everything since their last batch as one frame they all share. */
+  private void flushSpectators() {
+    spectatorFlushScheduled = false;
+    if (spectatorUpdates.isEmpty()) {
+      return;
+    }
+    List<ByteBuffer> frames = new ArrayList<>(1);
+    try {
+      frames.add(
+          YjsProtocol.syncUpdate(
+              spectatorUpdates.size() == 1
+                  ? spectatorUpdates.get(0)
+                  : YjsUpdates.mergeUpdates(spectatorUpdates)));
+    } catch (IllegalArgumentException e) {
+      logger.warn("Could not merge spectator updates in room {}: {}", roomId, e.getMessage());
+      spectatorUpdates.forEach(update -> frames.add(YjsProtocol.syncUpdate(update)));
+    }
+    spectatorUpdates.clear();
+    for (OutboundSession spectator : spectators) {
+      if (spectator.isOpen()) {
+        frames.forEach(spectator::send);
+      }
+    }
+  }
+
+  /** Keeps an update that has been fanned out so reconnecting clients can catch up from it. */
+  private void record(long sequence, byte[] update) {
+    if (sequence > 0 && updates.put(sequence, update)) {
+      scheduleMarker();
+    }
+  }
+
+  private void scheduleMarker() {
+    if (markerScheduled || updates.watermark() <= markedSequence) {
+      return;
+    }
+    long delay = lastMarkerAt + markerIntervalNanos - System.nanoTime();
+    if (delay <= 0) {
+      sendMarker();
+      return;
+    }
+    markerScheduled = true;
+    schedule(this::sendMarker, delay);
+  }
+
+  /** Tells synced clients the sequence they are up to; it follows the updates in their queues. */
+  private void sendMarker() {
+    markerScheduled = false;
+    long watermark = updates.watermark();
+    if (watermark <= markedSequence) {
+      return;
+    }
+    markedSequence = watermark;
+    lastMarkerAt = System.nanoTime();
+    ByteBuffer marker = YjsProtocol.resumeMarker(watermark);
+    for (OutboundSession member : members) {
+      if (synced.contains(member) && member.isOpen()) {
+        member.send(marker);
+      }
+    }
+  }
+
+  /** Folds an awareness frame into the cache; {@code sender} is null if it came from Redis. */
+  private void handleAwareness(OutboundSession sender, ByteBuffer frame) {
+    YjsAwareness.Applied applied;
+    try {
+      applied =
+          awareness.apply(
+              YjsProtocol.readAwarenessMessage(frame), sender != null, System.nanoTime());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Dropping malformed awareness message in room {}: {}", roomId, e.getMessage());
+      return;
+    }
+    if (sender != null) {
+      Set<Long> owned = awarenessOwners.computeIfAbsent(sender, k -> new HashSet<>());
+      owned.addAll(applied.present());
+      applied.removed().forEach(owned::remove);
+    }
+    if (applied.superseded() > 0) {
+      metricsService.recordAwarenessSuperseded(applied.superseded());
+    }
+    scheduleAwarenessFlush();
+  }
+
+  private void scheduleAwarenessFlush() {
+    if (awarenessFlushScheduled || !awareness.hasChanges()) {
+      return;
+    }
+    long delay = lastAwarenessFlushAt + awarenessIntervalNanos - System.nanoTime();
+    if (delay <= 0) {
+      flushAwareness();
+      return;
+    }
+    awarenessFlushScheduled = true;
+    schedule(this::flushAwareness, delay);
+  }
+
+  private void flushAwareness() {
+    awarenessFlushScheduled = false;
+    long now = System.nanoTime();
+    YjsAwareness.Changes changes = awareness.takeChanges(now);
+    if (changes.all() == null) {
+      return;
+    }
+    lastAwarenessFlushAt = now;
+    // Only states from our own clients go to Redis; the rest came from there
+    if (changes.local() != null) {
+      ByteBuffer local = YjsProtocol.awareness(changes.local());
+      outbox.execute(() -> yjsRedisService.publishAwarenessUpdate(roomId, SERVER_USER_ID, local));
+    }
+    // Senders get their own state back; y-protocols ignores it as the clock is not newer
+    broadcast(YjsProtocol.awareness(changes.all()), null);
+  }
+
+  private void sendAwarenessSnapshot(OutboundSession session) {
+    byte[] snapshot = awareness.encodeSnapshot(System.nanoTime());
+    if (snapshot != null) {
+      session.send(YjsProtocol.awareness(snapshot));
+    }
+  }
+
+  /** Whether the document already has everything in {@code update}; false if it is malformed. */
+  private boolean holds(byte[] update) {
+    try {
+      return document.contains(update);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private void applyUpdate(byte[] update) {
+    try {
+      document.applyUpdate(update);
+    } catch (IllegalArgumentException e) {
+      // Still relayed: the clients can converge even if our copy cannot read the update
+      logger.warn("Could not apply update to room {}: {}", roomId, e.getMessage());
+    }
+  }
+
+  private void broadcast(ByteBuffer frame, OutboundSession sender) {
+    for (OutboundSession member : members) {
+      if (member != sender && member.isOpen()) {
+        // Only queues the frame; the session's drain task does the blocking write
+        member.send(frame);
+      }
+    }
+  }
+
+  private static OutboundSession[] without(OutboundSession[] sessions, OutboundSession session) {
+    for (int i = 0; i < sessions.length; i++) {
+      if (sessions[i] == session) {
+        OutboundSession[] remaining = new OutboundSession[sessions.length - 1];
+        System.arraycopy(sessions, 0, remaining, 0, i);
+        System.arraycopy(sessions, i + 1, remaining, i, remaining.length - i);
+        return remaining;
+      }
+    }
+    return sessions;
+  }
+}
@@ -0,0 +1,144 @@
+package com.codeshare.websocket.room;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates {@link YjsRoom}s and owns the threads their mailboxes and flush timers run on: a bounded
+ * pool of virtual threads for the normal lane and a small fixed pool of platform threads for hot
+ * rooms, which keeps them off the carriers every other room (and every outbound drain) shares.
+ *
+ * <p>Neither lane ever waits on Redis: each room's publishes and claims go to its outbox, which
+ * runs on a virtual thread per call from a separate executor. A lane's thread count therefore
+ * bounds how many rooms compute at once, not how many Redis round trips are in flight, and does not
+ * need sizing against Redis latency.
+ */
+@Component
+public class YjsRoomFactory {
+
+  private final YjsRedisService yjsRedisService;
+  private final MetricsService metricsService;
+  private final FlushWindow flushWindow;
+  private final long awarenessIntervalNanos;
+  private final int resumeBufferUpdates;
+  private final long resumeBufferBytes;
+  private final int duplicateWindowUpdates;
+  private final long duplicateWindowBytes;
+  private final long markerIntervalNanos;
+  private final long spectatorIntervalNanos;
+  private final ExecutorService executor;
+  private final ExecutorService hotExecutor;
+  // Rooms' Redis calls; each room's outbox keeps its own in order
+  private final ExecutorService redisExecutor =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("yjs-redis-", 1).factory());
+  private final RoomLanes lanes;
+  // Only fires flush timers; the flush itself runs in the room's mailbox
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread thread = new Thread(r, "yjs-flush-timer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public YjsRoomFactory(
+      YjsRedisService yjsRedisService,
+      MetricsService metricsService,
+      @Value("${websocket.yjs.flush-window.enabled:true}") boolean flushWindowEnabled,
+      @Value("${websocket.yjs.flush-window.min-ms:5}") long flushWindowMinMillis,
+      @Value("${websocket.yjs.flush-window.max-ms:20}") long flushWindowMaxMillis,
+      @Value("${websocket.yjs.awareness.max-rate:10}") double awarenessMaxRate,
+      @Value("${websocket.yjs.resume.buffer-updates:512}") int resumeBufferUpdates,
+      @Value("${websocket.yjs.resume.buffer-bytes:524288}") long resumeBufferBytes,
+      @Value("${websocket.yjs.resume.marker-interval-ms:1000}") long markerIntervalMillis,
+      @Value("${websocket.yjs.duplicates.window-updates:256}") int duplicateWindowUpdates,
+      @Value("${websocket.yjs.duplicates.window-bytes:262144}") long duplicateWindowBytes,
+      @Value("${websocket.yjs.spectators.interval-ms:500}") long spectatorIntervalMillis,
+      @Value("${websocket.yjs.lanes.quantum:64}") int quantum,
+      @Value("${websocket.yjs.lanes.normal-threads:64}") int normalThreads,
+      @Value("${websocket.yjs.lanes.hot-threads:2}") int hotThreads,
+      @Value("${websocket.yjs.lanes.hot-rate:200}") double hotRate,
+      @Value("${websocket.yjs.lanes.hot-members:100}") int hotMembers,
+      @Value("${websocket.yjs.lanes.classify-interval-ms:1000}") long classifyIntervalMillis) {
+    this.yjsRedisService = yjsRedisService;
+    this.metricsService = metricsService;
+    this.flushWindow =
+        flushWindowEnabled
+            ? FlushWindow.ofMillis(flushWindowMinMillis, flushWindowMaxMillis)
+            : FlushWindow.disabled();
+    // Awareness flushes per second per room; zero or less sends every change at once
+    this.awarenessIntervalNanos =
+        awarenessMaxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / awarenessMaxRate) : 0;
+    // Zero updates turns resuming off: every reconnect gets a full diff
+    this.resumeBufferUpdates = resumeBufferUpdates;
+    this.resumeBufferBytes = resumeBufferBytes;
+    // Zero updates turns duplicate suppression off
+    this.duplicateWindowUpdates = duplicateWindowUpdates;
+    this.duplicateWindowBytes = duplicateWindowBytes;
+    this.markerIntervalNanos = TimeUnit.MILLISECONDS.toNanos(markerIntervalMillis);
+    // Zero sends spectators every update as it is fanned out
+    this.spectatorIntervalNanos = TimeUnit.MILLISECONDS.toNanos(spectatorIntervalMillis);
+    this.executor = normalLane(normalThreads);
+    AtomicInteger hotThreadCount = new AtomicInteger();
+    this.hotExecutor =
+        Executors.newFixedThreadPool(
+            Math.max(1, hotThreads),
+            r -> {
+              Thread thread = new Thread(r, "yjs-hot-lane-" + hotThreadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.lanes =
+        new RoomLanes(
+            executor,
+            hotExecutor,
+            quantum,
+            hotRate,
+            hotMembers,
+            classifyIntervalMillis,
+            metricsService);
+  }
+
+  /**
+   * The normal lane: at most {@code threads} mailboxes run at once and the rest wait their turn in
+   * one FIFO queue, so a room that has used up its quantum goes behind every room already waiting.
+   * Without the bound each turn would get a thread of its own and the quantum would order nothing.
+   * Room mailboxes hold a thread only while they have work, so idle rooms cost no thread.
+   */
+  static ExecutorService normalLane(int threads) {
+    return Executors.newFixedThreadPool(
+        Math.max(1, threads), Thread.ofVirtual().name("yjs-room-", 1).factory());
+  }
+
+  public YjsRoom create(String roomId) {
+    return new YjsRoom(
+        roomId,
+        lanes,
+        scheduler,
+        yjsRedisService,
+        redisExecutor,
+        metricsService,
+        flushWindow,
+        awarenessIntervalNanos,
+        new UpdateRing(resumeBufferUpdates, resumeBufferBytes),
+        new DuplicateWindow(duplicateWindowUpdates, duplicateWindowBytes),
+        markerIntervalNanos,
+        spectatorIntervalNanos);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+    hotExecutor.shutdownNow();
+    redisExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,68 @@
+package com.codeshare.websocket.room;
+
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * The rooms active on this instance. A connection acquires its room once, when it is established,
+ * and keeps the handle for its lifetime, so frames are routed without any lookup. The registry also
+ * receives the rooms' frames from other instances.
+ */
+@Component
+public class YjsRoomRegistry implements YjsRedisService.YjsMessageHandler {
+
+  private final Map<String, YjsRoom> rooms = new ConcurrentHashMap<>();
+  private final YjsRoomFactory yjsRoomFactory;
+  private final YjsRedisService yjsRedisService;
+
+  public YjsRoomRegistry(YjsRoomFactory yjsRoomFactory, YjsRedisService yjsRedisService) {
+    this.yjsRoomFactory = yjsRoomFactory;
+    this.yjsRedisService = yjsRedisService;
+  }
+
+  /** Returns the room, creating it for its first session; pair with {@link #release}. */
+  public YjsRoom acquire(String roomId) {
+    return rooms.compute(
+        roomId,
+        (id, room) -> {
+          if (room == null) {
+            YjsRoom created = yjsRoomFactory.create(id);
+            // Listen on the room's Redis channel while it has sessions here, and only then ask
+            // the other instances for the document: answers sent sooner would not be heard
+            yjsRedisService.registerRoomHandler(id, this).thenRun(created::requestState);
+            room = created;
+          }
+          room.addSessions(1);
+          return room;
+        });
+  }
+
+  public void release(YjsRoom room) {
+    rooms.computeIfPresent(
+        room.getRoomId(),
+        (id, current) -> {
+          // A room that already emptied may have been replaced by a new one for the same id
+          if (current != room || room.addSessions(-1) > 0) {
+            return current;
+          }
+          yjsRedisService.unregisterRoomHandler(id);
+          return null;
+        });
+  }
+
+  @Override
+  public void handleMessage(String roomId, YjsRedisService.YjsMessage message) {
+    // Handle messages from Redis (from other instances)
+    YjsRoom room = rooms.get(roomId);
+    if (room != null) {
+      room.deliver(message);
+    }
+  }
+
+  public void clear() {
+    rooms.keySet().forEach(yjsRedisService::unregisterRoomHandler);
+    rooms.clear();
+  }
+}
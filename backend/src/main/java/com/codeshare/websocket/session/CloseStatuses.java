@@ -0,0 +1,18 @@
+package com.codeshare.websocket.session;
+
+import org.springframework.web.socket.CloseStatus;
+
+/** Application close codes (4000-4999) the server uses when it ends a session on purpose. */
+public final class CloseStatuses {
+
+  /** The session fell too far behind; the client should reconnect and run sync again. */
+  public static final CloseStatus RESYNC_REQUIRED = new CloseStatus(4001, "Resync required");
+
+  /** The session stopped answering pings; a client that is still there should reconnect. */
+  public static final CloseStatus HEARTBEAT_TIMEOUT = new CloseStatus(4002, "Heartbeat timeout");
+
+  /** The instance is shutting down; the client should reconnect after a random delay. */
+  public static final CloseStatus SERVER_DRAINING = new CloseStatus(4003, "Server draining");
+
+  private CloseStatuses() {}
+}
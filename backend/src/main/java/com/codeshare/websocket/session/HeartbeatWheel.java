@@ -0,0 +1,261 @@
+package com.codeshare.websocket.session;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Pings quiet sessions and reaps the ones that stop answering, for every WebSocket endpoint, from
+ * one timer thread. Sessions sit in a hashed wheel of slots, one per tick, and are looked at only
+ * when their slot comes round: once per heartbeat interval, or sooner if they are close to timing
+ * out. A frame from the client, pong included, only stamps the session with the current tick, so
+ * the wheel costs nothing per message and nothing per session between visits.
+ *
+ * <p>A session that has been silent for the interval is pinged; one silent for the idle timeout is
+ * reaped: its {@code onDead} cleanup runs, then the session is closed with {@link
+ * CloseStatuses#HEARTBEAT_TIMEOUT}. Both happen on a virtual thread, since writing the close frame
+ * to a dead peer can block until the container gives up on it.
+ */
+@Component
+public class HeartbeatWheel {
+  private static final Logger logger = LoggerFactory.getLogger(HeartbeatWheel.class);
+
+  private final MetricsService metricsService;
+  private final Executor executor;
+  private final long tickNanos;
+  private final long intervalTicks;
+  private final long timeoutTicks;
+
+  // Slot heads of singly linked lists; only touched by the timer thread
+  private final Heartbeat[] slots;
+  private final int mask;
+  private final Queue<Heartbeat> registrations = new ConcurrentLinkedQueue<>();
+  private volatile long tick;
+  private volatile boolean running;
+  private Thread thread;
+
+  @Autowired
+  public HeartbeatWheel(
+      MetricsService metricsService,
+      @Value("${websocket.heartbeat.tick-ms:1000}") long tickMillis,
+      @Value("${websocket.heartbeat.interval-ms:25000}") long intervalMillis,
+      @Value("${websocket.heartbeat.timeout-ms:60000}") long timeoutMillis) {
+    this(
+        metricsService,
+        Executors.newVirtualThreadPerTaskExecutor(),
+        tickMillis,
+        intervalMillis,
+        timeoutMillis);
+  }
+
+  HeartbeatWheel(
+      MetricsService metricsService,
+      Executor executor,
+      long tickMillis,
+      long intervalMillis,
+      long timeoutMillis) {
+    if (tickMillis <= 0 || intervalMillis < tickMillis || timeoutMillis <= intervalMillis) {
+      throw new IllegalArgumentException(
+          "Heartbeat needs 0 < tick <= interval < timeout, got "
+              + tickMillis
+              + "/"
+              + intervalMillis
+              + "/"
+              + timeoutMillis
+              + " ms");
+    }
+    this.metricsService = metricsService;
+    this.executor = executor;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.intervalTicks = intervalMillis / tickMillis;
+    this.timeoutTicks = (timeoutMillis + tickMillis - 1) / tickMillis;
+    // A session is never rescheduled more than one interval ahead, so it is always due this round
+    this.slots = new Heartbeat[Integer.highestOneBit((int) intervalTicks) << 1];
+    this.mask = slots.length - 1;
+  }
+
+  /**
+   * Tracks a session whose sends go through an {@link OutboundSession}. {@code ping} runs on the
+   * timer thread and must not block; {@code onDead} runs once if the session is reaped.
+   */
+  public Heartbeat register(WebSocketSession session, Runnable ping, Runnable onDead) {
+    Heartbeat heartbeat = new Heartbeat(session, ping, onDead);
+    registrations.add(heartbeat);
+    return heartbeat;
+  }
+
+  /**
+   * Tracks a session that is written to directly. Pings are sent from a virtual thread while
+   * holding the session's monitor, so other writers must synchronize on the session too.
+   */
+  public Heartbeat register(WebSocketSession session, Runnable onDead) {
+    return register(session, () -> executor.execute(() -> sendPing(session)), onDead);
+  }
+
+  private static void sendPing(WebSocketSession session) {
+    synchronized (session) {
+      try {
+        if (session.isOpen()) {
+          session.sendMessage(new PingMessage());
+        }
+      } catch (Exception e) {
+        logger.debug("Failed to ping session {}: {}", session.getId(), e.getMessage());
+      }
+    }
+  }
+
+  @PostConstruct
+  public void start() {
+    running = true;
+    thread = Thread.ofPlatform().name("websocket-heartbeat").daemon().start(this::run);
+  }
+
+  @PreDestroy
+  public void stop() {
+    running = false;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+    if (executor instanceof ExecutorService service) {
+      service.shutdownNow();
+    }
+  }
+
+  private void run() {
+    long deadline = System.nanoTime() + tickNanos;
+    while (running) {
+      long wait = deadline - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(this, wait);
+        continue;
+      }
+      deadline += tickNanos;
+      try {
+        advance();
+      } catch (Exception e) {
+        logger.error("Heartbeat tick failed", e);
+      }
+    }
+  }
+
+  /** Moves the wheel one tick and visits the sessions due in the new slot. */
+  void advance() {
+    long now = tick + 1;
+    tick = now;
+
+    Heartbeat registered;
+    while ((registered = registrations.poll()) != null) {
+      schedule(registered, now + intervalTicks);
+    }
+
+    int slot = (int) (now & mask);
+    Heartbeat due = slots[slot];
+    slots[slot] = null;
+    while (due != null) {
+      Heartbeat heartbeat = due;
+      due = due.next;
+      heartbeat.next = null;
+      visit(heartbeat, now);
+    }
+  }
+
+  private void visit(Heartbeat heartbeat, long now) {
+    if (heartbeat.isDone()) {
+      return;
+    }
+    long idle = now - heartbeat.lastSeen;
+    if (idle >= timeoutTicks || !heartbeat.session.isOpen()) {
+      reap(heartbeat);
+      return;
+    }
+    if (idle < intervalTicks) {
+      schedule(heartbeat, heartbeat.lastSeen + intervalTicks);
+      return;
+    }
+    try {
+      heartbeat.ping.run();
+    } catch (Exception e) {
+      logger.warn("Failed to ping session {}: {}", heartbeat.session.getId(), e.getMessage());
+    }
+    schedule(heartbeat, now + Math.min(intervalTicks, heartbeat.lastSeen + timeoutTicks - now));
+  }
+
+  private void schedule(Heartbeat heartbeat, long at) {
+    int slot = (int) (at & mask);
+    heartbeat.next = slots[slot];
+    slots[slot] = heartbeat;
+  }
+
+  private void reap(Heartbeat heartbeat) {
+    if (!heartbeat.done.compareAndSet(false, true)) {
+      return;
+    }
+    metricsService.recordHeartbeatReaped();
+    WebSocketSession session = heartbeat.session;
+    logger.info("Reaping unresponsive WebSocket session {}", session.getId());
+    executor.execute(
+        () -> {
+          try {
+            heartbeat.onDead.run();
+          } catch (Exception e) {
+            logger.warn("Error cleaning up session {}: {}", session.getId(), e.getMessage());
+          }
+          try {
+            session.close(CloseStatuses.HEARTBEAT_TIMEOUT);
+          } catch (Exception e) {
+            logger.debug("Error closing session {}: {}", session.getId(), e.getMessage());
+          }
+        });
+  }
+
+  /** A tracked session. Handlers call {@link #touch} on every inbound frame. */
+  public final class Heartbeat {
+    private final WebSocketSession session;
+    private final Runnable ping;
+    private final Runnable onDead;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile long lastSeen = tick;
+    private Heartbeat next;
+
+    private Heartbeat(WebSocketSession session, Runnable ping, Runnable onDead) {
+      this.session = session;
+      this.ping = ping;
+      this.onDead = onDead;
+    }
+
+    public void touch() {
+      long now = tick;
+      // Most frames arrive within the same tick; skip the write for those
+      if (lastSeen != now) {
+        lastSeen = now;
+      }
+    }
+
+    /**
+     * Stops tracking the session. Returns false if it had already been reaped, in which case its
+     * {@code onDead} cleanup has run or is running and the caller should not clean up again.
+     */
+    public boolean cancel() {
+      return done.compareAndSet(false, true);
+    }
+
+    private boolean isDone() {
+      return done.get();
+    }
+  }
+}
@@ -0,0 +1,490 @@
+package com.codeshare.websocket.session;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import com.codeshare.websocket.yjs.YjsUpdates;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Buffers outgoing frames for one session so that callers never block on a slow client. Frames are
+ * queued and written by a single drain task on the executor, which also keeps sends to the
+ * underlying session serial. When the queue exceeds its byte limit, or its oldest frame has waited
+ * longer than the time limit, the {@link OverflowPolicy} decides what to give up.
+ *
+ * <p>If document updates have piled up by the time the drain task gets to them, they are merged and
+ * sent as one update, so a client catching up after thousands of keystrokes gets one frame.
+ *
+ * <p>Frames wait in one of three lanes, drained by priority: document updates (with pings, markers
+ * and anything else not listed here), then awareness, then presence. Awareness only gets ahead of
+ * documents once {@code laneBudgetBytes} of them have gone out while it waited, so cursor chatter
+ * is delayed rather than starved but can never hold edits back. A presence broadcast replaces the
+ * one still queued, as each lists the whole room; both lower lanes are what overflow gives up
+ * first.
+ */
+public class OutboundSession {
+  private static final Logger logger = LoggerFactory.getLogger(OutboundSession.class);
+
+  // Frame types of queued pings and text messages; never Yjs message types
+  private static final int PING = -1;
+  private static final int TEXT = -2;
+  private static final int PRESENCE = -3;
+  private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+  private final WebSocketSession session;
+  private final String roomId;
+  private final Executor executor;
+  private final MetricsService metricsService;
+  private final long bufferSizeLimit;
+  private final long sendTimeLimitNanos;
+  private final OverflowPolicy overflowPolicy;
+  private final long laneBudgetBytes;
+  private final Runnable drainTask = this::drain;
+
+  // Guarded by this. Sized for an idle session rather than the default 16 slots each; lanes that
+  // see traffic grow on their own
+  private final ArrayDeque<Frame> documents = new ArrayDeque<>(2);
+  private final ArrayDeque<Frame> awareness = new ArrayDeque<>(1);
+  private final ArrayDeque<Frame> presence = new ArrayDeque<>(1);
+  // Document bytes sent since a lower lane last had a turn
+  private long laneBudgetUsed;
+  private long queuedBytes;
+  private boolean draining;
+  private boolean closed;
+  // Document updates an overflowing send is merging outside the lock, or null
+  private List<Frame> coalescing;
+
+  private record Frame(ByteBuffer data, int type, long enqueuedAt) {
+    int size() {
+      return data.remaining();
+    }
+  }
+
+  public OutboundSession(
+      WebSocketSession session,
+      String roomId,
+      Executor executor,
+      MetricsService metricsService,
+      long bufferSizeLimit,
+      long sendTimeLimitMillis,
+      OverflowPolicy overflowPolicy,
+      long laneBudgetBytes) {
+    this.session = session;
+    this.roomId = roomId;
+    this.executor = executor;
+    this.metricsService = metricsService;
+    this.bufferSizeLimit = bufferSizeLimit;
+    this.sendTimeLimitNanos = sendTimeLimitMillis * 1_000_000L;
+    this.overflowPolicy = overflowPolicy;
+    this.laneBudgetBytes = laneBudgetBytes;
+  }
+
+  public WebSocketSession getSession() {
+    return session;
+  }
+
+  public boolean isOpen() {
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+    }
+    return session.isOpen();
+  }
+
+  /**
+   * Queues a frame for delivery. The buffer is neither copied nor duplicated, so its contents,
+   * position and limit must not change afterwards; they are left untouched here.
+   */
+  public void send(ByteBuffer frame) {
+    // Queued frames are only read by absolute index, so every recipient shares the caller's buffer
+    enqueue(new Frame(frame, YjsProtocol.messageType(frame), System.nanoTime()));
+  }
+
+  /** Queues a ping, so it is written in turn with the frames instead of racing the drain task. */
+  public void ping() {
+    enqueue(new Frame(NO_DATA, PING, System.nanoTime()));
+  }
+
+  /** Queues a UTF-8 text message with document priority; the same rules as for send apply. */
+  public void sendText(ByteBuffer text) {
+    enqueue(new Frame(text, TEXT, System.nanoTime()));
+  }
+
+  /** Queues a presence broadcast at the lowest priority, replacing any still waiting. */
+  public void sendPresence(ByteBuffer text) {
+    enqueue(new Frame(text, PRESENCE, System.nanoTime()));
+  }
+
+  private ArrayDeque<Frame> laneOf(Frame frame) {
+    return switch (frame.type()) {
+      case YjsProtocol.MESSAGE_AWARENESS -> awareness;
+      case PRESENCE -> presence;
+      default -> documents;
+    };
+  }
+
+  private void enqueue(Frame queued) {
+    boolean startDrain = false;
+    List<Frame> toCoalesce = null;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      if (queued.type() == PRESENCE) {
+        dropPresence();
+      }
+      laneOf(queued).addLast(queued);
+      queuedBytes += queued.size();
+      metricsService.recordOutboundQueued(1, queued.size());
+
+      if (isOverLimit(queued.enqueuedAt())) {
+        boolean wasCoalescing = coalescing != null;
+        if (!relieveOverflow(queued.enqueuedAt())) {
+          closeForResync();
+          return;
+        }
+        if (!wasCoalescing) {
+          toCoalesce = coalescing;
+        }
+      }
+      if (!draining) {
+        draining = true;
+        startDrain = true;
+      }
+    }
+    if (startDrain) {
+      executor.execute(drainTask);
+    }
+    if (toCoalesce != null) {
+      // Not on this thread, which is usually the room's: one lagging session must not hold up the
+      // rest of the room while its backlog is merged
+      List<Frame> updates = toCoalesce;
+      executor.execute(() -> coalesce(updates));
+    }
+  }
+
+  /** Discards anything still queued; called once the session has been closed. */
+  public void release() {
+    synchronized (this) {
+      closed = true;
+      clearQueue();
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Frame frame;
+      List<Frame> backlog = null;
+      synchronized (this) {
+        frame = closed ? null : next();
+        if (frame == null) {
+          draining = false;
+          return;
+        }
+        queuedBytes -= frame.size();
+        metricsService.recordOutboundQueued(-1, -frame.size());
+        if (isUpdate(frame)) {
+          backlog = takeQueuedUpdates(frame);
+        }
+      }
+
+      // A client that fell behind gets its backlog of updates as one frame; merging happens here,
+      // outside the lock, so the room is never held up by a lagging session
+      if (backlog != null && !sendBacklog(backlog)) {
+        return;
+      }
+      if (backlog == null && !write(frame)) {
+        return;
+      }
+    }
+  }
+
+  /** Takes the next frame by priority, letting a lower lane in once the budget is used up. */
+  private Frame next() {
+    boolean lowerWaiting = !awareness.isEmpty() || !presence.isEmpty();
+    if (documents.isEmpty() || (lowerWaiting && laneBudgetUsed >= laneBudgetBytes)) {
+      laneBudgetUsed = 0;
+      return !awareness.isEmpty() ? awareness.pollFirst() : presence.pollFirst();
+    }
+    Frame frame = documents.pollFirst();
+    if (lowerWaiting) {
+      laneBudgetUsed += frame.size();
+    }
+    return frame;
+  }
+
+  /** Removes the queued document updates; returns them after {@code first}, or null if none. */
+  private List<Frame> takeQueuedUpdates(Frame first) {
+    List<Frame> updates = null;
+    for (Iterator<Frame> it = documents.iterator(); it.hasNext(); ) {
+      Frame frame = it.next();
+      if (isUpdate(frame)) {
+        if (updates == null) {
+          updates = new ArrayList<>();
+          updates.add(first);
+        }
+        it.remove();
+        updates.add(frame);
+        queuedBytes -= frame.size();
+        metricsService.recordOutboundQueued(-1, -frame.size());
+      }
+    }
+    return updates;
+  }
+
+  private boolean sendBacklog(List<Frame> backlog) {
+    ByteBuffer merged;
+    try {
+      merged = mergeFrames(backlog);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Could not merge backlog for session {}: {}", session.getId(), e.getMessage());
+      for (Frame frame : backlog) {
+        if (!write(frame)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    metricsService.recordOutboundBacklogMerged(backlog.size());
+    return write(new Frame(merged, YjsProtocol.MESSAGE_SYNC, backlog.get(0).enqueuedAt()));
+  }
+
+  private boolean write(Frame frame) {
+    try {
+      if (frame.type() == PING) {
+        session.sendMessage(new PingMessage());
+        return true;
+      }
+      if (frame.type() == TEXT || frame.type() == PRESENCE) {
+        session.sendMessage(new TextMessage(bytes(frame.data())));
+        metricsService.recordMessageSent(roomId);
+        return true;
+      }
+      // Writing consumes the buffer, so give the socket its own view of the shared bytes
+      session.sendMessage(new BinaryMessage(frame.data().duplicate()));
+      metricsService.recordMessageSent(roomId);
+      return true;
+    } catch (Exception e) {
+      logger.warn("Failed to send message to session {}: {}", session.getId(), e.getMessage());
+      release();
+      return false;
+    }
+  }
+
+  private static byte[] bytes(ByteBuffer data) {
+    byte[] bytes = new byte[data.remaining()];
+    data.get(data.position(), bytes);
+    return bytes;
+  }
+
+  private boolean isOverLimit(long now) {
+    return queuedBytes > bufferSizeLimit || isStale(now);
+  }
+
+  /** Whether a frame has waited longer than the send time limit. */
+  private boolean isStale(long now) {
+    return isOlderThanLimit(documents.peekFirst(), now)
+        || isOlderThanLimit(awareness.peekFirst(), now)
+        || isOlderThanLimit(presence.peekFirst(), now);
+  }
+
+  private boolean isOlderThanLimit(Frame oldest, long now) {
+    return oldest != null && now - oldest.enqueuedAt() > sendTimeLimitNanos;
+  }
+
+  /** Applies the overflow policy; returns false if the session has to be disconnected. */
+  private boolean relieveOverflow(long now) {
+    // Presence is the first thing given up, whatever the policy
+    dropPresence();
+    if (!isOverLimit(now)) {
+      return true;
+    }
+    switch (overflowPolicy) {
+      case DROP_AWARENESS -> dropAwareness(false);
+      case COALESCE -> {
+        dropAwareness(true);
+        if (coalescing != null) {
+          // A merge is in flight and decides once it is done
+          return true;
+        }
+        if (isStale(now)) {
+          // Merging saves bytes, not time: the merged update would be as old as the first it
+          // replaces, so a client this far behind is resynced without one
+          return false;
+        }
+        List<Frame> updates = queuedUpdates();
+        if (updates.size() >= 2 && isOverLimit(now)) {
+          // Merged on the executor once the lock is released
+          coalescing = updates;
+          return true;
+        }
+      }
+      case DISCONNECT -> {
+        return false;
+      }
+    }
+    return !isOverLimit(now);
+  }
+
+  private void dropPresence() {
+    Frame dropped = presence.pollFirst();
+    if (dropped != null) {
+      queuedBytes -= dropped.size();
+      metricsService.recordOutboundQueued(-1, -dropped.size());
+    }
+  }
+
+  private void dropAwareness(boolean keepNewest) {
+    Frame newest = keepNewest ? awareness.peekLast() : null;
+    int dropped = 0;
+    for (Iterator<Frame> it = awareness.iterator(); it.hasNext(); ) {
+      Frame frame = it.next();
+      if (frame != newest) {
+        it.remove();
+        dropped++;
+        queuedBytes -= frame.size();
+        metricsService.recordOutboundQueued(-1, -frame.size());
+      }
+    }
+    if (dropped > 0) {
+      metricsService.recordOutboundOverflow("dropped_awareness", dropped);
+    }
+  }
+
+  private List<Frame> queuedUpdates() {
+    List<Frame> updates = new ArrayList<>();
+    for (Frame frame : documents) {
+      if (isUpdate(frame)) {
+        updates.add(frame);
+      }
+    }
+    return updates;
+  }
+
+  /**
+   * Replaces queued document {@code updates} with a single merged update, placed where the first of
+   * them was queued (and keeping its age). Runs as a task of its own on the executor and merges
+   * without the lock, so neither the room nor the drain task is held up by it; updates queued
+   * meanwhile stay as they are, and if the drain task has taken these in the meantime it has merged
+   * them itself. Closes the session if they cannot be merged or the queue is still over its limits.
+   */
+  private void coalesce(List<Frame> updates) {
+    Frame first = updates.get(0);
+    Frame merged = null;
+    try {
+      merged = new Frame(mergeFrames(updates), YjsProtocol.MESSAGE_SYNC, first.enqueuedAt());
+    } catch (IllegalArgumentException e) {
+      logger.warn("Could not coalesce updates for session {}: {}", session.getId(), e.getMessage());
+    }
+
+    synchronized (this) {
+      coalescing = null;
+      if (closed) {
+        return;
+      }
+      if (merged == null) {
+        closeForResync();
+        return;
+      }
+      // The drain task takes every queued update at once, so these are all still queued or none is
+      if (contains(documents, first)) {
+        replace(updates, merged);
+      }
+      if (isOverLimit(System.nanoTime())) {
+        closeForResync();
+      }
+    }
+  }
+
+  private void replace(List<Frame> updates, Frame merged) {
+    Set<Frame> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+    replaced.addAll(updates);
+    ArrayDeque<Frame> rebuilt = new ArrayDeque<>(documents.size() - updates.size() + 1);
+    long bytes = 0;
+    for (Frame frame : documents) {
+      if (frame == updates.get(0)) {
+        rebuilt.addLast(merged);
+        bytes += merged.size();
+      } else if (!replaced.contains(frame)) {
+        rebuilt.addLast(frame);
+        bytes += frame.size();
+      }
+    }
+    long documentBytes = 0;
+    for (Frame frame : documents) {
+      documentBytes += frame.size();
+    }
+    metricsService.recordOutboundQueued(rebuilt.size() - documents.size(), bytes - documentBytes);
+    metricsService.recordOutboundOverflow("coalesced", updates.size());
+    documents.clear();
+    documents.addAll(rebuilt);
+    queuedBytes += bytes - documentBytes;
+  }
+
+  /** By identity: frames are records, whose equality would compare their bytes. */
+  private static boolean contains(ArrayDeque<Frame> lane, Frame frame) {
+    for (Frame queued : lane) {
+      if (queued == frame) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static ByteBuffer mergeFrames(List<Frame> frames) {
+    List<byte[]> updates = new ArrayList<>(frames.size());
+    for (Frame frame : frames) {
+      updates.add(YjsProtocol.readSyncMessage(frame.data()).payload());
+    }
+    return YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(updates));
+  }
+
+  private static boolean isUpdate(Frame frame) {
+    ByteBuffer data = frame.data();
+    // [messageSync, syncUpdate, ...]: both varuints fit in one byte
+    return frame.type() == YjsProtocol.MESSAGE_SYNC
+        && data.remaining() > 1
+        && data.get(data.position() + 1) == YjsProtocol.SYNC_UPDATE;
+  }
+
+  private void closeForResync() {
+    closed = true;
+    clearQueue();
+    metricsService.recordOutboundOverflow("disconnected", 1);
+    logger.warn("Session {} in room {} fell behind, closing for resync", session.getId(), roomId);
+    // Closing can block on the same socket the drain task is stuck on
+    executor.execute(
+        () -> {
+          try {
+            session.close(CloseStatuses.RESYNC_REQUIRED);
+          } catch (Exception e) {
+            logger.warn("Error closing WebSocket session: {}", e.getMessage());
+          }
+        });
+  }
+
+  private void clearQueue() {
+    int frames = documents.size() + awareness.size() + presence.size();
+    if (frames > 0) {
+      metricsService.recordOutboundQueued(-frames, -queuedBytes);
+      documents.clear();
+      awareness.clear();
+      presence.clear();
+      queuedBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.codeshare.websocket.session;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Creates {@link OutboundSession}s with the configured limits. Drain tasks run on virtual threads,
+ * so a client whose socket stops accepting data parks a cheap thread instead of a pool worker.
+ */
+@Component
+public class OutboundSessionFactory {
+
+  private final MetricsService metricsService;
+  private final long bufferSizeLimit;
+  private final long sendTimeLimitMillis;
+  private final OverflowPolicy overflowPolicy;
+  private final long laneBudgetBytes;
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  public OutboundSessionFactory(
+      MetricsService metricsService,
+      @Value("${websocket.outbound.buffer-size-limit:1048576}") long bufferSizeLimit,
+      @Value("${websocket.outbound.send-time-limit:10000}") long sendTimeLimitMillis,
+      @Value("${websocket.outbound.overflow-policy:coalesce}") OverflowPolicy overflowPolicy,
+      @Value("${websocket.outbound.lane-budget-bytes:65536}") long laneBudgetBytes) {
+    this.metricsService = metricsService;
+    this.bufferSizeLimit = bufferSizeLimit;
+    this.sendTimeLimitMillis = sendTimeLimitMillis;
+    this.overflowPolicy = overflowPolicy;
+    this.laneBudgetBytes = laneBudgetBytes;
+  }
+
+  public OutboundSession create(WebSocketSession session, String roomId) {
+    return new OutboundSession(
+        session,
+        roomId,
+        executor,
+        metricsService,
+        bufferSizeLimit,
+        sendTimeLimitMillis,
+        overflowPolicy,
+        laneBudgetBytes);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
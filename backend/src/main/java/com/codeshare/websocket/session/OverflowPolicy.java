@@ -0,0 +1,15 @@
+package com.codeshare.websocket.session;
+
+/** What an {@link OutboundSession} does when a client falls behind its buffer limits. */
+public enum OverflowPolicy {
+  /** Discard queued awareness frames; disconnect if document frames alone are over the limit. */
+  DROP_AWARENESS,
+  /**
+   * Merge queued document updates into one frame and keep only the newest awareness frame. This
+   * relieves the byte limit only; a session over the send time limit is disconnected as with {@link
+   * #DISCONNECT}.
+   */
+  COALESCE,
+  /** Close the session with {@link CloseStatuses#RESYNC_REQUIRED}. */
+  DISCONNECT
+}
@@ -0,0 +1,151 @@
+package com.codeshare.websocket.yjs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for the lib0 binary encoding used by Yjs and y-protocols. Reads with absolute indexes so
+ * read-only and direct buffers can be decoded without copying them first.
+ */
+public final class Lib0Decoder {
+  private final ByteBuffer buffer;
+  private int position;
+  private final int limit;
+
+  public Lib0Decoder(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.position = buffer.position();
+    this.limit = buffer.limit();
+  }
+
+  public Lib0Decoder(byte[] bytes) {
+    this(ByteBuffer.wrap(bytes));
+  }
+
+  public boolean hasContent() {
+    return position < limit;
+  }
+
+  public int position() {
+    return position;
+  }
+
+  public int readUint8() {
+    ensure(1);
+    return buffer.get(position++) & 0xFF;
+  }
+
+  /** Reads an unsigned varint; lib0 limits these to 53 bits (JavaScript safe integers). */
+  public long readVarUint() {
+    long value = 0;
+    int shift = 0;
+    while (true) {
+      int b = readUint8();
+      value |= (long) (b & 0x7F) << shift;
+      if (b < 0x80) {
+        return value;
+      }
+      shift += 7;
+      if (shift > 53) {
+        throw new IllegalArgumentException("Integer out of range");
+      }
+    }
+  }
+
+  public int readVarUintAsInt() {
+    long value = readVarUint();
+    if (value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Length out of range: " + value);
+    }
+    return (int) value;
+  }
+
+  public String readVarString() {
+    int length = readVarUintAsInt();
+    ensure(length);
+    byte[] bytes = new byte[length];
+    buffer.get(position, bytes);
+    position += length;
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public byte[] readVarUint8Array() {
+    int length = readVarUintAsInt();
+    return readBytes(length);
+  }
+
+  /** Returns a view of the next length-prefixed byte array without copying it. */
+  public ByteBuffer readVarUint8ArrayView() {
+    int length = readVarUintAsInt();
+    ensure(length);
+    ByteBuffer view = buffer.slice(position, length);
+    position += length;
+    return view;
+  }
+
+  public byte[] readBytes(int length) {
+    ensure(length);
+    byte[] bytes = new byte[length];
+    buffer.get(position, bytes);
+    position += length;
+    return bytes;
+  }
+
+  /** Copies the bytes between {@code from} and the current position. */
+  public byte[] bytesSince(int from) {
+    byte[] bytes = new byte[position - from];
+    buffer.get(from, bytes);
+    return bytes;
+  }
+
+  public void skip(int length) {
+    ensure(length);
+    position += length;
+  }
+
+  public void skipVarString() {
+    skip(readVarUintAsInt());
+  }
+
+  /** Skips a signed or unsigned varint. */
+  public void skipVarInt() {
+    while (readUint8() >= 0x80) {
+      // continuation bit set
+    }
+  }
+
+  /** Skips one value written with lib0 {@code writeAny}. */
+  public void skipAny() {
+    int type = readUint8();
+    switch (type) {
+      case 127, 126, 121, 120 -> {
+        // undefined, null, false, true
+      }
+      case 125 -> skipVarInt();
+      case 124 -> skip(4);
+      case 123, 122 -> skip(8);
+      case 119 -> skipVarString();
+      case 118 -> {
+        long entries = readVarUint();
+        for (long i = 0; i < entries; i++) {
+          skipVarString();
+          skipAny();
+        }
+      }
+      case 117 -> {
+        long entries = readVarUint();
+        for (long i = 0; i < entries; i++) {
+          skipAny();
+        }
+      }
+      case 116 -> skip(readVarUintAsInt());
+      default -> throw new IllegalArgumentException("Unknown lib0 any type: " + type);
+    }
+  }
+
+  private void ensure(int length) {
+    if (length < 0 || limit - position < length) {
+      throw new IllegalArgumentException("Unexpected end of array");
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.codeshare.websocket.yjs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Growable writer for the lib0 binary encoding used by Yjs and y-protocols. */
+public final class Lib0Encoder {
+  private byte[] buffer;
+  private int length;
+
+  public Lib0Encoder() {
+    this(64);
+  }
+
+  public Lib0Encoder(int initialCapacity) {
+    this.buffer = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public void writeUint8(int value) {
+    ensure(1);
+    buffer[length++] = (byte) value;
+  }
+
+  public void writeVarUint(long value) {
+    ensure(10);
+    while (value > 0x7F) {
+      buffer[length++] = (byte) (0x80 | (value & 0x7F));
+      value >>>= 7;
+    }
+    buffer[length++] = (byte) value;
+  }
+
+  public void writeVarString(String value) {
+    byte[] bytes = utf8(value);
+    writeVarUint(bytes.length);
+    writeBytes(bytes, 0, bytes.length);
+  }
+
+  public void writeVarUint8Array(byte[] bytes) {
+    writeVarUint(bytes.length);
+    writeBytes(bytes, 0, bytes.length);
+  }
+
+  public void writeVarUint8Array(ByteBuffer bytes) {
+    writeVarUint(bytes.remaining());
+    writeBytes(bytes);
+  }
+
+  public void writeBytes(byte[] bytes) {
+    writeBytes(bytes, 0, bytes.length);
+  }
+
+  public void writeBytes(byte[] bytes, int offset, int count) {
+    ensure(count);
+    System.arraycopy(bytes, offset, buffer, length, count);
+    length += count;
+  }
+
+  /** Copies the remaining bytes of {@code bytes} without moving its position. */
+  public void writeBytes(ByteBuffer bytes) {
+    int count = bytes.remaining();
+    ensure(count);
+    bytes.get(bytes.position(), buffer, length, count);
+    length += count;
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, length);
+  }
+
+  private void ensure(int extra) {
+    if (length + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+    }
+  }
+
+  /**
+   * UTF-8 encodes like the browser's TextEncoder: unpaired surrogates become U+FFFD instead of the
+   * '?' that {@link String#getBytes} would produce, so re-encoded strings match what Yjs writes.
+   */
+  static byte[] utf8(String value) {
+    Lib0Encoder out = new Lib0Encoder(value.length() + 8);
+    for (int i = 0; i < value.length(); i++) {
+      int c = value.charAt(i);
+      if (c < 0x80) {
+        out.writeUint8(c);
+        continue;
+      }
+      if (Character.isHighSurrogate((char) c)
+          && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        c = Character.toCodePoint((char) c, value.charAt(++i));
+      } else if (Character.isSurrogate((char) c)) {
+        c = 0xFFFD;
+      }
+      if (c < 0x800) {
+        out.writeUint8(0xC0 | (c >> 6));
+      } else if (c < 0x10000) {
+        out.writeUint8(0xE0 | (c >> 12));
+        out.writeUint8(0x80 | ((c >> 6) & 0x3F));
+      } else {
+        out.writeUint8(0xF0 | (c >> 18));
+        out.writeUint8(0x80 | ((c >> 12) & 0x3F));
+        out.writeUint8(0x80 | ((c >> 6) & 0x3F));
+      }
+      out.writeUint8(0x80 | (c & 0x3F));
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,171 @@
+package com.codeshare.websocket.yjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side cache of a room's awareness states (cursors, selections, user info), keyed by Yjs
+ * client id. An incoming update only replaces a state with a higher clock, as in y-protocols, so of
+ * the many states a client sends between two flushes only the last one survives. Changed states are
+ * collected until {@link #takeChanges(long)} encodes them as one update.
+ *
+ * <p>Not thread-safe: the cache belongs to one room and is only touched from its mailbox.
+ */
+public class YjsAwareness {
+
+  // Clients renew their state every 15s and drop peers silent for 30s (y-protocols outdatedTimeout)
+  private static final long OUTDATED_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  // JSON state of a client that went away
+  private static final byte[] NULL_STATE = {'n', 'u', 'l', 'l'};
+
+  private final Map<Long, Entry> states = new LinkedHashMap<>();
+  private int changed;
+
+  private static final class Entry {
+    long clock;
+    byte[] state;
+    long updatedAt;
+    boolean changed;
+    boolean local;
+
+    boolean isRemoved() {
+      return Arrays.equals(state, NULL_STATE);
+    }
+  }
+
+  /** Changed states encoded as awareness updates; either may be null if there is nothing. */
+  public record Changes(byte[] all, byte[] local) {}
+
+  /** What {@link #apply} did with an update. */
+  public record Applied(List<Long> present, List<Long> removed, int superseded) {}
+
+  /**
+   * Applies an awareness update. {@code local} marks states sent by this instance's clients, which
+   * still have to be published to other instances.
+   *
+   * @throws IllegalArgumentException if the update cannot be decoded
+   */
+  public Applied apply(byte[] update, boolean local, long now) {
+    Lib0Decoder decoder = new Lib0Decoder(update);
+    int count = decoder.readVarUintAsInt();
+    List<Long> present = new ArrayList<>();
+    List<Long> removed = new ArrayList<>();
+    int superseded = 0;
+    for (int i = 0; i < count; i++) {
+      long clientId = decoder.readVarUint();
+      long clock = decoder.readVarUint();
+      byte[] state = decoder.readVarUint8Array();
+
+      Entry entry = states.get(clientId);
+      boolean isNull = Arrays.equals(state, NULL_STATE);
+      if (entry != null
+          && !(entry.clock < clock || (entry.clock == clock && isNull && !entry.isRemoved()))) {
+        continue;
+      }
+      if (entry == null) {
+        entry = new Entry();
+        states.put(clientId, entry);
+      } else if (entry.changed) {
+        superseded++;
+      }
+      entry.clock = clock;
+      entry.state = state;
+      entry.updatedAt = now;
+      entry.local = local;
+      markChanged(entry);
+      (isNull ? removed : present).add(clientId);
+    }
+    return new Applied(present, removed, superseded);
+  }
+
+  /** Marks the given clients as gone, e.g. because the session that owned them closed. */
+  public void remove(Collection<Long> clientIds, long now) {
+    for (Long clientId : clientIds) {
+      Entry entry = states.get(clientId);
+      if (entry != null && !entry.isRemoved()) {
+        entry.clock++;
+        entry.state = NULL_STATE;
+        entry.updatedAt = now;
+        entry.local = true;
+        markChanged(entry);
+      }
+    }
+  }
+
+  public boolean hasChanges() {
+    return changed > 0;
+  }
+
+  /** Encodes the changed states and marks them as sent; drops states that have timed out. */
+  public Changes takeChanges(long now) {
+    Lib0Encoder all = new Lib0Encoder();
+    all.writeVarUint(changed);
+    List<Map.Entry<Long, Entry>> localChanges = new ArrayList<>();
+    for (Iterator<Map.Entry<Long, Entry>> it = states.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, Entry> e = it.next();
+      Entry entry = e.getValue();
+      if (entry.changed) {
+        writeState(all, e.getKey(), entry);
+        if (entry.local) {
+          localChanges.add(e);
+        }
+        entry.changed = false;
+      } else if (now - entry.updatedAt > OUTDATED_TIMEOUT_NANOS) {
+        it.remove();
+      }
+    }
+    if (changed == 0) {
+      return new Changes(null, null);
+    }
+    changed = 0;
+    if (localChanges.isEmpty()) {
+      return new Changes(all.toByteArray(), null);
+    }
+    Lib0Encoder local = new Lib0Encoder();
+    local.writeVarUint(localChanges.size());
+    for (Map.Entry<Long, Entry> e : localChanges) {
+      writeState(local, e.getKey(), e.getValue());
+    }
+    return new Changes(all.toByteArray(), local.toByteArray());
+  }
+
+  /** Encodes every current state, for a client that just joined or asked; null if none. */
+  public byte[] encodeSnapshot(long now) {
+    List<Map.Entry<Long, Entry>> current = new ArrayList<>();
+    for (Map.Entry<Long, Entry> e : states.entrySet()) {
+      Entry entry = e.getValue();
+      if (!entry.isRemoved() && now - entry.updatedAt <= OUTDATED_TIMEOUT_NANOS) {
+        current.add(e);
+      }
+    }
+    if (current.isEmpty()) {
+      return null;
+    }
+    Lib0Encoder encoder = new Lib0Encoder();
+    encoder.writeVarUint(current.size());
+    for (Map.Entry<Long, Entry> e : current) {
+      writeState(encoder, e.getKey(), e.getValue());
+    }
+    return encoder.toByteArray();
+  }
+
+  private void markChanged(Entry entry) {
+    if (!entry.changed) {
+      entry.changed = true;
+      changed++;
+    }
+  }
+
+  private static void writeState(Lib0Encoder encoder, long clientId, Entry entry) {
+    encoder.writeVarUint(clientId);
+    encoder.writeVarUint(entry.clock);
+    encoder.writeVarUint8Array(entry.state);
+  }
+}
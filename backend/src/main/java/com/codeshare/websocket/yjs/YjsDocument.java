@@ -0,0 +1,83 @@
+package com.codeshare.websocket.yjs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server-side state of one room's Yjs document, kept as a merged update rather than a live
+ * document. Incoming updates are validated and appended; they are merged into the base state in
+ * batches so that a burst of keystrokes does not re-encode the whole document each time.
+ *
+ * <p>Not thread-safe: a document belongs to one room and is only touched from its mailbox.
+ */
+public class YjsDocument {
+  private static final int MAX_PENDING_UPDATES = 64;
+  private static final int MAX_PENDING_BYTES = 256 * 1024;
+
+  private byte[] state = YjsUpdates.EMPTY_UPDATE;
+  private byte[] stateVector = YjsUpdates.EMPTY_STATE_VECTOR;
+  private final List<byte[]> pending = new ArrayList<>();
+  private int pendingBytes;
+
+  /**
+   * Applies an update to the document.
+   *
+   * @throws IllegalArgumentException if the update cannot be decoded
+   */
+  public void applyUpdate(byte[] update) {
+    YjsUpdates.validate(update);
+    pending.add(update);
+    pendingBytes += update.length;
+    stateVector = null;
+    if (pending.size() >= MAX_PENDING_UPDATES || pendingBytes >= MAX_PENDING_BYTES) {
+      compact();
+    }
+  }
+
+  public boolean isEmpty() {
+    return pending.isEmpty() && state == YjsUpdates.EMPTY_UPDATE;
+  }
+
+  public byte[] encodeStateVector() {
+    if (stateVector == null) {
+      compact();
+      stateVector = YjsUpdates.encodeStateVectorFromUpdate(state);
+    }
+    return stateVector;
+  }
+
+  public byte[] encodeStateAsUpdate() {
+    compact();
+    return state;
+  }
+
+  /** Returns everything a peer with {@code remoteStateVector} is missing. */
+  public byte[] encodeDiff(byte[] remoteStateVector) {
+    compact();
+    return YjsUpdates.diffUpdate(state, remoteStateVector);
+  }
+
+  /**
+   * Whether applying {@code update} would leave the document as it is.
+   *
+   * @throws IllegalArgumentException if the update cannot be decoded
+   */
+  public boolean contains(byte[] update) {
+    compact();
+    return YjsUpdates.contains(state, update);
+  }
+
+  private void compact() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<byte[]> updates = new ArrayList<>(pending.size() + 1);
+    if (state != YjsUpdates.EMPTY_UPDATE) {
+      updates.add(state);
+    }
+    updates.addAll(pending);
+    state = YjsUpdates.mergeUpdates(updates);
+    pending.clear();
+    pendingBytes = 0;
+  }
+}
@@ -0,0 +1,93 @@
+package com.codeshare.websocket.yjs;
+
+import java.nio.ByteBuffer;
+
+/** Message framing of y-protocols as spoken by the y-websocket client. */
+public final class YjsProtocol {
+
+  // Top-level message types (first varuint of every frame)
+  public static final int MESSAGE_SYNC = 0;
+  public static final int MESSAGE_AWARENESS = 1;
+  public static final int MESSAGE_AUTH = 2;
+  public static final int MESSAGE_QUERY_AWARENESS = 3;
+
+  // Our own extension: the last update sequence the client has, presented again on reconnect.
+  // y-websocket only handles it if the client registered a message handler for it.
+  public static final int MESSAGE_RESUME_MARKER = 100;
+
+  // Sync message types (second varuint of a sync frame)
+  public static final int SYNC_STEP1 = 0;
+  public static final int SYNC_STEP2 = 1;
+  public static final int SYNC_UPDATE = 2;
+
+  private YjsProtocol() {}
+
+  /** A decoded sync message: its type and the state vector or update it carries. */
+  public record SyncMessage(int type, byte[] payload) {}
+
+  /** Returns the top-level message type of a frame without consuming it, or -1 if empty. */
+  public static int messageType(ByteBuffer frame) {
+    if (!frame.hasRemaining()) {
+      return -1;
+    }
+    // Every type we know fits in one byte; only decode a multi-byte varuint
+    byte first = frame.get(frame.position());
+    return first >= 0 ? first : (int) new Lib0Decoder(frame).readVarUint();
+  }
+
+  /** Decodes a sync frame; throws {@link IllegalArgumentException} if it is not one. */
+  public static SyncMessage readSyncMessage(ByteBuffer frame) {
+    Lib0Decoder decoder = new Lib0Decoder(frame);
+    if (decoder.readVarUint() != MESSAGE_SYNC) {
+      throw new IllegalArgumentException("Not a sync message");
+    }
+    int type = (int) decoder.readVarUint();
+    if (type < SYNC_STEP1 || type > SYNC_UPDATE) {
+      throw new IllegalArgumentException("Unknown sync message type: " + type);
+    }
+    return new SyncMessage(type, decoder.readVarUint8Array());
+  }
+
+  /** Returns the awareness update carried by an awareness frame. */
+  public static byte[] readAwarenessMessage(ByteBuffer frame) {
+    Lib0Decoder decoder = new Lib0Decoder(frame);
+    if (decoder.readVarUint() != MESSAGE_AWARENESS) {
+      throw new IllegalArgumentException("Not an awareness message");
+    }
+    return decoder.readVarUint8Array();
+  }
+
+  public static ByteBuffer awareness(byte[] update) {
+    Lib0Encoder encoder = new Lib0Encoder(update.length + 8);
+    encoder.writeVarUint(MESSAGE_AWARENESS);
+    encoder.writeVarUint8Array(update);
+    return ByteBuffer.wrap(encoder.toByteArray()).asReadOnlyBuffer();
+  }
+
+  public static ByteBuffer resumeMarker(long sequence) {
+    Lib0Encoder encoder = new Lib0Encoder(10);
+    encoder.writeVarUint(MESSAGE_RESUME_MARKER);
+    encoder.writeVarUint(sequence);
+    return ByteBuffer.wrap(encoder.toByteArray()).asReadOnlyBuffer();
+  }
+
+  public static ByteBuffer syncStep1(byte[] stateVector) {
+    return sync(SYNC_STEP1, stateVector);
+  }
+
+  public static ByteBuffer syncStep2(byte[] update) {
+    return sync(SYNC_STEP2, update);
+  }
+
+  public static ByteBuffer syncUpdate(byte[] update) {
+    return sync(SYNC_UPDATE, update);
+  }
+
+  private static ByteBuffer sync(int type, byte[] payload) {
+    Lib0Encoder encoder = new Lib0Encoder(payload.length + 8);
+    encoder.writeVarUint(MESSAGE_SYNC);
+    encoder.writeVarUint(type);
+    encoder.writeVarUint8Array(payload);
+    return ByteBuffer.wrap(encoder.toByteArray()).asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,705 @@
+package com.codeshare.websocket.yjs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Update-level operations on Yjs v1 updates, ported from {@code yjs/src/utils/updates.js}: merging
+ * updates, diffing an update against a state vector and deriving a state vector from an update.
+ *
+ * <p>Like the JavaScript implementation these work on the encoded structs and never build a
+ * document, so item contents are only decoded as far as needed to slice them.
+ */
+public final class YjsUpdates {
+
+  /** An update with no structs and an empty delete set. */
+  public static final byte[] EMPTY_UPDATE = {0, 0};
+
+  /** A state vector with no clients. */
+  public static final byte[] EMPTY_STATE_VECTOR = {0};
+
+  private static final int STRUCT_GC = 0;
+  private static final int STRUCT_SKIP = 10;
+
+  private static final int CONTENT_DELETED = 1;
+  private static final int CONTENT_JSON = 2;
+  private static final int CONTENT_BINARY = 3;
+  private static final int CONTENT_STRING = 4;
+  private static final int CONTENT_EMBED = 5;
+  private static final int CONTENT_FORMAT = 6;
+  private static final int CONTENT_TYPE = 7;
+  private static final int CONTENT_ANY = 8;
+  private static final int CONTENT_DOC = 9;
+
+  private static final int TYPE_XML_ELEMENT = 3;
+  private static final int TYPE_XML_HOOK = 5;
+
+  private YjsUpdates() {}
+
+  /** Equivalent of {@code Y.mergeUpdates}. */
+  public static byte[] mergeUpdates(List<byte[]> updates) {
+    if (updates.size() == 1) {
+      return updates.get(0);
+    }
+    List<DecodedUpdate> decoded = new ArrayList<>(updates.size());
+    List<StructCursor> cursors = new ArrayList<>(updates.size());
+    for (byte[] update : updates) {
+      DecodedUpdate d = decode(update);
+      decoded.add(d);
+      cursors.add(new StructCursor(d.structs, true));
+    }
+
+    StructWriter writer = new StructWriter();
+    Struct currWrite = null;
+    while (true) {
+      // Write higher clients first: sort by client id and clock, drop exhausted cursors
+      cursors.removeIf(cursor -> cursor.curr == null);
+      cursors.sort(CURSOR_ORDER);
+      if (cursors.isEmpty()) {
+        break;
+      }
+      StructCursor currDecoder = cursors.get(0);
+      long firstClient = currDecoder.curr.client;
+      if (currWrite != null) {
+        Struct curr = currDecoder.curr;
+        boolean iterated = false;
+        // skip everything that has already been written
+        while (curr != null
+            && curr.clock + curr.length <= currWrite.clock + currWrite.length
+            && curr.client >= currWrite.client) {
+          curr = currDecoder.next();
+          iterated = true;
+        }
+        if (curr == null
+            || curr.client != firstClient
+            || (iterated && curr.clock > currWrite.clock + currWrite.length)) {
+          continue;
+        }
+        if (firstClient != currWrite.client) {
+          writer.write(currWrite, 0);
+          currWrite = curr;
+          currDecoder.next();
+        } else if (currWrite.clock + currWrite.length < curr.clock) {
+          if (currWrite.kind == STRUCT_SKIP) {
+            currWrite.length = curr.clock + curr.length - currWrite.clock;
+          } else {
+            writer.write(currWrite, 0);
+            long diff = curr.clock - currWrite.clock - currWrite.length;
+            currWrite =
+                Struct.filler(STRUCT_SKIP, firstClient, currWrite.clock + currWrite.length, diff);
+          }
+        } else {
+          long diff = currWrite.clock + currWrite.length - curr.clock;
+          if (diff > 0) {
+            if (currWrite.kind == STRUCT_SKIP) {
+              // prefer slicing the skip, the other struct carries more information
+              currWrite.length -= diff;
+            } else {
+              curr = curr.slice(diff);
+            }
+          }
+          if (!currWrite.mergeWith(curr)) {
+            writer.write(currWrite, 0);
+            currWrite = curr;
+            currDecoder.next();
+          }
+        }
+      } else {
+        currWrite = currDecoder.curr;
+        currDecoder.next();
+      }
+      for (Struct next = currDecoder.curr;
+          next != null
+              && next.client == firstClient
+              && next.clock == currWrite.clock + currWrite.length
+              && next.kind != STRUCT_SKIP;
+          next = currDecoder.next()) {
+        writer.write(currWrite, 0);
+        currWrite = next;
+      }
+    }
+    if (currWrite != null) {
+      writer.write(currWrite, 0);
+    }
+    Lib0Encoder encoder = writer.finish();
+
+    List<Map<Long, List<long[]>>> deleteSets = new ArrayList<>(decoded.size());
+    for (DecodedUpdate d : decoded) {
+      deleteSets.add(d.deleteSet);
+    }
+    writeDeleteSet(encoder, mergeDeleteSets(deleteSets));
+    return encoder.toByteArray();
+  }
+
+  /**
+   * Equivalent of {@code Y.diffUpdate}: the part of {@code update} that a peer with the given state
+   * vector is missing. The delete set is always included in full.
+   */
+  public static byte[] diffUpdate(byte[] update, byte[] stateVector) {
+    Map<Long, Long> state = decodeStateVector(stateVector);
+    DecodedUpdate decoded = decode(update);
+    StructWriter writer = new StructWriter();
+    StructCursor reader = new StructCursor(decoded.structs, false);
+    while (reader.curr != null) {
+      Struct curr = reader.curr;
+      long currClient = curr.client;
+      long svClock = state.getOrDefault(currClient, 0L);
+      if (curr.kind == STRUCT_SKIP) {
+        // the first written struct shouldn't be a skip
+        reader.next();
+        continue;
+      }
+      if (curr.clock + curr.length > svClock) {
+        writer.write(curr, Math.max(svClock - curr.clock, 0));
+        reader.next();
+        while (reader.curr != null && reader.curr.client == currClient) {
+          writer.write(reader.curr, 0);
+          reader.next();
+        }
+      } else {
+        // read until something new comes up
+        while (reader.curr != null
+            && reader.curr.client == currClient
+            && reader.curr.clock + reader.curr.length <= svClock) {
+          reader.next();
+        }
+      }
+    }
+    Lib0Encoder encoder = writer.finish();
+    writeDeleteSet(encoder, decoded.deleteSet);
+    return encoder.toByteArray();
+  }
+
+  /** Equivalent of {@code Y.encodeStateVectorFromUpdate}. */
+  public static byte[] encodeStateVectorFromUpdate(byte[] update) {
+    Map<Long, Long> clocks = clocksOf(decode(update).structs);
+    Lib0Encoder encoder = new Lib0Encoder(clocks.size() * 8 + 4);
+    encoder.writeVarUint(clocks.size());
+    clocks.forEach(
+        (client, clock) -> {
+          encoder.writeVarUint(client);
+          encoder.writeVarUint(clock);
+        });
+    return encoder.toByteArray();
+  }
+
+  /** The contiguous clock range from 0 of each client, in the order the structs list them. */
+  private static Map<Long, Long> clocksOf(List<Struct> structs) {
+    Map<Long, Long> clocks = new LinkedHashMap<>();
+    if (structs.isEmpty()) {
+      return clocks;
+    }
+    Struct first = structs.get(0);
+    long currClient = first.client;
+    boolean stopCounting = first.clock != 0; // must start at 0
+    long currClock = 0;
+    for (Struct curr : structs) {
+      if (currClient != curr.client) {
+        if (currClock != 0) {
+          clocks.put(currClient, currClock);
+        }
+        currClient = curr.client;
+        currClock = 0;
+        stopCounting = curr.clock != 0;
+      }
+      // skips leave a gap, nothing after them is known to be contiguous
+      if (curr.kind == STRUCT_SKIP) {
+        stopCounting = true;
+      }
+      if (!stopCounting) {
+        currClock = curr.clock + curr.length;
+      }
+    }
+    if (currClock != 0) {
+      clocks.put(currClient, currClock);
+    }
+    return clocks;
+  }
+
+  /**
+   * Whether applying {@code update} to a document whose merged state is {@code state} would change
+   * nothing: every struct in it is below the state's state vector and every deletion it carries is
+   * already in the state's delete set.
+   */
+  public static boolean contains(byte[] state, byte[] update) {
+    DecodedUpdate incoming = decode(update);
+    DecodedUpdate base = decode(state);
+    Map<Long, Long> clocks = clocksOf(base.structs);
+    for (Struct struct : incoming.structs) {
+      if (struct.kind != STRUCT_SKIP
+          && struct.clock + struct.length > clocks.getOrDefault(struct.client, 0L)) {
+        return false;
+      }
+    }
+    Map<Long, List<long[]>> deleted = mergeDeleteSets(List.of(base.deleteSet));
+    for (Map.Entry<Long, List<long[]>> entry : incoming.deleteSet.entrySet()) {
+      List<long[]> ranges = deleted.getOrDefault(entry.getKey(), List.of());
+      for (long[] delete : entry.getValue()) {
+        // merged ranges never touch, so a covered deletion lies within a single one
+        if (ranges.stream()
+            .noneMatch(r -> r[0] <= delete[0] && delete[0] + delete[1] <= r[0] + r[1])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  public static Map<Long, Long> decodeStateVector(byte[] stateVector) {
+    Lib0Decoder decoder = new Lib0Decoder(stateVector);
+    long size = decoder.readVarUint();
+    Map<Long, Long> state = new HashMap<>();
+    for (long i = 0; i < size; i++) {
+      long client = decoder.readVarUint();
+      long clock = decoder.readVarUint();
+      state.put(client, clock);
+    }
+    return state;
+  }
+
+  /** Decodes an update, failing with {@link IllegalArgumentException} if it is malformed. */
+  public static void validate(byte[] update) {
+    decode(update);
+  }
+
+  // --- decoding ---------------------------------------------------------------------------
+
+  private record DecodedUpdate(List<Struct> structs, Map<Long, List<long[]>> deleteSet) {}
+
+  private static DecodedUpdate decode(byte[] update) {
+    Lib0Decoder decoder = new Lib0Decoder(update);
+    List<Struct> structs = new ArrayList<>();
+    long numOfStateUpdates = decoder.readVarUint();
+    for (long i = 0; i < numOfStateUpdates; i++) {
+      long numberOfStructs = decoder.readVarUint();
+      long client = decoder.readVarUint();
+      long clock = decoder.readVarUint();
+      for (long j = 0; j < numberOfStructs; j++) {
+        Struct struct = readStruct(decoder, client, clock);
+        structs.add(struct);
+        clock += struct.length;
+      }
+    }
+    Map<Long, List<long[]>> deleteSet = new HashMap<>();
+    long numClients = decoder.readVarUint();
+    for (long i = 0; i < numClients; i++) {
+      long client = decoder.readVarUint();
+      long numberOfDeletes = decoder.readVarUint();
+      if (numberOfDeletes > 0) {
+        List<long[]> deletes = deleteSet.computeIfAbsent(client, k -> new ArrayList<>());
+        for (long j = 0; j < numberOfDeletes; j++) {
+          deletes.add(new long[] {decoder.readVarUint(), decoder.readVarUint()});
+        }
+      }
+    }
+    return new DecodedUpdate(structs, deleteSet);
+  }
+
+  private static Struct readStruct(Lib0Decoder decoder, long client, long clock) {
+    int info = decoder.readUint8();
+    if (info == STRUCT_SKIP) {
+      return Struct.filler(STRUCT_SKIP, client, clock, decoder.readVarUint());
+    }
+    if ((info & 0x1F) == STRUCT_GC) {
+      return Struct.filler(STRUCT_GC, client, clock, decoder.readVarUint());
+    }
+    Struct item = new Struct(Struct.ITEM, client, clock);
+    if ((info & 0x80) != 0) {
+      item.origin = new long[] {decoder.readVarUint(), decoder.readVarUint()};
+    }
+    if ((info & 0x40) != 0) {
+      item.rightOrigin = new long[] {decoder.readVarUint(), decoder.readVarUint()};
+    }
+    // parent information is only present when neither origin is
+    if ((info & 0xC0) == 0) {
+      if (decoder.readVarUint() == 1) {
+        item.parentKey = decoder.readVarString();
+      } else {
+        item.parentId = new long[] {decoder.readVarUint(), decoder.readVarUint()};
+      }
+      if ((info & 0x20) != 0) {
+        item.parentSub = decoder.readVarString();
+      }
+    }
+    item.content = readContent(decoder, info & 0x1F);
+    item.length = item.content.length();
+    return item;
+  }
+
+  private static Content readContent(Lib0Decoder decoder, int ref) {
+    switch (ref) {
+      case CONTENT_DELETED:
+        return new DeletedContent(decoder.readVarUint());
+      case CONTENT_STRING:
+        return new StringContent(decoder.readVarString());
+      case CONTENT_JSON:
+      case CONTENT_ANY:
+        {
+          int count = decoder.readVarUintAsInt();
+          List<byte[]> elements = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            int start = decoder.position();
+            if (ref == CONTENT_JSON) {
+              decoder.skipVarString();
+            } else {
+              decoder.skipAny();
+            }
+            elements.add(decoder.bytesSince(start));
+          }
+          return new ListContent(ref, elements);
+        }
+      case CONTENT_BINARY:
+      case CONTENT_EMBED:
+      case CONTENT_FORMAT:
+      case CONTENT_TYPE:
+      case CONTENT_DOC:
+        {
+          int start = decoder.position();
+          switch (ref) {
+            case CONTENT_BINARY, CONTENT_EMBED -> decoder.skipVarString();
+            case CONTENT_FORMAT -> {
+              decoder.skipVarString();
+              decoder.skipVarString();
+            }
+            case CONTENT_TYPE -> {
+              long typeRef = decoder.readVarUint();
+              if (typeRef == TYPE_XML_ELEMENT || typeRef == TYPE_XML_HOOK) {
+                decoder.skipVarString();
+              }
+            }
+            default -> {
+              decoder.skipVarString();
+              decoder.skipAny();
+            }
+          }
+          return new OpaqueContent(ref, decoder.bytesSince(start));
+        }
+      default:
+        throw new IllegalArgumentException("Unexpected content type: " + ref);
+    }
+  }
+
+  // --- delete sets ------------------------------------------------------------------------
+
+  private static Map<Long, List<long[]>> mergeDeleteSets(List<Map<Long, List<long[]>>> sets) {
+    Map<Long, List<long[]>> merged = new HashMap<>();
+    for (Map<Long, List<long[]>> set : sets) {
+      set.forEach(
+          (client, deletes) -> {
+            List<long[]> target = merged.computeIfAbsent(client, k -> new ArrayList<>());
+            for (long[] delete : deletes) {
+              target.add(delete.clone());
+            }
+          });
+    }
+    for (List<long[]> deletes : merged.values()) {
+      deletes.sort(Comparator.comparingLong(d -> d[0]));
+      int j = 1;
+      for (int i = 1; i < deletes.size(); i++) {
+        long[] left = deletes.get(j - 1);
+        long[] right = deletes.get(i);
+        if (left[0] + left[1] >= right[0]) {
+          left[1] = Math.max(left[1], right[0] + right[1] - left[0]);
+        } else {
+          deletes.set(j++, right);
+        }
+      }
+      deletes.subList(j, deletes.size()).clear();
+    }
+    return merged;
+  }
+
+  private static void writeDeleteSet(Lib0Encoder encoder, Map<Long, List<long[]>> deleteSet) {
+    // clients are written in descending order, like Yjs does
+    Map<Long, List<long[]>> ordered = new TreeMap<>(Comparator.reverseOrder());
+    ordered.putAll(deleteSet);
+    encoder.writeVarUint(ordered.size());
+    ordered.forEach(
+        (client, deletes) -> {
+          encoder.writeVarUint(client);
+          encoder.writeVarUint(deletes.size());
+          for (long[] delete : deletes) {
+            encoder.writeVarUint(delete[0]);
+            encoder.writeVarUint(delete[1]);
+          }
+        });
+  }
+
+  // --- structs ----------------------------------------------------------------------------
+
+  private static final Comparator<StructCursor> CURSOR_ORDER =
+      (a, b) -> {
+        if (a.curr.client == b.curr.client) {
+          long clockDiff = a.curr.clock - b.curr.clock;
+          if (clockDiff == 0) {
+            if (a.curr.kind == b.curr.kind) {
+              return 0;
+            }
+            return a.curr.kind == STRUCT_SKIP ? 1 : -1;
+          }
+          return Long.signum(clockDiff);
+        }
+        return Long.compare(b.curr.client, a.curr.client);
+      };
+
+  /** Iterates the structs of one update, optionally hiding skips. */
+  private static final class StructCursor {
+    private final List<Struct> structs;
+    private final boolean filterSkips;
+    private int index = -1;
+    Struct curr;
+
+    StructCursor(List<Struct> structs, boolean filterSkips) {
+      this.structs = structs;
+      this.filterSkips = filterSkips;
+      next();
+    }
+
+    Struct next() {
+      do {
+        index++;
+        curr = index < structs.size() ? structs.get(index) : null;
+      } while (filterSkips && curr != null && curr.kind == STRUCT_SKIP);
+      return curr;
+    }
+  }
+
+  /** Collects structs per client and prefixes each run with its struct count. */
+  private static final class StructWriter {
+    private final List<Integer> counts = new ArrayList<>();
+    private final List<byte[]> runs = new ArrayList<>();
+    private Lib0Encoder run = new Lib0Encoder();
+    private long currClient;
+    private int written;
+
+    void write(Struct struct, long offset) {
+      // flush the current run when another client starts
+      if (written > 0 && currClient != struct.client) {
+        flush();
+      }
+      if (written == 0) {
+        currClient = struct.client;
+        run.writeVarUint(struct.client);
+        run.writeVarUint(struct.clock + offset);
+      }
+      struct.write(run, offset);
+      written++;
+    }
+
+    private void flush() {
+      if (written > 0) {
+        counts.add(written);
+        runs.add(run.toByteArray());
+        run = new Lib0Encoder();
+        written = 0;
+      }
+    }
+
+    Lib0Encoder finish() {
+      flush();
+      int size = 8;
+      for (byte[] bytes : runs) {
+        size += bytes.length + 5;
+      }
+      Lib0Encoder encoder = new Lib0Encoder(size);
+      encoder.writeVarUint(runs.size());
+      for (int i = 0; i < runs.size(); i++) {
+        encoder.writeVarUint(counts.get(i));
+        encoder.writeBytes(runs.get(i));
+      }
+      return encoder;
+    }
+  }
+
+  /** A GC, Skip or Item struct, decoded just enough to be re-encoded or sliced. */
+  private static final class Struct {
+    static final int ITEM = -1;
+
+    final int kind;
+    final long client;
+    final long clock;
+    long length;
+    long[] origin;
+    long[] rightOrigin;
+    String parentKey;
+    long[] parentId;
+    String parentSub;
+    Content content;
+
+    Struct(int kind, long client, long clock) {
+      this.kind = kind;
+      this.client = client;
+      this.clock = clock;
+    }
+
+    static Struct filler(int kind, long client, long clock, long length) {
+      Struct struct = new Struct(kind, client, clock);
+      struct.length = length;
+      return struct;
+    }
+
+    /** Returns the part of this struct starting {@code diff} clock ticks in. */
+    Struct slice(long diff) {
+      if (kind != ITEM) {
+        return filler(kind, client, clock + diff, length - diff);
+      }
+      Struct right = new Struct(ITEM, client, clock + diff);
+      right.origin = new long[] {client, clock + diff - 1};
+      right.rightOrigin = rightOrigin;
+      right.parentKey = parentKey;
+      right.parentId = parentId;
+      right.parentSub = parentSub;
+      right.content = content.splice((int) diff);
+      right.length = right.content.length();
+      return right;
+    }
+
+    boolean mergeWith(Struct right) {
+      // items decoded from updates have no left/right links, so only GCs and skips merge
+      if (kind == ITEM || kind != right.kind) {
+        return false;
+      }
+      length += right.length;
+      return true;
+    }
+
+    void write(Lib0Encoder encoder, long offset) {
+      if (kind != ITEM) {
+        encoder.writeUint8(kind);
+        encoder.writeVarUint(length - offset);
+        return;
+      }
+      long[] writtenOrigin = offset > 0 ? new long[] {client, clock + offset - 1} : origin;
+      int info =
+          (content.ref() & 0x1F)
+              | (writtenOrigin == null ? 0 : 0x80)
+              | (rightOrigin == null ? 0 : 0x40)
+              | (parentSub == null ? 0 : 0x20);
+      encoder.writeUint8(info);
+      if (writtenOrigin != null) {
+        encoder.writeVarUint(writtenOrigin[0]);
+        encoder.writeVarUint(writtenOrigin[1]);
+      }
+      if (rightOrigin != null) {
+        encoder.writeVarUint(rightOrigin[0]);
+        encoder.writeVarUint(rightOrigin[1]);
+      }
+      if (writtenOrigin == null && rightOrigin == null) {
+        if (parentKey != null) {
+          encoder.writeVarUint(1);
+          encoder.writeVarString(parentKey);
+        } else {
+          encoder.writeVarUint(0);
+          encoder.writeVarUint(parentId[0]);
+          encoder.writeVarUint(parentId[1]);
+        }
+        if (parentSub != null) {
+          encoder.writeVarString(parentSub);
+        }
+      }
+      content.write(encoder, (int) offset);
+    }
+  }
+
+  // --- item contents ----------------------------------------------------------------------
+
+  private interface Content {
+    int ref();
+
+    long length();
+
+    void write(Lib0Encoder encoder, int offset);
+
+    /** Returns the content from {@code offset} on; only called on contents longer than one. */
+    Content splice(int offset);
+  }
+
+  private record DeletedContent(long length) implements Content {
+    @Override
+    public int ref() {
+      return CONTENT_DELETED;
+    }
+
+    @Override
+    public void write(Lib0Encoder encoder, int offset) {
+      encoder.writeVarUint(length - offset);
+    }
+
+    @Override
+    public Content splice(int offset) {
+      return new DeletedContent(length - offset);
+    }
+  }
+
+  /** Text content; lengths and offsets count UTF-16 code units, as in JavaScript. */
+  private record StringContent(String text) implements Content {
+    @Override
+    public int ref() {
+      return CONTENT_STRING;
+    }
+
+    @Override
+    public long length() {
+      return text.length();
+    }
+
+    @Override
+    public void write(Lib0Encoder encoder, int offset) {
+      encoder.writeVarString(offset == 0 ? text : text.substring(offset));
+    }
+
+    @Override
+    public Content splice(int offset) {
+      String right = text.substring(offset);
+      // never split a surrogate pair, Yjs replaces both halves with U+FFFD
+      if (Character.isHighSurrogate(text.charAt(offset - 1))) {
+        right = '\uFFFD' + right.substring(1);
+      }
+      return new StringContent(right);
+    }
+  }
+
+  /** JSON or Any content, kept as the encoded bytes of each element. */
+  private record ListContent(int ref, List<byte[]> elements) implements Content {
+    @Override
+    public long length() {
+      return elements.size();
+    }
+
+    @Override
+    public void write(Lib0Encoder encoder, int offset) {
+      encoder.writeVarUint(elements.size() - offset);
+      for (int i = offset; i < elements.size(); i++) {
+        encoder.writeBytes(elements.get(i));
+      }
+    }
+
+    @Override
+    public Content splice(int offset) {
+      return new ListContent(ref, elements.subList(offset, elements.size()));
+    }
+  }
+
+  /** Binary, embed, format, type and subdocument content: always length one, copied verbatim. */
+  private record OpaqueContent(int ref, byte[] encoded) implements Content {
+    @Override
+    public long length() {
+      return 1;
+    }
+
+    @Override
+    public void write(Lib0Encoder encoder, int offset) {
+      encoder.writeBytes(encoded);
+    }
+
+    @Override
+    public Content splice(int offset) {
+      throw new IllegalStateException("Content of length 1 cannot be split");
+    }
+  }
+}
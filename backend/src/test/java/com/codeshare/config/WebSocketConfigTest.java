@@ -0,0 +1,111 @@
+package com.codeshare.config;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.codeshare.infrastructure.redis.PresenceService;
+import com.codeshare.infrastructure.security.JwtService;
+import com.codeshare.websocket.AdmissionController;
+import com.codeshare.websocket.ConnectionDrain;
+import com.codeshare.websocket.EditorRoomHandler;
+import com.codeshare.websocket.MuxWebSocketHandler;
+import com.codeshare.websocket.YjsWebSocketHandler;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.catalina.connector.Connector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+public class WebSocketConfigTest {
+  // Tomcat's size for each buffer nothing else sizes
+  private static final int TOMCAT_DEFAULT = 8192;
+
+  private String ioBufferSize;
+
+  @BeforeEach
+  void setUp() {
+    ioBufferSize = System.clearProperty(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (ioBufferSize != null) {
+      System.setProperty(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY, ioBufferSize);
+    } else {
+      System.clearProperty(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY);
+    }
+  }
+
+  private static WebSocketConfig config(boolean density) {
+    return new WebSocketConfig(
+        mock(EditorRoomHandler.class),
+        mock(YjsWebSocketHandler.class),
+        mock(MuxWebSocketHandler.class),
+        mock(JwtService.class),
+        mock(PresenceService.class),
+        mock(ConnectionDrain.class),
+        mock(AdmissionController.class),
+        "http://localhost:3000",
+        "servlet",
+        density);
+  }
+
+  /**
+   * The buffers Tomcat allocates for every WebSocket session when it opens, idle or not, with the
+   * defaults from application.yml: socket read and write, WebSocket input, output and encoder, and
+   * the binary and text message buffers.
+   */
+  private static long bufferBytesPerSession(boolean density) {
+    WebSocketConfig config = config(density);
+    ServletServerContainerFactoryBean container = config.webSocketContainer(8192, 4096);
+    Map<String, String> connectorProperties = new HashMap<>();
+    Connector connector = mock(Connector.class);
+    doAnswer(
+            invocation ->
+                connectorProperties.put(invocation.getArgument(0), invocation.getArgument(1)))
+        .when(connector)
+        .setProperty(anyString(), anyString());
+    TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory(0);
+    config.densitySocketBuffers(4096, 2048).customize(factory);
+    factory.getTomcatConnectorCustomizers().forEach(customizer -> customizer.customize(connector));
+
+    long socket =
+        socketBuffer(connectorProperties, "socket.appReadBufSize")
+            + socketBuffer(connectorProperties, "socket.appWriteBufSize");
+    long io = 3L * Integer.getInteger(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY, TOMCAT_DEFAULT);
+    Integer text = container.getMaxTextMessageBufferSize();
+    return socket
+        + io
+        + container.getMaxBinaryMessageBufferSize()
+        + 2L * (text != null ? text : TOMCAT_DEFAULT);
+  }
+
+  private static long socketBuffer(Map<String, String> connectorProperties, String name) {
+    String size = connectorProperties.get(name);
+    return size != null ? Integer.parseInt(size) : TOMCAT_DEFAULT;
+  }
+
+  @Test
+  void testDensityModeAtLeastHalvesTheBuffersOfAnIdleSession() {
+    long standard = bufferBytesPerSession(false);
+    long dense = bufferBytesPerSession(true);
+
+    // IdleSessionFootprintBenchmark measures the whole session; these buffers are most of it
+    assertEquals(65536, standard);
+    assertTrue(dense * 2 <= standard, dense + " bytes in density mode against " + standard);
+  }
+
+  @Test
+  void testDensityModeLeavesAnOperatorsBufferSizeAlone() {
+    System.setProperty(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY, "4096");
+
+    config(true).densitySocketBuffers(4096, 2048).customize(new TomcatServletWebServerFactory(0));
+
+    assertEquals("4096", System.getProperty(WebSocketConfig.IO_BUFFER_SIZE_PROPERTY));
+  }
+}
@@ -0,0 +1,115 @@
+package com.codeshare.infrastructure.redis;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+public class ChannelSubscriptionsTest {
+  private RedisMessageListenerContainer container;
+  private MessageListener listener;
+  private Queue<Runnable> tasks;
+  private ChannelSubscriptions subscriptions;
+
+  @BeforeEach
+  void setUp() {
+    container = mock(RedisMessageListenerContainer.class);
+    listener = mock(MessageListener.class);
+    tasks = new ArrayDeque<>();
+    subscriptions = new ChannelSubscriptions(container, listener, tasks::add);
+  }
+
+  @Test
+  void testChangesAskedForBeforeAFlushGoOutTogether() {
+    subscriptions.subscribe("yjs:room:a");
+    subscriptions.subscribe("yjs:room:b");
+    subscriptions.subscribe("yjs:room:c");
+
+    assertEquals(1, tasks.size());
+    runTasks();
+    verify(container)
+        .addMessageListener(
+            listener,
+            List.of(
+                new ChannelTopic("yjs:room:a"),
+                new ChannelTopic("yjs:room:b"),
+                new ChannelTopic("yjs:room:c")));
+    verify(container, never()).removeMessageListener(any(), anyCollection());
+    assertEquals(3, subscriptions.size());
+  }
+
+  @Test
+  void testAChannelDroppedAndWantedAgainNeverReachesRedis() {
+    subscriptions.subscribe("yjs:room:a");
+    runTasks();
+
+    subscriptions.unsubscribe("yjs:room:a");
+    subscriptions.subscribe("yjs:room:a");
+    runTasks();
+
+    verify(container, times(1)).addMessageListener(any(), anyCollection());
+    verify(container, never()).removeMessageListener(any(), anyCollection());
+    assertEquals(1, subscriptions.size());
+  }
+
+  @Test
+  void testOnlySubscribedChannelsAreUnsubscribed() {
+    subscriptions.subscribe("yjs:room:a");
+    runTasks();
+
+    subscriptions.unsubscribe("yjs:room:a");
+    subscriptions.unsubscribe("yjs:room:b");
+    runTasks();
+
+    verify(container).removeMessageListener(listener, List.of(new ChannelTopic("yjs:room:a")));
+    assertEquals(0, subscriptions.size());
+  }
+
+  @Test
+  void testSubscriptionIsConfirmedOnlyOnceItHasGoneOut() {
+    CompletableFuture<Void> a = subscriptions.subscribe("yjs:room:a");
+    CompletableFuture<Void> again = subscriptions.subscribe("yjs:room:a");
+    assertFalse(a.isDone());
+
+    runTasks();
+
+    assertTrue(a.isDone());
+    assertTrue(again.isDone());
+    // Asked for again while subscribed, it is confirmed by the next flush without a SUBSCRIBE
+    CompletableFuture<Void> later = subscriptions.subscribe("yjs:room:a");
+    assertFalse(later.isDone());
+    runTasks();
+    assertTrue(later.isDone());
+    verify(container, times(1)).addMessageListener(any(), anyCollection());
+  }
+
+  @Test
+  void testSubscriptionIsConfirmedEvenIfRedisFails() {
+    doThrow(new IllegalStateException("connection lost"))
+        .when(container)
+        .addMessageListener(any(), anyCollection());
+
+    CompletableFuture<Void> a = subscriptions.subscribe("yjs:room:a");
+    runTasks();
+
+    // The container subscribes again once it reconnects
+    assertTrue(a.isDone());
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+}
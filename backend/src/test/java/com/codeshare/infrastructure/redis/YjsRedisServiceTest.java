@@ -0,0 +1,374 @@
+package com.codeshare.infrastructure.redis;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+public class YjsRedisServiceTest {
+  private StringRedisTemplate redisTemplate;
+  private RedisConnection connection;
+  private YjsRedisService yjsRedisService;
+  // Another instance, receiving what this one publishes
+  private YjsRedisService peer;
+
+  @BeforeEach
+  void setUp() {
+    redisTemplate = mock(StringRedisTemplate.class);
+    connection = mock(RedisConnection.class);
+    when(redisTemplate.execute(any(RedisCallback.class)))
+        .thenAnswer(
+            invocation -> invocation.<RedisCallback<?>>getArgument(0).doInRedis(connection));
+    YjsRelayTree direct = new YjsRelayTree(redisTemplate, false, 4, 4, 1000);
+    yjsRedisService =
+        new YjsRedisService(redisTemplate, mock(RedisMessageListenerContainer.class), direct, 1024);
+    peer =
+        new YjsRedisService(redisTemplate, mock(RedisMessageListenerContainer.class), direct, 1024);
+  }
+
+  private static byte[] bytes(String channel) {
+    return channel.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void testPublishDocumentUpdateCarriesRawFrame() {
+    byte[] frame = {0, 2, 3, (byte) 0xFF, 0x00, 0x7F};
+
+    yjsRedisService.publishDocumentUpdate("room1", "user1", ByteBuffer.wrap(frame));
+
+    ArgumentCaptor<byte[]> envelope = ArgumentCaptor.forClass(byte[].class);
+    verify(connection)
+        .publish(eq("yjs:room:room1".getBytes(StandardCharsets.UTF_8)), envelope.capture());
+    byte[] body = envelope.getValue();
+    byte[] tail = new byte[frame.length];
+    System.arraycopy(body, body.length - frame.length, tail, 0, frame.length);
+    assertArrayEquals(frame, tail);
+  }
+
+  @Test
+  void testEnvelopeRoundTrip() {
+    byte[] frame = {1, 5, (byte) 0x80, (byte) 0xC3, 0x28};
+    AtomicReference<YjsRedisService.YjsMessage> received = new AtomicReference<>();
+    peer.registerRoomHandler("room1", (roomId, message) -> received.set(message));
+
+    yjsRedisService.publishAwarenessUpdate("room1", "user-ü", ByteBuffer.wrap(frame));
+    ArgumentCaptor<byte[]> envelope = ArgumentCaptor.forClass(byte[].class);
+    verify(connection).publish(any(byte[].class), envelope.capture());
+    peer.onMessage(
+        new DefaultMessage("yjs:room:room1".getBytes(StandardCharsets.UTF_8), envelope.getValue()),
+        null);
+
+    YjsRedisService.YjsMessage message = received.get();
+    assertNotNull(message);
+    assertEquals(YjsRedisService.MessageType.AWARENESS, message.getType());
+    assertEquals("user-ü", message.getUserId());
+    ByteBuffer content = message.getContent().duplicate();
+    byte[] decoded = new byte[content.remaining()];
+    content.get(decoded);
+    assertArrayEquals(frame, decoded);
+    assertTrue(message.getContent().isReadOnly());
+  }
+
+  @Test
+  void testSequencedUpdateIsNumberedByRedis() {
+    RedisScriptingCommands scripting = mock(RedisScriptingCommands.class);
+    when(connection.scriptingCommands()).thenReturn(scripting);
+    when(scripting.evalSha(anyString(), eq(ReturnType.INTEGER), eq(2), any(byte[][].class)))
+        .thenThrow(new RedisSystemException("NOSCRIPT", new RuntimeException("NOSCRIPT")));
+    AtomicReference<Object[]> eval = new AtomicReference<>();
+    when(scripting.eval(any(byte[].class), eq(ReturnType.INTEGER), eq(2), any(byte[][].class)))
+        .thenAnswer(
+            invocation -> {
+              eval.set(invocation.getArguments());
+              return 42L;
+            });
+    byte[] frame = {0, 2, 3};
+
+    long sequence =
+        yjsRedisService.publishSequencedUpdate("room1", "user1", ByteBuffer.wrap(frame));
+
+    assertEquals(42, sequence);
+    Object[] arguments = eval.get();
+    assertArrayEquals("yjs:seq:room1".getBytes(StandardCharsets.UTF_8), (byte[]) arguments[3]);
+    assertArrayEquals("yjs:room:room1".getBytes(StandardCharsets.UTF_8), (byte[]) arguments[4]);
+    // Bytes 3-10 are left zero for the script to fill in
+    assertEquals(0, ByteBuffer.wrap((byte[]) arguments[5]).getLong(2));
+  }
+
+  @Test
+  void testEnvelopeCarriesSequence() {
+    YjsRedisService.YjsMessage message =
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, ByteBuffer.wrap(new byte[] {0, 2, 3}), "u", 7);
+
+    YjsRedisService.YjsMessage decoded =
+        YjsRedisService.YjsMessage.fromEnvelope(message.toEnvelope());
+
+    assertEquals(7, decoded.getSequence());
+    assertEquals("u", decoded.getUserId());
+  }
+
+  @Test
+  void testLargeFramesAreCompressedOnceAndRestoredOnReceipt() {
+    byte[] frame = new byte[8192];
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = (byte) "const x = 1;\n".charAt(i % 13);
+    }
+    AtomicReference<YjsRedisService.YjsMessage> received = new AtomicReference<>();
+    peer.registerRoomHandler("room1", (roomId, message) -> received.set(message));
+
+    yjsRedisService.publishDocumentUpdate("room1", "user1", ByteBuffer.wrap(frame));
+    ArgumentCaptor<byte[]> envelope = ArgumentCaptor.forClass(byte[].class);
+    verify(connection).publish(any(byte[].class), envelope.capture());
+    peer.onMessage(
+        new DefaultMessage("yjs:room:room1".getBytes(StandardCharsets.UTF_8), envelope.getValue()),
+        null);
+
+    assertTrue(envelope.getValue().length < frame.length / 10);
+    YjsRedisService.YjsMessage message = received.get();
+    assertEquals(YjsRedisService.MessageType.DOCUMENT, message.getType());
+    assertEquals(ByteBuffer.wrap(frame), message.getContent());
+    assertEquals(0, YjsRedisService.YjsMessage.ZLIB.outstanding());
+  }
+
+  @Test
+  void testPooledCompressorsStartAfreshForEveryEnvelope() {
+    byte[] frame = new byte[4096];
+    Arrays.fill(frame, (byte) 'x');
+    YjsRedisService.YjsMessage message =
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, ByteBuffer.wrap(frame), "u");
+
+    byte[] first = message.toEnvelope(1, 1024);
+    byte[] second = message.toEnvelope(1, 1024);
+
+    assertArrayEquals(first, second);
+    assertEquals(
+        ByteBuffer.wrap(frame), YjsRedisService.YjsMessage.fromEnvelope(second).getContent());
+    assertEquals(0, YjsRedisService.YjsMessage.ZLIB.outstanding());
+  }
+
+  @Test
+  void testIncompressibleFrameIsSentRaw() {
+    byte[] frame = new byte[2048];
+    new java.util.Random(1).nextBytes(frame);
+
+    byte[] envelope =
+        new YjsRedisService.YjsMessage(
+                YjsRedisService.MessageType.DOCUMENT, ByteBuffer.wrap(frame), "u")
+            .toEnvelope(1, 1024);
+
+    assertEquals(
+        ByteBuffer.wrap(frame), YjsRedisService.YjsMessage.fromEnvelope(envelope).getContent());
+    assertEquals(frame.length + 29, envelope.length);
+    assertEquals(0, YjsRedisService.YjsMessage.ZLIB.outstanding());
+  }
+
+  @Test
+  void testOwnPublicationsAreDroppedOnReceipt() {
+    YjsRedisService.YjsMessageHandler handler = mock(YjsRedisService.YjsMessageHandler.class);
+    yjsRedisService.registerRoomHandler("room1", handler);
+
+    yjsRedisService.publishDocumentUpdate("room1", "user1", ByteBuffer.wrap(new byte[] {0, 2}));
+    ArgumentCaptor<byte[]> envelope = ArgumentCaptor.forClass(byte[].class);
+    verify(connection).publish(any(byte[].class), envelope.capture());
+    yjsRedisService.onMessage(
+        new DefaultMessage("yjs:room:room1".getBytes(StandardCharsets.UTF_8), envelope.getValue()),
+        null);
+
+    verifyNoInteractions(handler);
+  }
+
+  @Test
+  void testRelayedUpdatesGoToTheRootAndArePassedDownTheTree() {
+    YjsRelayTree relayTree = mock(YjsRelayTree.class);
+    when(relayTree.route("room1")).thenReturn(bytes("yjs:relay:room1:a"));
+    when(relayTree.children("room1"))
+        .thenReturn(List.of(bytes("yjs:relay:room1:b"), bytes("yjs:relay:room1:c")));
+    Queue<Runnable> relays = new ArrayDeque<>();
+    YjsRedisService relaying =
+        new YjsRedisService(
+            redisTemplate,
+            mock(RedisMessageListenerContainer.class),
+            relayTree,
+            1024,
+            Runnable::run,
+            relays::add);
+    YjsRedisService.YjsMessageHandler handler = mock(YjsRedisService.YjsMessageHandler.class);
+    relaying.registerRoomHandler("room1", handler);
+
+    relaying.publishDocumentUpdate("room1", "user1", ByteBuffer.wrap(new byte[] {0, 2}));
+    ArgumentCaptor<byte[]> envelope = ArgumentCaptor.forClass(byte[].class);
+    verify(connection).publish(eq(bytes("yjs:relay:room1:a")), envelope.capture());
+    // As the root, it receives its own update and passes it on without delivering it again
+    relaying.onMessage(new DefaultMessage(bytes("yjs:relay:room1:a"), envelope.getValue()), null);
+    relays.poll().run();
+    // A leaf hands a relayed update to its room
+    peer.registerRoomHandler("room1", handler);
+    peer.onMessage(new DefaultMessage(bytes("yjs:relay:room1:c"), envelope.getValue()), null);
+
+    verify(connection).publish(bytes("yjs:relay:room1:b"), envelope.getValue());
+    verify(connection).publish(bytes("yjs:relay:room1:c"), envelope.getValue());
+    verify(handler).handleMessage(eq("room1"), any(YjsRedisService.YjsMessage.class));
+  }
+
+  @Test
+  void testRelayedUpdatesArePassedOnInOrderOffTheListenerThread() {
+    YjsRelayTree relayTree = mock(YjsRelayTree.class);
+    when(relayTree.children("room1"))
+        .thenReturn(List.of(bytes("yjs:relay:room1:b"), bytes("yjs:relay:room1:c")));
+    when(relayTree.children("room2")).thenReturn(List.of(bytes("yjs:relay:room2:b")));
+    Queue<Runnable> relays = new ArrayDeque<>();
+    YjsRedisService relaying =
+        new YjsRedisService(
+            redisTemplate,
+            mock(RedisMessageListenerContainer.class),
+            relayTree,
+            1024,
+            Runnable::run,
+            relays::add);
+    byte[] first = envelopeOf(new byte[] {0, 2, 1});
+    byte[] second = envelopeOf(new byte[] {0, 2, 2});
+    byte[] third = envelopeOf(new byte[] {0, 2, 3});
+
+    relaying.onMessage(new DefaultMessage(bytes("yjs:relay:room1:a"), first), null);
+    relaying.onMessage(new DefaultMessage(bytes("yjs:relay:room2:a"), second), null);
+    relaying.onMessage(new DefaultMessage(bytes("yjs:relay:room1:a"), third), null);
+
+    // The listener only queued them, for one flush
+    verify(connection, never()).publish(any(byte[].class), any(byte[].class));
+    assertEquals(1, relays.size());
+
+    relays.poll().run();
+    var order = inOrder(connection);
+    order.verify(connection).openPipeline();
+    order.verify(connection).publish(bytes("yjs:relay:room1:b"), first);
+    order.verify(connection).publish(bytes("yjs:relay:room1:c"), first);
+    order.verify(connection).publish(bytes("yjs:relay:room2:b"), second);
+    order.verify(connection).publish(bytes("yjs:relay:room1:b"), third);
+    order.verify(connection).publish(bytes("yjs:relay:room1:c"), third);
+    order.verify(connection).closePipeline();
+
+    // Whatever arrives next goes out with the next flush
+    relaying.onMessage(new DefaultMessage(bytes("yjs:relay:room1:a"), first), null);
+    assertEquals(1, relays.size());
+  }
+
+  private static byte[] envelopeOf(byte[] frame) {
+    return new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, ByteBuffer.wrap(frame), "user1")
+        .toEnvelope();
+  }
+
+  @Test
+  void testUntaggedEnvelopeStillDecodes() {
+    byte[] user = "u".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer envelope = ByteBuffer.allocate(20 + user.length + 2);
+    envelope.put((byte) 2).put((byte) YjsRedisService.MessageType.DOCUMENT.ordinal());
+    envelope.putLong(9).putLong(System.currentTimeMillis());
+    envelope.putShort((short) user.length).put(user).put(new byte[] {0, 2});
+
+    YjsRedisService.YjsMessage decoded = YjsRedisService.YjsMessage.fromEnvelope(envelope.array());
+
+    assertEquals(9, decoded.getSequence());
+    assertEquals("u", decoded.getUserId());
+    assertEquals(ByteBuffer.wrap(new byte[] {0, 2}), decoded.getContent());
+  }
+
+  @Test
+  void testOneInstanceClaimsEachRemoteSyncRequest() {
+    ValueOperations<String, String> values = mock(ValueOperations.class);
+    when(redisTemplate.opsForValue()).thenReturn(values);
+    when(values.setIfAbsent(anyString(), anyString(), any(Duration.class))).thenReturn(true, false);
+    YjsRedisService.YjsMessage request =
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, ByteBuffer.wrap(new byte[] {0, 0, 1, 0}), null);
+
+    assertTrue(yjsRedisService.claimSyncAnswer("room1", request));
+    assertFalse(peer.claimSyncAnswer("room1", request));
+
+    // Without Redis to ask, answering twice beats not answering at all
+    when(values.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+        .thenThrow(new RedisSystemException("down", null));
+    assertTrue(peer.claimSyncAnswer("room1", request));
+  }
+
+  @Test
+  void testOnlyRoomsOpenHereAreSubscribedTo() {
+    RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+    YjsRedisService service =
+        new YjsRedisService(
+            redisTemplate,
+            container,
+            new YjsRelayTree(redisTemplate, false, 4, 4, 1000),
+            1024,
+            Runnable::run,
+            Runnable::run);
+    verifyNoInteractions(container);
+
+    service.registerRoomHandler("room1", (roomId, message) -> {});
+    verify(container).addMessageListener(service, List.of(new ChannelTopic("yjs:room:room1")));
+
+    service.unregisterRoomHandler("room1");
+    verify(container).removeMessageListener(service, List.of(new ChannelTopic("yjs:room:room1")));
+  }
+
+  @Test
+  void testRoomRegistrationCompletesOnceItsChannelIsSubscribed() {
+    RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+    Queue<Runnable> flushes = new ArrayDeque<>();
+    YjsRedisService service =
+        new YjsRedisService(
+            redisTemplate,
+            container,
+            new YjsRelayTree(redisTemplate, false, 4, 4, 1000),
+            1024,
+            flushes::add,
+            Runnable::run);
+
+    CompletableFuture<Void> subscribed =
+        service.registerRoomHandler("room1", (roomId, message) -> {});
+    assertFalse(subscribed.isDone());
+
+    flushes.poll().run();
+    verify(container).addMessageListener(service, List.of(new ChannelTopic("yjs:room:room1")));
+    assertTrue(subscribed.isDone());
+  }
+
+  @Test
+  void testOnMessageIgnoresRoomsWithoutHandler() {
+    YjsRedisService.YjsMessageHandler handler = mock(YjsRedisService.YjsMessageHandler.class);
+    yjsRedisService.registerRoomHandler("room1", handler);
+    yjsRedisService.unregisterRoomHandler("room1");
+
+    yjsRedisService.onMessage(
+        new DefaultMessage("yjs:room:room1".getBytes(StandardCharsets.UTF_8), new byte[] {1}),
+        null);
+
+    verifyNoInteractions(handler);
+  }
+}
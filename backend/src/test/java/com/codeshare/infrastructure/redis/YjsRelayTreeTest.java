@@ -0,0 +1,143 @@
+package com.codeshare.infrastructure.redis;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+public class YjsRelayTreeTest {
+  private StringRedisTemplate redisTemplate;
+  private ZSetOperations<String, String> zSet;
+  private YjsRelayTree tree;
+
+  // Nodes of each room's set, as the refresh script would find them
+  private final Map<String, List<String>> nodeSets = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    redisTemplate = mock(StringRedisTemplate.class);
+    zSet = mock(ZSetOperations.class);
+    when(redisTemplate.opsForZSet()).thenReturn(zSet);
+    when(redisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class)))
+        .thenAnswer(
+            invocation -> {
+              List<String> keys = invocation.getArgument(1);
+              List<Object> rooms = new ArrayList<>();
+              for (String key : keys) {
+                List<String> nodes = nodeSets.getOrDefault(key, List.of());
+                rooms.add(nodes.size() >= 3 ? nodes : (Object) (long) nodes.size());
+              }
+              return rooms;
+            });
+    tree = new YjsRelayTree(redisTemplate, true, 2, 3, 60_000);
+  }
+
+  @AfterEach
+  void tearDown() {
+    tree.shutdown();
+  }
+
+  private void nodes(String... nodes) {
+    // Redis orders by refresh time; the tree must not depend on it
+    nodeSets.put("yjs:relay-nodes:room1", List.of(nodes));
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Object[]> refreshCalls() {
+    ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+    verify(redisTemplate, atLeastOnce()).execute(any(RedisScript.class), anyList(), args.capture());
+    return args.getAllValues();
+  }
+
+  private static List<String> channels(List<byte[]> channels) {
+    return channels.stream().map(c -> new String(c, StandardCharsets.UTF_8)).toList();
+  }
+
+  @Test
+  void testRoomsBelowMinNodesUseTheRoomChannel() {
+    nodes("a2", "a1");
+    tree.join("room1", 0xa1);
+    tree.refresh("room1");
+
+    assertNull(tree.route("room1"));
+    assertTrue(tree.children("room1").isEmpty());
+    // The entry renewed is this node's
+    assertEquals("a1", refreshCalls().get(0)[4]);
+  }
+
+  @Test
+  void testEveryNodeForwardsToAtMostFanOutChildren() {
+    nodes("a6", "a3", "a1", "a5", "a2", "a4");
+
+    tree.join("room1", 0xa1);
+    tree.refresh("room1");
+    assertEquals("yjs:relay:room1:a1", new String(tree.route("room1"), StandardCharsets.UTF_8));
+    assertEquals(
+        List.of("yjs:relay:room1:a2", "yjs:relay:room1:a3"), channels(tree.children("room1")));
+
+    tree.join("room1", 0xa3);
+    tree.refresh("room1");
+    assertEquals(List.of("yjs:relay:room1:a6"), channels(tree.children("room1")));
+
+    tree.join("room1", 0xa5);
+    tree.refresh("room1");
+    assertTrue(tree.children("room1").isEmpty());
+    assertEquals("yjs:relay:room1:a1", new String(tree.route("room1"), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testLeavingRemovesTheNodeAndFallsBackToTheRoomChannel() {
+    nodes("a1", "a2", "a3");
+    tree.join("room1", 0xa2);
+    tree.refresh("room1");
+    assertNotNull(tree.route("room1"));
+
+    tree.leave("room1");
+
+    assertNull(tree.route("room1"));
+    verify(zSet, timeout(5000)).remove(eq("yjs:relay-nodes:room1"), anyString());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testRefreshRenewsEveryRoomInOneCallPerBatch() {
+    for (int i = 0; i < 130; i++) {
+      tree.join("room" + i, 0xa1);
+    }
+    // Each join renews its room at once, on the refresh thread
+    verify(redisTemplate, timeout(5000).times(130))
+        .execute(any(RedisScript.class), anyList(), any(Object[].class));
+    clearInvocations(redisTemplate);
+
+    tree.refreshAll();
+
+    ArgumentCaptor<List<String>> keys = ArgumentCaptor.forClass(List.class);
+    verify(redisTemplate, times(2))
+        .execute(any(RedisScript.class), keys.capture(), any(Object[].class));
+    assertEquals(List.of(128, 2), keys.getAllValues().stream().map(List::size).toList());
+    verifyNoMoreInteractions(redisTemplate);
+    verifyNoInteractions(zSet);
+  }
+
+  @Test
+  void testRelayChannelsNameTheirRoom() {
+    assertEquals("room:1", YjsRelayTree.roomOf(YjsRelayTree.channel("room:1", 0xa1)));
+    assertNull(YjsRelayTree.roomOf("yjs:room:room1"));
+  }
+}
@@ -0,0 +1,50 @@
+package com.codeshare.infrastructure.redis;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+public class ZlibPoolTest {
+
+  @Test
+  void testReleasedEntriesAreReused() {
+    ZlibPool pool = new ZlibPool(1);
+
+    ZlibPool.Compressor compressor = pool.compressor();
+    Inflater inflater = pool.inflater();
+    assertEquals(2, pool.outstanding());
+    pool.release(compressor);
+    pool.release(inflater);
+
+    assertSame(compressor, pool.compressor());
+    assertSame(inflater, pool.inflater());
+    assertEquals(2, pool.outstanding());
+  }
+
+  @Test
+  void testEntriesReleasedIntoAFullPoolAreEnded() {
+    ZlibPool pool = new ZlibPool(1);
+    ZlibPool.Compressor first = pool.compressor();
+    ZlibPool.Compressor second = pool.compressor();
+
+    pool.release(first);
+    pool.release(second);
+
+    assertEquals(0, pool.outstanding());
+    assertEquals(0, first.deflater.getBytesRead());
+    assertThrows(NullPointerException.class, second.deflater::getBytesRead);
+  }
+
+  @Test
+  void testOnlyModestScratchBuffersAreKept() {
+    ZlibPool.Compressor compressor = new ZlibPool(1).compressor();
+
+    assertEquals(1024, compressor.scratch(1024).capacity());
+    assertEquals(1 << 20, compressor.scratch(1 << 20).capacity());
+    ByteBuffer small = compressor.scratch(16);
+    assertEquals(1024, small.capacity());
+    assertEquals(16, small.remaining());
+  }
+}
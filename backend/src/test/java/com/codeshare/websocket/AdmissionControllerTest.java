@@ -0,0 +1,77 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+public class AdmissionControllerTest {
+  private SimpleMeterRegistry registry;
+  private final AtomicInteger sessions = new AtomicInteger();
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private double heapRatio;
+  private AdmissionController admission;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    admission =
+        new AdmissionController(
+            new MetricsService(registry),
+            sessions::get,
+            queuedBytes::get,
+            () -> heapRatio,
+            100,
+            1000,
+            0.8,
+            0.9,
+            5);
+  }
+
+  @Test
+  void testAdmitsUntilALimitIsReached() {
+    sessions.set(99);
+    assertNull(admission.admit());
+
+    sessions.set(100);
+    assertEquals("sessions", admission.admit());
+
+    sessions.set(0);
+    queuedBytes.set(1000);
+    assertEquals("outbound_queue", admission.admit());
+
+    queuedBytes.set(0);
+    heapRatio = 0.8;
+    assertEquals("heap", admission.admit());
+
+    assertEquals(
+        1,
+        registry.get("websocket_admission_rejected_total").tag("reason", "heap").counter().count());
+  }
+
+  @Test
+  void testReadinessIsWithdrawnBeforeHandshakesAreRefused() {
+    AdmissionHealthIndicator health = new AdmissionHealthIndicator(admission);
+    sessions.set(89);
+    assertEquals(Status.UP, health.health().getStatus());
+
+    sessions.set(90);
+
+    assertEquals(Status.OUT_OF_SERVICE, health.health().getStatus());
+    assertEquals(90, health.health().getDetails().get("sessions"));
+    assertNull(admission.admit());
+  }
+
+  @Test
+  void testRetryAfterIsJitteredAboveTheHint() {
+    for (int i = 0; i < 100; i++) {
+      int seconds = admission.retryAfterSeconds();
+      assertTrue(seconds >= 5 && seconds <= 10, "retry after " + seconds);
+    }
+  }
+}
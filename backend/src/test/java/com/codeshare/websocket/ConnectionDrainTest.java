@@ -0,0 +1,108 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.session.CloseStatuses;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.socket.WebSocketSession;
+
+public class ConnectionDrainTest {
+  private SimpleMeterRegistry registry;
+  private ConnectionDrain drain;
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    drain = new ConnectionDrain(new MetricsService(registry), 3, Duration.ZERO);
+    drain.start();
+  }
+
+  @Test
+  void testHandshakesAreRefusedOnceDraining() throws Exception {
+    assertTrue(handshake(new MockHttpServletResponse()));
+
+    drain.stop();
+
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    assertFalse(handshake(response));
+    assertEquals(503, response.getStatus());
+    assertEquals("1", response.getHeader("Retry-After"));
+  }
+
+  @Test
+  void testEveryTrackedSessionIsClosedWithTheDrainCode() throws Exception {
+    List<WebSocketSession> sessions = new ArrayList<>();
+    for (int i = 0; i < 7; i++) {
+      WebSocketSession session = openSession();
+      drain.track(session);
+      sessions.add(session);
+    }
+    WebSocketSession gone = openSession();
+    drain.track(gone);
+    drain.untrack(gone);
+
+    drain.stop();
+
+    for (WebSocketSession session : sessions) {
+      verify(session).close(CloseStatuses.SERVER_DRAINING);
+    }
+    verify(gone, never()).close(any());
+    assertEquals(7, registry.get("websocket_drained_sessions_total").counter().count());
+    assertFalse(drain.isRunning());
+  }
+
+  @Test
+  void testAsynchronousStopCallsBackWhenDone() throws Exception {
+    WebSocketSession session = openSession();
+    drain.track(session);
+    CountDownLatch stopped = new CountDownLatch(1);
+
+    drain.stop(stopped::countDown);
+
+    assertTrue(stopped.await(5, TimeUnit.SECONDS));
+    verify(session).close(CloseStatuses.SERVER_DRAINING);
+  }
+
+  @Test
+  void testSessionEstablishedWhileDrainingIsClosedAtOnce() throws Exception {
+    drain.stop();
+    WebSocketSession late = openSession();
+
+    drain.track(late);
+
+    verify(late).close(CloseStatuses.SERVER_DRAINING);
+  }
+
+  private boolean handshake(MockHttpServletResponse response) throws Exception {
+    ServletServerHttpResponse serverResponse = new ServletServerHttpResponse(response);
+    boolean accepted =
+        drain.beforeHandshake(
+            new ServletServerHttpRequest(new MockHttpServletRequest()),
+            serverResponse,
+            null,
+            new HashMap<>());
+    // Headers reach the servlet response when the handshake handler flushes it
+    serverResponse.flush();
+    return accepted;
+  }
+
+  private static WebSocketSession openSession() {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.isOpen()).thenReturn(true);
+    return session;
+  }
+}
@@ -0,0 +1,103 @@
+package com.codeshare.websocket;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.PresenceService;
+import com.codeshare.infrastructure.security.JwtService;
+import com.codeshare.kafka.EditorEventProducer;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OutboundSessionFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+public class EditorRoomHandlerTest {
+  private PresenceService presenceService;
+  private HeartbeatWheel heartbeatWheel;
+  private EditorRoomHandler handler;
+
+  @BeforeEach
+  void setUp() {
+    presenceService = mock(PresenceService.class);
+    when(presenceService.getUsersInRoom("room1")).thenReturn(Set.of("alice"));
+    JwtService jwtService = mock(JwtService.class);
+    when(jwtService.extractClaim(anyString(), eq("userId")))
+        .thenAnswer(invocation -> "user-" + invocation.getArgument(0));
+    OutboundSessionFactory outboundSessionFactory = mock(OutboundSessionFactory.class);
+    when(outboundSessionFactory.create(any(), any()))
+        .thenAnswer(invocation -> mock(OutboundSession.class));
+    MetricsService metricsService = new MetricsService(new SimpleMeterRegistry());
+    heartbeatWheel = new HeartbeatWheel(metricsService, 1000, 25_000, 60_000);
+    handler =
+        new EditorRoomHandler(
+            mock(EditorEventProducer.class),
+            presenceService,
+            jwtService,
+            metricsService,
+            heartbeatWheel,
+            new ConnectionDrain(metricsService, 1, Duration.ZERO),
+            outboundSessionFactory);
+  }
+
+  @AfterEach
+  void tearDown() {
+    heartbeatWheel.stop();
+  }
+
+  private WebSocketSession connect(String query) {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(query);
+    when(session.isOpen()).thenReturn(true);
+    when(session.getUri()).thenReturn(URI.create("ws://localhost/ws/editor?" + query));
+    when(session.getAttributes()).thenReturn(new HashMap<>());
+    when(session.getHandshakeHeaders()).thenReturn(HttpHeaders.EMPTY);
+    handler.afterConnectionEstablished(session);
+    return session;
+  }
+
+  private OutboundSession outbound(WebSocketSession session) {
+    return (OutboundSession) session.getAttributes().get("editor.outbound");
+  }
+
+  @Test
+  void testSpectatorGetsEditorEventsButNoPresence() {
+    OutboundSession editor = outbound(connect("roomId=room1&token=alice"));
+    OutboundSession spectator = outbound(connect("roomId=room1&mode=spectator"));
+
+    handler.broadcastToRoom("room1", "{\"type\":\"edit\"}");
+
+    ByteBuffer event = ByteBuffer.wrap("{\"type\":\"edit\"}".getBytes(StandardCharsets.UTF_8));
+    verify(editor).sendText(event);
+    verify(spectator).sendText(event);
+    verify(editor).sendPresence(any());
+    verify(spectator, never()).sendPresence(any());
+    verify(presenceService).addUserToRoom("room1", "user-alice");
+  }
+
+  @Test
+  void testClosedSpectatorGetsNoMoreEvents() {
+    WebSocketSession session = connect("roomId=room1&mode=spectator");
+    OutboundSession spectator = outbound(session);
+
+    handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+    handler.broadcastToRoom("room1", "{\"type\":\"edit\"}");
+
+    verify(spectator, never()).sendText(any());
+    verify(presenceService, never()).removeUserFromRoom(anyString(), anyString());
+  }
+}
@@ -0,0 +1,303 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.codeshare.config.WebSocketConfig;
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.PresenceService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.infrastructure.security.JwtService;
+import com.codeshare.websocket.room.DuplicateWindow;
+import com.codeshare.websocket.room.FlushWindow;
+import com.codeshare.websocket.room.RoomLanes;
+import com.codeshare.websocket.room.UpdateRing;
+import com.codeshare.websocket.room.YjsRoom;
+import com.codeshare.websocket.room.YjsRoomFactory;
+import com.codeshare.websocket.room.YjsRoomRegistry;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.OutboundSessionFactory;
+import com.codeshare.websocket.session.OverflowPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServer;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+import org.springframework.web.socket.server.support.WebSocketHttpRequestHandler;
+
+/**
+ * Measures the heap an idle /ws/yjs session retains on a running Tomcat, as configured by default
+ * and in density mode. Each mode starts an embedded Tomcat with the container and connector
+ * settings {@link WebSocketConfig} applies, serves /ws/yjs through the real handshake interceptors
+ * and handler, and opens a few hundred WebSocket connections that then stay silent; the retained
+ * heap is read after a full GC. The clients are bare sockets in the same JVM, a few hundred bytes
+ * each, and are counted in. Each mode runs in a JVM of its own, as density mode sizes some of
+ * Tomcat's session buffers for the whole JVM.
+ *
+ * <p>It is a benchmark rather than a test: it takes several seconds, forces collections, and its
+ * figure depends on the JVM. The name keeps it out of {@code mvn test}, where {@code
+ * WebSocketConfigTest} guards the buffer sizes that make up most of the difference; run it on its
+ * own with {@code ./mvnw test -Dtest=IdleSessionFootprintBenchmark}.
+ */
+public class IdleSessionFootprintBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(IdleSessionFootprintBenchmark.class);
+
+  private static final int SESSIONS = 400;
+  // Marks the line on which a measuring JVM reports its figure
+  private static final String RESULT = "retained-per-session=";
+
+  @Test
+  void testDensityModeRetainsAtMostHalfTheHeapPerIdleSession() throws Exception {
+    long standard = measureInOwnJvm(false);
+    long dense = measureInOwnJvm(true);
+
+    logger.info(
+        "Retained heap per idle session: {} bytes by default, {} bytes in density mode ({}x)",
+        standard,
+        dense,
+        String.format("%.1f", (double) standard / dense));
+    assertTrue(
+        dense * 2 <= standard,
+        "density mode retains " + dense + " bytes per session against " + standard);
+  }
+
+  /** Runs in the measuring JVM: prints the heap each idle session retains in the given mode. */
+  public static void main(String[] args) throws Exception {
+    System.out.println(RESULT + retainedPerSession(Boolean.parseBoolean(args[0])));
+    // Without waiting for the threads Tomcat and Mockito leave behind
+    System.exit(0);
+  }
+
+  private static long measureInOwnJvm(boolean density) throws Exception {
+    String java = ProcessHandle.current().info().command().orElse("java");
+    Process process =
+        new ProcessBuilder(
+                java,
+                "-cp",
+                System.getProperty("java.class.path"),
+                IdleSessionFootprintBenchmark.class.getName(),
+                String.valueOf(density))
+            .redirectErrorStream(true)
+            .start();
+    String result = null;
+    try (BufferedReader output = process.inputReader()) {
+      for (String line = output.readLine(); line != null; line = output.readLine()) {
+        if (line.startsWith(RESULT)) {
+          result = line.substring(RESULT.length());
+        }
+      }
+    }
+    assertEquals(0, process.waitFor(), "measuring JVM failed");
+    assertNotNull(result, "measuring JVM reported nothing");
+    return Long.parseLong(result);
+  }
+
+  /** Opens idle sessions in one room and returns the heap each retains once they have settled. */
+  private static long retainedPerSession(boolean density) throws Exception {
+    MetricsService metricsService = new MetricsService(new SimpleMeterRegistry());
+    // Stub-only mocks, which keep no record of their calls
+    YjsRedisService yjsRedisService = mock(YjsRedisService.class, withSettings().stubOnly());
+    when(yjsRedisService.registerRoomHandler(anyString(), any()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    YjsRoom room =
+        new YjsRoom(
+            "room1",
+            RoomLanes.single(Runnable::run),
+            mock(ScheduledExecutorService.class, withSettings().stubOnly()),
+            yjsRedisService,
+            Runnable::run,
+            metricsService,
+            FlushWindow.disabled(),
+            0,
+            new UpdateRing(16, 1 << 20),
+            new DuplicateWindow(16, 1 << 20),
+            0,
+            0);
+    YjsRoomFactory roomFactory = mock(YjsRoomFactory.class, withSettings().stubOnly());
+    when(roomFactory.create("room1")).thenReturn(room);
+    JwtService jwtService = mock(JwtService.class, withSettings().stubOnly());
+    when(jwtService.isTokenValid(anyString())).thenReturn(true);
+    // A fresh string per session, as parsing a real token gives
+    when(jwtService.extractEmail(anyString()))
+        .thenAnswer(invocation -> invocation.getArgument(0) + "@example.com");
+    when(jwtService.extractClaim(anyString(), eq("userId")))
+        .thenAnswer(invocation -> "user-" + invocation.getArgument(0));
+    AdmissionController admissionController =
+        mock(AdmissionController.class, withSettings().stubOnly());
+
+    ConnectionDrain connectionDrain =
+        new ConnectionDrain(metricsService, 10, Duration.ofSeconds(15));
+    OutboundSessionFactory outboundSessionFactory =
+        new OutboundSessionFactory(metricsService, 1 << 20, 10_000, OverflowPolicy.COALESCE, 65536);
+    HeartbeatWheel heartbeatWheel = new HeartbeatWheel(metricsService, 1000, 25_000, 60_000);
+    YjsWebSocketHandler handler =
+        new YjsWebSocketHandler(
+            new YjsRoomRegistry(roomFactory, yjsRedisService),
+            metricsService,
+            outboundSessionFactory,
+            heartbeatWheel,
+            connectionDrain,
+            16 << 20,
+            64 << 20,
+            density);
+    WebSocketConfig config =
+        new WebSocketConfig(
+            mock(EditorRoomHandler.class, withSettings().stubOnly()),
+            handler,
+            mock(MuxWebSocketHandler.class, withSettings().stubOnly()),
+            jwtService,
+            mock(PresenceService.class, withSettings().stubOnly()),
+            connectionDrain,
+            admissionController,
+            "http://localhost:3000",
+            "servlet",
+            density);
+
+    // As WebSocketConfig registers /ws/yjs
+    WebSocketHttpRequestHandler yjsEndpoint =
+        new WebSocketHttpRequestHandler(handler, new DefaultHandshakeHandler());
+    yjsEndpoint.setHandshakeInterceptors(
+        List.of(
+            connectionDrain,
+            new WebSocketAuthInterceptor(jwtService, Set.of(), admissionController, !density),
+            new YjsRoomHandshakeInterceptor()));
+
+    TomcatServletWebServerFactory factory = new TomcatServletWebServerFactory(0);
+    factory.addContextCustomizers(
+        context -> context.addServletContainerInitializer(new WsSci(), null));
+    config.densitySocketBuffers(4096, 2048).customize(factory);
+    AtomicReference<ServletContext> servletContext = new AtomicReference<>();
+    WebServer server =
+        factory.getWebServer(
+            context -> {
+              servletContext.set(context);
+              context
+                  .addServlet(
+                      "yjs",
+                      new HttpServlet() {
+                        @Override
+                        protected void service(HttpServletRequest req, HttpServletResponse resp)
+                            throws ServletException, IOException {
+                          yjsEndpoint.handleRequest(req, resp);
+                        }
+                      })
+                  .addMapping("/ws/yjs/*");
+            });
+    List<Socket> clients = new ArrayList<>();
+    try {
+      // The WebSocket container exists once the context has started, as when Boot refreshes
+      ServletServerContainerFactoryBean container = config.webSocketContainer(8192, 4096);
+      container.setServletContext(servletContext.get());
+      container.afterPropertiesSet();
+      yjsEndpoint.setServletContext(servletContext.get());
+      yjsEndpoint.start();
+      server.start();
+
+      // The first session creates the room and warms up the connector, neither a per-session cost
+      clients.add(connect(server.getPort(), 0));
+      awaitSessions(connectionDrain, metricsService, 1);
+      long before = usedHeapAfterGc();
+
+      for (int i = 1; i <= SESSIONS; i++) {
+        clients.add(connect(server.getPort(), i));
+      }
+      awaitSessions(connectionDrain, metricsService, SESSIONS + 1);
+      long retained = usedHeapAfterGc() - before;
+      return retained / SESSIONS;
+    } finally {
+      for (Socket client : clients) {
+        client.close();
+      }
+      server.stop();
+      heartbeatWheel.stop();
+      outboundSessionFactory.shutdown();
+    }
+  }
+
+  /** Opens a WebSocket to /ws/yjs/room1 and leaves it silent once the upgrade is accepted. */
+  private static Socket connect(int port, int index) throws IOException {
+    Socket socket = new Socket("localhost", port);
+    String handshake =
+        "GET /ws/yjs/room1 HTTP/1.1\r\n"
+            + "Host: localhost:"
+            + port
+            + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Sec-WebSocket-Protocol: jwt,token-"
+            + index
+            + "\r\n\r\n";
+    socket.getOutputStream().write(handshake.getBytes(StandardCharsets.US_ASCII));
+    socket.getOutputStream().flush();
+    String status = readStatusLine(socket.getInputStream());
+    assertTrue(status.startsWith("HTTP/1.1 101"), "handshake " + index + " got " + status);
+    return socket;
+  }
+
+  private static String readStatusLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int b = in.read(); b != -1 && b != '\n'; b = in.read()) {
+      line.append((char) b);
+    }
+    return line.toString().trim();
+  }
+
+  /** Waits for the sessions to be open and the sync step 1 and awareness each join queues sent. */
+  private static void awaitSessions(
+      ConnectionDrain connectionDrain, MetricsService metricsService, int sessions)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while ((connectionDrain.sessionCount() < sessions
+            || metricsService.getOutboundQueuedBytes() > 0)
+        && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(sessions, connectionDrain.sessionCount());
+    assertEquals(0, metricsService.getOutboundQueuedBytes());
+  }
+
+  private static long usedHeapAfterGc() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    // Until a collection frees nothing more
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used) {
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+}
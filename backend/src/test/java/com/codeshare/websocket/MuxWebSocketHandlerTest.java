@@ -0,0 +1,169 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.room.YjsRoom;
+import com.codeshare.websocket.room.YjsRoomRegistry;
+import com.codeshare.websocket.session.CloseStatuses;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OutboundSessionFactory;
+import com.codeshare.websocket.session.OverflowPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+public class MuxWebSocketHandlerTest {
+  private YjsRoomRegistry roomRegistry;
+  private MuxWebSocketHandler handler;
+  private WebSocketSession session;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    roomRegistry = mock(YjsRoomRegistry.class);
+    MetricsService metricsService = new MetricsService(new SimpleMeterRegistry());
+    handler =
+        new MuxWebSocketHandler(
+            roomRegistry,
+            metricsService,
+            new OutboundSessionFactory(
+                metricsService, 1 << 20, 10_000, OverflowPolicy.COALESCE, 1 << 16),
+            new HeartbeatWheel(metricsService, 1000, 25_000, 60_000),
+            new ConnectionDrain(metricsService, 1, Duration.ZERO),
+            1 << 20,
+            2);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("userId", "alice");
+    session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn("s1");
+    when(session.isOpen()).thenReturn(true);
+    when(session.getAttributes()).thenReturn(attributes);
+    handler.afterConnectionEstablished(session);
+  }
+
+  private YjsRoom room(String roomId) {
+    YjsRoom room = mock(YjsRoom.class);
+    when(room.getRoomId()).thenReturn(roomId);
+    when(roomRegistry.acquire(roomId)).thenReturn(room);
+    return room;
+  }
+
+  private void send(int channel, byte[] payload) throws Exception {
+    ByteBuffer frame = ByteBuffer.allocate(2 + payload.length);
+    frame.putShort((short) channel).put(payload).flip();
+    handler.handleMessage(session, new BinaryMessage(frame));
+  }
+
+  private void subscribe(int channel, long resumeFrom, String roomId) throws Exception {
+    byte[] room = roomId.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer control = ByteBuffer.allocate(11 + room.length);
+    control.put(MuxWebSocketHandler.SUBSCRIBE).putShort((short) channel).putLong(resumeFrom);
+    send(0, control.put(room).array());
+  }
+
+  private OutboundSession joined(YjsRoom room) {
+    ArgumentCaptor<OutboundSession> outbound = ArgumentCaptor.forClass(OutboundSession.class);
+    verify(room).join(outbound.capture(), anyLong());
+    return outbound.getValue();
+  }
+
+  private static byte[] bytes(BinaryMessage message) {
+    ByteBuffer payload = message.getPayload().duplicate();
+    byte[] bytes = new byte[payload.remaining()];
+    payload.get(bytes);
+    return bytes;
+  }
+
+  @Test
+  void testChannelFramesReachTheirRoomWithoutTheHeader() throws Exception {
+    YjsRoom room = room("room1");
+
+    subscribe(7, 42, "room1");
+    send(7, new byte[] {0, 2, 3});
+
+    verify(room).join(any(OutboundSession.class), eq(42L));
+    OutboundSession outbound = joined(room);
+    ArgumentCaptor<ByteBuffer> frame = ArgumentCaptor.forClass(ByteBuffer.class);
+    verify(room).receive(eq(outbound), eq("alice"), frame.capture());
+    assertEquals(ByteBuffer.wrap(new byte[] {0, 2, 3}), frame.getValue());
+  }
+
+  @Test
+  void testRoomFramesAreSentBehindTheChannelId() throws Exception {
+    YjsRoom room = room("room1");
+    subscribe(7, -1, "room1");
+
+    joined(room).send(ByteBuffer.wrap(new byte[] {0, 2, 9}).asReadOnlyBuffer());
+
+    ArgumentCaptor<BinaryMessage> sent = ArgumentCaptor.forClass(BinaryMessage.class);
+    verify(session, timeout(5000)).sendMessage(sent.capture());
+    assertArrayEquals(new byte[] {0, 7, 0, 2, 9}, bytes(sent.getValue()));
+  }
+
+  @Test
+  void testClosingAChannelLeavesItsRoomAndTellsTheClient() throws Exception {
+    YjsRoom room = room("room1");
+    subscribe(7, -1, "room1");
+    OutboundSession outbound = joined(room);
+
+    outbound.getSession().close(CloseStatuses.RESYNC_REQUIRED);
+    send(7, new byte[] {0, 2, 3});
+
+    verify(room).leave(outbound);
+    verify(roomRegistry).release(room);
+    verify(room, never()).receive(any(), any(), any());
+    ArgumentCaptor<BinaryMessage> sent = ArgumentCaptor.forClass(BinaryMessage.class);
+    verify(session).sendMessage(sent.capture());
+    assertArrayEquals(new byte[] {0, 0, 3, 0, 7, 0x0F, (byte) 0xA1}, bytes(sent.getValue()));
+    verify(session, never()).close(any());
+  }
+
+  @Test
+  void testChannelsOverTheLimitAreRefused() throws Exception {
+    room("a");
+    room("b");
+    room("c");
+
+    subscribe(1, -1, "a");
+    subscribe(2, -1, "b");
+    subscribe(3, -1, "c");
+
+    verify(roomRegistry, never()).acquire("c");
+    ArgumentCaptor<BinaryMessage> sent = ArgumentCaptor.forClass(BinaryMessage.class);
+    verify(session).sendMessage(sent.capture());
+    assertArrayEquals(new byte[] {0, 0, 3, 0, 3, 0x03, (byte) 0xF0}, bytes(sent.getValue()));
+  }
+
+  @Test
+  void testUnsubscribeAndDisconnectLeaveEveryRoom() throws Exception {
+    YjsRoom first = room("a");
+    YjsRoom second = room("b");
+    subscribe(1, -1, "a");
+    subscribe(2, -1, "b");
+
+    send(0, new byte[] {MuxWebSocketHandler.UNSUBSCRIBE, 0, 1});
+    OutboundSession firstOutbound = joined(first);
+    verify(first).leave(firstOutbound);
+    verify(second, never()).leave(any());
+
+    handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+    OutboundSession secondOutbound = joined(second);
+    verify(second).leave(secondOutbound);
+    verify(roomRegistry, times(2)).release(any());
+    verify(session, never()).sendMessage(any());
+  }
+}
@@ -0,0 +1,82 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class PartialFrameTest {
+
+  @Test
+  void testChunksAreJoinedWhenTheLastArrives() {
+    AtomicLong roomBytes = new AtomicLong();
+    PartialFrame partial = new PartialFrame(roomBytes, 1024, 4096);
+    ByteBuffer reused = ByteBuffer.wrap(new byte[] {1, 2, 3});
+
+    assertNull(partial.append(reused, false));
+    reused.array()[0] = 9;
+    assertNull(partial.append(ByteBuffer.wrap(new byte[] {4, 5}), false));
+    assertEquals(5, roomBytes.get());
+    ByteBuffer frame = partial.append(ByteBuffer.wrap(new byte[] {6}), true);
+
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6}), frame);
+    assertTrue(frame.isReadOnly());
+    assertEquals(0, roomBytes.get());
+  }
+
+  @Test
+  void testSingleChunkFrameIsCopiedWithoutAccounting() {
+    AtomicLong roomBytes = new AtomicLong();
+    PartialFrame partial = new PartialFrame(roomBytes, 2, 2);
+    byte[] payload = {1, 2, 3, 4};
+
+    ByteBuffer frame = partial.append(ByteBuffer.wrap(payload), true);
+    payload[0] = 9;
+
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), frame);
+    assertEquals(0, roomBytes.get());
+  }
+
+  @Test
+  void testFrameOverLimitIsRejectedAndReleased() {
+    AtomicLong roomBytes = new AtomicLong();
+    PartialFrame partial = new PartialFrame(roomBytes, 5, 4096);
+
+    partial.append(ByteBuffer.allocate(4), false);
+    assertThrows(
+        IllegalArgumentException.class, () -> partial.append(ByteBuffer.allocate(4), true));
+
+    assertEquals(0, roomBytes.get());
+    assertEquals(3, partial.append(ByteBuffer.allocate(3), true).remaining());
+  }
+
+  @Test
+  void testRoomLimitIsSharedBySessions() {
+    AtomicLong roomBytes = new AtomicLong();
+    PartialFrame first = new PartialFrame(roomBytes, 1024, 10);
+    PartialFrame second = new PartialFrame(roomBytes, 1024, 10);
+
+    first.append(ByteBuffer.allocate(6), false);
+    assertThrows(
+        IllegalArgumentException.class, () -> second.append(ByteBuffer.allocate(6), false));
+    assertEquals(6, roomBytes.get());
+
+    first.discard();
+    assertNull(second.append(ByteBuffer.allocate(6), false));
+    assertEquals(6, roomBytes.get());
+  }
+
+  @Test
+  void testPuttingAFrameTogetherCountsAgainstTheRoom() {
+    AtomicLong roomBytes = new AtomicLong();
+    PartialFrame partial = new PartialFrame(roomBytes, 1024, 10);
+
+    // 6 bytes of chunks fit, but not with the 6-byte frame they are copied into
+    partial.append(ByteBuffer.allocate(3), false);
+    assertThrows(
+        IllegalArgumentException.class, () -> partial.append(ByteBuffer.allocate(3), true));
+
+    assertEquals(0, roomBytes.get());
+  }
+}
@@ -0,0 +1,36 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class PerMessageDeflateFilterTest {
+
+  @Test
+  void testOfferAsksForServerNoContextTakeover() {
+    assertEquals(
+        "permessage-deflate; client_max_window_bits; server_no_context_takeover",
+        PerMessageDeflateFilter.rewriteOffers(
+            "permessage-deflate; client_max_window_bits", true, true));
+    assertEquals(
+        "permessage-deflate; server_no_context_takeover",
+        PerMessageDeflateFilter.rewriteOffers(
+            "permessage-deflate; server_no_context_takeover", true, true));
+  }
+
+  @Test
+  void testDisabledCompressionDropsOnlyDeflateOffers() {
+    assertEquals(
+        "x-webkit-foo",
+        PerMessageDeflateFilter.rewriteOffers(
+            "permessage-deflate; client_max_window_bits, x-webkit-foo", false, true));
+    assertNull(PerMessageDeflateFilter.rewriteOffers("permessage-deflate", false, true));
+  }
+
+  @Test
+  void testContextTakeoverCanBeKept() {
+    assertEquals(
+        "permessage-deflate",
+        PerMessageDeflateFilter.rewriteOffers("permessage-deflate", true, false));
+  }
+}
@@ -0,0 +1,92 @@
+package com.codeshare.websocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.room.YjsRoom;
+import com.codeshare.websocket.room.YjsRoomRegistry;
+import com.codeshare.websocket.session.HeartbeatWheel;
+import com.codeshare.websocket.session.OutboundSessionFactory;
+import com.codeshare.websocket.session.OverflowPolicy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+public class YjsWebSocketHandlerTest {
+  private YjsRoom room;
+  private AtomicLong partialFrameBytes;
+  private YjsWebSocketHandler handler;
+
+  @BeforeEach
+  void setUp() {
+    YjsRoomRegistry roomRegistry = mock(YjsRoomRegistry.class);
+    room = mock(YjsRoom.class);
+    partialFrameBytes = new AtomicLong();
+    when(room.getRoomId()).thenReturn("room1");
+    when(room.getPartialFrameBytes()).thenReturn(partialFrameBytes);
+    when(roomRegistry.acquire("room1")).thenReturn(room);
+    MetricsService metricsService = new MetricsService(new SimpleMeterRegistry());
+    handler =
+        new YjsWebSocketHandler(
+            roomRegistry,
+            metricsService,
+            new OutboundSessionFactory(
+                metricsService, 1 << 20, 10_000, OverflowPolicy.COALESCE, 1 << 16),
+            new HeartbeatWheel(metricsService, 1000, 25_000, 60_000),
+            new ConnectionDrain(metricsService, 1, Duration.ZERO),
+            1024,
+            2048,
+            false);
+  }
+
+  private WebSocketSession open(String id) {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put(YjsRoomHandshakeInterceptor.ROOM_ID_ATTRIBUTE, "room1");
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(id);
+    when(session.isOpen()).thenReturn(true);
+    when(session.getAttributes()).thenReturn(attributes);
+    handler.afterConnectionEstablished(session);
+    return session;
+  }
+
+  private void sendChunk(WebSocketSession session, int length, boolean last) throws Exception {
+    handler.handleMessage(session, new BinaryMessage(ByteBuffer.allocate(length), last));
+  }
+
+  @Test
+  void testUnfinishedFrameIsReturnedToTheRoomOnClose() throws Exception {
+    WebSocketSession alice = open("s1");
+    WebSocketSession bob = open("s2");
+    sendChunk(alice, 600, false);
+    sendChunk(bob, 400, false);
+    assertEquals(1000, partialFrameBytes.get());
+
+    handler.afterConnectionClosed(alice, CloseStatus.GOING_AWAY);
+
+    assertEquals(400, partialFrameBytes.get());
+    handler.afterConnectionClosed(bob, CloseStatus.NORMAL);
+    assertEquals(0, partialFrameBytes.get());
+    verify(room, never()).receive(any(), any(), any());
+  }
+
+  @Test
+  void testFrameOverTheLimitClosesTheSessionAndFreesItsBytes() throws Exception {
+    WebSocketSession session = open("s1");
+
+    sendChunk(session, 600, false);
+    sendChunk(session, 600, false);
+
+    verify(session).close(CloseStatus.TOO_BIG_TO_PROCESS);
+    assertEquals(0, partialFrameBytes.get());
+  }
+}
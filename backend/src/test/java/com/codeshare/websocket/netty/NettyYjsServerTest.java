@@ -0,0 +1,256 @@
+package com.codeshare.websocket.netty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakeException;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpAsyncRequestControl;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.server.WebsocketServerSpec;
+
+public class NettyYjsServerTest {
+  private NettyYjsServer server;
+
+  @AfterEach
+  void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private NettyYjsServer start(WebSocketHandler handler, HandshakeInterceptor interceptor) {
+    return start(handler, interceptor, null);
+  }
+
+  private NettyYjsServer start(
+      WebSocketHandler handler, HandshakeInterceptor interceptor, NettyPerMessageDeflate deflate) {
+    server =
+        new NettyYjsServer(
+            handler,
+            List.of(interceptor),
+            "127.0.0.1",
+            0,
+            WebsocketServerSpec.builder().build(),
+            deflate);
+    server.start();
+    return server;
+  }
+
+  @Test
+  void testFramesReachTheHandlerAndRepliesReachTheClient() throws Exception {
+    EchoHandler handler = new EchoHandler();
+    start(handler, accepting("room1"));
+    byte[] frame = {0, 2, 3, (byte) 0xFF};
+
+    byte[] echoed =
+        HttpClient.create()
+            .websocket()
+            .uri("ws://127.0.0.1:" + server.port() + "/ws/yjs/room1")
+            .handle(
+                (in, out) ->
+                    out.sendObject(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(frame)))
+                        .then()
+                        .thenMany(in.receive().asByteArray().take(1)))
+            .blockFirst(Duration.ofSeconds(5));
+
+    assertArrayEquals(frame, echoed);
+    assertEquals("room1", handler.roomId);
+    assertTrue(handler.closed.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testOnlyMessagesFromTheThresholdUpAreDeflated() throws Exception {
+    start(new EchoHandler(), accepting("room1"), new NettyPerMessageDeflate(64));
+    byte[] small = new byte[16];
+    byte[] large = new byte[4096];
+
+    // The client reads the frames as sent, without inflating them
+    List<WebSocketFrame> echoed =
+        HttpClient.create()
+            .headers(headers -> headers.set("Sec-WebSocket-Extensions", "permessage-deflate"))
+            .websocket()
+            .uri("ws://127.0.0.1:" + server.port() + "/ws/yjs/room1")
+            .handle(
+                (in, out) ->
+                    out.sendObject(
+                            Flux.just(small, large)
+                                .map(
+                                    bytes ->
+                                        new BinaryWebSocketFrame(Unpooled.wrappedBuffer(bytes))))
+                        .then()
+                        .thenMany(
+                            in.receiveFrames()
+                                .map(frame -> (WebSocketFrame) frame.retainedDuplicate())
+                                .take(2)))
+            .collectList()
+            .block(Duration.ofSeconds(5));
+
+    WebSocketFrame first = echoed.get(0);
+    WebSocketFrame second = echoed.get(1);
+    try {
+      assertEquals(0, first.rsv());
+      assertEquals(small.length, first.content().readableBytes());
+      // RSV1 marks a deflated message
+      assertEquals(4, second.rsv());
+      assertTrue(second.content().readableBytes() < large.length);
+    } finally {
+      echoed.forEach(WebSocketFrame::release);
+    }
+  }
+
+  @Test
+  void testInterceptorsCanUseAsyncRequestControl() throws Exception {
+    EchoHandler handler = new EchoHandler();
+    HandshakeInterceptor room = accepting("room1");
+    start(
+        handler,
+        new HandshakeInterceptor() {
+          @Override
+          public boolean beforeHandshake(
+              ServerHttpRequest request,
+              ServerHttpResponse response,
+              WebSocketHandler wsHandler,
+              Map<String, Object> attributes)
+              throws Exception {
+            ServerHttpAsyncRequestControl control = request.getAsyncRequestControl(response);
+            control.start(1000);
+            assertTrue(control.isStarted());
+            control.complete();
+            assertTrue(request.getAsyncRequestControl(response).isCompleted());
+            return room.beforeHandshake(request, response, wsHandler, attributes);
+          }
+
+          @Override
+          public void afterHandshake(
+              ServerHttpRequest request,
+              ServerHttpResponse response,
+              WebSocketHandler wsHandler,
+              Exception exception) {}
+        });
+
+    HttpClient.create()
+        .websocket()
+        .uri("ws://127.0.0.1:" + server.port() + "/ws/yjs/room1")
+        .handle((in, out) -> out.sendClose())
+        .blockLast(Duration.ofSeconds(5));
+
+    assertTrue(handler.closed.await(5, TimeUnit.SECONDS));
+    assertEquals("room1", handler.roomId);
+  }
+
+  @Test
+  void testRefusedHandshakeKeepsTheInterceptorsStatusAndHeaders() {
+    EchoHandler handler = new EchoHandler();
+    start(
+        handler,
+        new HandshakeInterceptor() {
+          @Override
+          public boolean beforeHandshake(
+              ServerHttpRequest request,
+              ServerHttpResponse response,
+              WebSocketHandler wsHandler,
+              Map<String, Object> attributes) {
+            response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+            response.getHeaders().set("Retry-After", "7");
+            return false;
+          }
+
+          @Override
+          public void afterHandshake(
+              ServerHttpRequest request,
+              ServerHttpResponse response,
+              WebSocketHandler wsHandler,
+              Exception exception) {}
+        });
+
+    Exception error =
+        assertThrows(
+            Exception.class,
+            () ->
+                HttpClient.create()
+                    .websocket()
+                    .uri("ws://127.0.0.1:" + server.port() + "/ws/yjs/room1")
+                    .handle((in, out) -> in.receive())
+                    .blockLast(Duration.ofSeconds(5)));
+
+    WebSocketClientHandshakeException handshake =
+        assertInstanceOf(WebSocketClientHandshakeException.class, error);
+    assertEquals(503, handshake.response().status().code());
+    assertEquals("7", handshake.response().headers().get("Retry-After"));
+    assertNull(handler.roomId);
+  }
+
+  private static HandshakeInterceptor accepting(String roomId) {
+    return new HandshakeInterceptor() {
+      @Override
+      public boolean beforeHandshake(
+          ServerHttpRequest request,
+          ServerHttpResponse response,
+          WebSocketHandler wsHandler,
+          Map<String, Object> attributes) {
+        attributes.put("roomId", request.getURI().getPath().substring("/ws/yjs/".length()));
+        return true;
+      }
+
+      @Override
+      public void afterHandshake(
+          ServerHttpRequest request,
+          ServerHttpResponse response,
+          WebSocketHandler wsHandler,
+          Exception exception) {}
+    };
+  }
+
+  /** Sends every binary message straight back. */
+  private static class EchoHandler implements WebSocketHandler {
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile String roomId;
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+      roomId = (String) session.getAttributes().get("roomId");
+    }
+
+    @Override
+    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message)
+        throws Exception {
+      if (message instanceof BinaryMessage binary) {
+        byte[] copy = new byte[binary.getPayloadLength()];
+        binary.getPayload().get(copy);
+        session.sendMessage(new BinaryMessage(copy));
+      }
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {}
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) {
+      closed.countDown();
+    }
+
+    @Override
+    public boolean supportsPartialMessages() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.codeshare.websocket.room;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DuplicateWindowTest {
+
+  @Test
+  void testSameBytesAreSeenAgainEvenInAnotherArray() {
+    DuplicateWindow window = new DuplicateWindow(8, 1024);
+
+    assertFalse(window.seen(new byte[] {1, 2, 3}));
+    assertTrue(window.seen(new byte[] {1, 2, 3}));
+    assertFalse(window.seen(new byte[] {1, 2, 4}));
+  }
+
+  @Test
+  void testOldestUpdatesLeaveTheWindowByCount() {
+    DuplicateWindow window = new DuplicateWindow(2, 1024);
+    window.seen(new byte[] {1});
+    window.seen(new byte[] {2});
+    window.seen(new byte[] {3});
+
+    assertFalse(window.seen(new byte[] {1}));
+    assertTrue(window.seen(new byte[] {3}));
+  }
+
+  @Test
+  void testOldestUpdatesLeaveTheWindowByBytes() {
+    DuplicateWindow window = new DuplicateWindow(8, 4);
+    window.seen(new byte[] {1, 1});
+    window.seen(new byte[] {2, 2});
+    window.seen(new byte[] {3, 3});
+
+    assertFalse(window.seen(new byte[] {1, 1}));
+    // Larger than the whole window, so never held
+    assertFalse(window.seen(new byte[] {5, 5, 5, 5, 5}));
+    assertFalse(window.seen(new byte[] {5, 5, 5, 5, 5}));
+  }
+
+  @Test
+  void testZeroCapacityDisablesSuppression() {
+    DuplicateWindow window = new DuplicateWindow(0, 1024);
+    window.seen(new byte[] {1});
+
+    assertFalse(window.seen(new byte[] {1}));
+  }
+}
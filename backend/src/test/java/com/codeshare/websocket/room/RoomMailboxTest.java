@@ -0,0 +1,188 @@
+package com.codeshare.websocket.room;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class RoomMailboxTest {
+
+  @Test
+  void testTasksFromManyThreadsRunOneAtATimeInOrderPerProducer() throws Exception {
+    int producers = 8;
+    int tasksPerProducer = 2_000;
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    RoomMailbox mailbox = new RoomMailbox("room1", executor);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger overlaps = new AtomicInteger();
+    List<int[]> seen = new ArrayList<>(); // only touched by mailbox tasks
+    CountDownLatch done = new CountDownLatch(producers * tasksPerProducer);
+
+    try (ExecutorService threads = Executors.newFixedThreadPool(producers)) {
+      for (int p = 0; p < producers; p++) {
+        int producer = p;
+        threads.execute(
+            () -> {
+              for (int i = 0; i < tasksPerProducer; i++) {
+                int seq = i;
+                mailbox.execute(
+                    () -> {
+                      if (running.incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                      }
+                      seen.add(new int[] {producer, seq});
+                      running.decrementAndGet();
+                      done.countDown();
+                    });
+              }
+            });
+      }
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(0, overlaps.get());
+    int[] next = new int[producers];
+    for (int[] entry : seen) {
+      assertEquals(next[entry[0]]++, entry[1]);
+    }
+  }
+
+  @Test
+  void testFailingTaskDoesNotStopTheMailbox() {
+    RoomMailbox mailbox = new RoomMailbox("room1", Runnable::run);
+    List<String> ran = new ArrayList<>();
+
+    mailbox.execute(
+        () -> {
+          throw new IllegalStateException("boom");
+        });
+    mailbox.execute(() -> ran.add("after"));
+
+    assertEquals(List.of("after"), ran);
+  }
+
+  @Test
+  void testBusyRoomYieldsToOtherRoomsAfterItsQuantum() {
+    Queue<Runnable> lane = new ArrayDeque<>();
+    RoomLanes lanes = new RoomLanes(lane::add, lane::add, 3, 0, 0, 60_000, null);
+    RoomMailbox busy = new RoomMailbox("busy", lanes, () -> 1);
+    RoomMailbox quiet = new RoomMailbox("quiet", lanes, () -> 1);
+    List<String> ran = new ArrayList<>();
+
+    for (int i = 0; i < 7; i++) {
+      int n = i;
+      busy.execute(() -> ran.add("busy" + n));
+    }
+    quiet.execute(() -> ran.add("quiet"));
+    runAll(lane);
+
+    assertEquals(
+        List.of("busy0", "busy1", "busy2", "quiet", "busy3", "busy4", "busy5", "busy6"), ran);
+  }
+
+  @Test
+  void testFloodedRoomCannotHoldUpAQuietRoomOnTheNormalLane() throws Exception {
+    ExecutorService normal = YjsRoomFactory.normalLane(1);
+    RoomLanes lanes = new RoomLanes(normal, normal, 4, 0, 0, 60_000, null);
+    RoomMailbox flooded = new RoomMailbox("flooded", lanes, () -> 1);
+    RoomMailbox quiet = new RoomMailbox("quiet", lanes, () -> 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    AtomicInteger floodedRun = new AtomicInteger();
+    AtomicInteger floodedBeforeQuiet = new AtomicInteger(-1);
+
+    try {
+      flooded.execute(
+          () -> {
+            started.countDown();
+            awaitQuietly(release);
+          });
+      for (int i = 0; i < 1_000; i++) {
+        flooded.execute(floodedRun::incrementAndGet);
+      }
+      // The lane's only thread is busy with the flooded room when the quiet one gets work
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      quiet.execute(
+          () -> {
+            floodedBeforeQuiet.set(floodedRun.get());
+            done.countDown();
+          });
+      release.countDown();
+
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      // Only what was left of the flooded room's turn ran first
+      assertEquals(3, floodedBeforeQuiet.get());
+    } finally {
+      release.countDown();
+      normal.shutdownNow();
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  void testCrowdedRoomMovesToHotLaneAndBackWhenItEmpties() {
+    Queue<Runnable> normal = new ArrayDeque<>();
+    Queue<Runnable> hot = new ArrayDeque<>();
+    // A real registry: mocking MetricsService would instrument the class for later tests too
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    MetricsService metricsService = new MetricsService(registry);
+    RoomLanes lanes = new RoomLanes(normal::add, hot::add, 0, 0, 100, 0, metricsService);
+    AtomicInteger members = new AtomicInteger(150);
+    RoomMailbox mailbox = new RoomMailbox("classroom", lanes, members::get);
+
+    mailbox.execute(() -> {});
+    runAll(normal);
+    mailbox.execute(() -> members.set(0));
+
+    assertTrue(normal.isEmpty());
+    assertEquals(1, hot.size());
+    assertEquals(1, registry.get("yjs_rooms_hot").gauge().value());
+    runAll(hot);
+    mailbox.execute(() -> {});
+    assertEquals(1, normal.size());
+    assertEquals(0, registry.get("yjs_rooms_hot").gauge().value());
+    assertEquals(
+        1, registry.get("yjs_room_lane_changes_total").tag("lane", "hot").counter().count());
+    assertEquals(
+        1, registry.get("yjs_room_lane_changes_total").tag("lane", "normal").counter().count());
+  }
+
+  @Test
+  void testHotRoomStaysHotUntilWellBelowThreshold() {
+    RoomLanes lanes = new RoomLanes(Runnable::run, Runnable::run, 0, 100, 50, 1000, null);
+
+    assertTrue(lanes.isHot(false, 100, 1));
+    assertTrue(lanes.isHot(true, 60, 1));
+    assertFalse(lanes.isHot(true, 40, 1));
+    assertFalse(lanes.isHot(false, 60, 30));
+    assertTrue(lanes.isHot(true, 0, 30));
+    assertFalse(lanes.isHot(true, 1000, 0));
+  }
+
+  private static void runAll(Queue<Runnable> lane) {
+    Runnable task;
+    while ((task = lane.poll()) != null) {
+      task.run();
+    }
+  }
+}
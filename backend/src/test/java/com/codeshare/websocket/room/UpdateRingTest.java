@@ -0,0 +1,74 @@
+package com.codeshare.websocket.room;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class UpdateRingTest {
+
+  @Test
+  void testSinceReturnsUpdatesAfterSequenceInOrder() {
+    UpdateRing ring = new UpdateRing(8, 1024);
+    ring.put(3, new byte[] {3});
+    ring.put(4, new byte[] {4});
+    ring.put(5, new byte[] {5});
+
+    assertEquals(List.of(4, 5), firstBytes(ring.since(3)));
+    assertEquals(List.of(3, 4, 5), firstBytes(ring.since(2)));
+    assertEquals(List.of(), firstBytes(ring.since(5)));
+    assertNull(ring.since(1));
+    assertNull(ring.since(6));
+  }
+
+  @Test
+  void testWatermarkWaitsForGapToFill() {
+    UpdateRing ring = new UpdateRing(8, 1024);
+    ring.put(1, new byte[] {1});
+    ring.put(3, new byte[] {3});
+    assertEquals(1, ring.watermark());
+
+    ring.put(2, new byte[] {2});
+    assertEquals(3, ring.watermark());
+    assertFalse(ring.put(2, new byte[] {2}));
+  }
+
+  @Test
+  void testOldestUpdatesAreEvictedByCount() {
+    UpdateRing ring = new UpdateRing(3, 1024);
+    for (int s = 1; s <= 5; s++) {
+      ring.put(s, new byte[] {(byte) s});
+    }
+
+    assertNull(ring.since(1));
+    assertEquals(List.of(3, 4, 5), firstBytes(ring.since(2)));
+    assertFalse(ring.put(2, new byte[] {2}));
+  }
+
+  @Test
+  void testOldestUpdatesAreEvictedByBytes() {
+    UpdateRing ring = new UpdateRing(8, 4);
+    ring.put(1, new byte[2]);
+    ring.put(2, new byte[2]);
+    ring.put(3, new byte[] {3, 0});
+
+    assertNull(ring.since(0));
+    assertEquals(List.of(3), firstBytes(ring.since(2)));
+  }
+
+  @Test
+  void testEvictingPastAGapMovesWatermarkOn() {
+    UpdateRing ring = new UpdateRing(3, 1024);
+    ring.put(1, new byte[] {1});
+    ring.put(3, new byte[] {3});
+    assertEquals(1, ring.watermark());
+
+    ring.put(4, new byte[] {4});
+
+    assertEquals(4, ring.watermark());
+  }
+
+  private static List<Integer> firstBytes(List<byte[]> updates) {
+    return updates.stream().map(update -> (int) update[0]).toList();
+  }
+}
@@ -0,0 +1,175 @@
+package com.codeshare.websocket.room;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.session.OverflowPolicy;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Measures what relaying a frame to a room's members allocates once the room is warm. Fan-out
+ * should cost each recipient nothing but its queue entry; anything per message (iterators, lambdas,
+ * decoders, boxed values) shows up here long before it shows up in a profile.
+ */
+public class YjsRoomAllocationTest {
+  private static final int MEMBERS = 50;
+  private static final int MESSAGES = 2_000;
+  // A queue entry is ~32 bytes; the rest covers the queue's amortised growth
+  private static final long MAX_BYTES_PER_RECIPIENT = 64;
+
+  @Test
+  void testSteadyStateFanOutAllocatesOnlyQueueEntries() {
+    MetricsService metricsService = new MetricsService(new SimpleMeterRegistry());
+    YjsRoom room =
+        new YjsRoom(
+            "room1",
+            RoomLanes.single(Runnable::run),
+            mock(ScheduledExecutorService.class),
+            mock(YjsRedisService.class),
+            Runnable::run,
+            metricsService,
+            FlushWindow.disabled(),
+            0,
+            new UpdateRing(16, 1 << 20),
+            new DuplicateWindow(16, 1 << 20),
+            0,
+            0);
+    for (int i = 0; i < MEMBERS; i++) {
+      // Drain tasks are never run, so frames stay queued and no socket write is measured
+      room.join(
+          new OutboundSession(
+              new OpenSession(),
+              "room1",
+              task -> {},
+              metricsService,
+              Long.MAX_VALUE,
+              Long.MAX_VALUE / 1_000_000,
+              OverflowPolicy.DISCONNECT,
+              Long.MAX_VALUE),
+          -1);
+    }
+    // Not sync or awareness, so the room relays it as is
+    YjsRedisService.YjsMessage message =
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT,
+            ByteBuffer.wrap(new byte[] {YjsProtocol.MESSAGE_AUTH, 0, 1}).asReadOnlyBuffer(),
+            "x");
+
+    relay(room, message);
+    long before = allocatedBytes();
+    relay(room, message);
+    long allocated = allocatedBytes() - before;
+
+    long perRecipient = allocated / ((long) MESSAGES * MEMBERS);
+    assertTrue(
+        perRecipient <= MAX_BYTES_PER_RECIPIENT,
+        "fan-out allocated " + perRecipient + " bytes per recipient");
+  }
+
+  private static void relay(YjsRoom room, YjsRedisService.YjsMessage message) {
+    for (int i = 0; i < MESSAGES; i++) {
+      room.deliver(message);
+    }
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getCurrentThreadAllocatedBytes();
+  }
+
+  /** A session that is always open; a Mockito mock would allocate on every isOpen() call. */
+  private static final class OpenSession implements WebSocketSession {
+    @Override
+    public String getId() {
+      return "s";
+    }
+
+    @Override
+    public URI getUri() {
+      return null;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+      return HttpHeaders.EMPTY;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return Map.of();
+    }
+
+    @Override
+    public Principal getPrincipal() {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return null;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+      return null;
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {}
+
+    @Override
+    public int getTextMessageSizeLimit() {
+      return 0;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {}
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+      return 0;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+      return List.of();
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) {}
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void close(CloseStatus status) {}
+  }
+}
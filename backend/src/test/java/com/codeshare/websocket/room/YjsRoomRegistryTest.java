@@ -0,0 +1,96 @@
+package com.codeshare.websocket.room;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+
+public class YjsRoomRegistryTest {
+  private static final byte[] INSERT_A = {1, 1, 1, 0, 0x04, 1, 1, 't', 1, 'a', 0};
+
+  @Test
+  void testNewRoomAsksForStateOnceSubscribedAndCatchesUp() {
+    // Instance A already hosts the room, with an edit in it
+    YjsRedisService redisA = mock(YjsRedisService.class);
+    YjsRoom roomA = newRoom(redisA);
+    OutboundSession alice = openSession();
+    roomA.join(alice, -1);
+    roomA.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    when(redisA.claimSyncAnswer(eq("room1"), any())).thenReturn(true);
+
+    // Instance B opens it; its SUBSCRIBE goes out with a later batch
+    YjsRedisService redisB = mock(YjsRedisService.class);
+    YjsRoomFactory factoryB = mock(YjsRoomFactory.class);
+    YjsRoom roomB = newRoom(redisB);
+    when(factoryB.create("room1")).thenReturn(roomB);
+    YjsRoomRegistry registryB = new YjsRoomRegistry(factoryB, redisB);
+    CompletableFuture<Void> subscribed = new CompletableFuture<>();
+    when(redisB.registerRoomHandler("room1", registryB)).thenReturn(subscribed);
+
+    // B's publications reach A; A's reach B only once B is subscribed
+    doAnswer(
+            invocation -> {
+              roomA.deliver(published(invocation));
+              return null;
+            })
+        .when(redisB)
+        .publishDocumentUpdate(eq("room1"), anyString(), any(ByteBuffer.class));
+    doAnswer(
+            invocation -> {
+              if (subscribed.isDone()) {
+                registryB.handleMessage("room1", published(invocation));
+              }
+              return null;
+            })
+        .when(redisA)
+        .publishDocumentUpdate(eq("room1"), anyString(), any(ByteBuffer.class));
+
+    registryB.acquire("room1");
+    OutboundSession bob = openSession();
+    roomB.join(bob, -1);
+    verify(redisB, never()).publishDocumentUpdate(anyString(), anyString(), any(ByteBuffer.class));
+
+    subscribed.complete(null);
+
+    verify(bob).send(YjsProtocol.syncUpdate(INSERT_A));
+  }
+
+  private static YjsRedisService.YjsMessage published(InvocationOnMock invocation) {
+    return new YjsRedisService.YjsMessage(
+        YjsRedisService.MessageType.DOCUMENT,
+        invocation.<ByteBuffer>getArgument(2).duplicate(),
+        invocation.getArgument(1));
+  }
+
+  private static YjsRoom newRoom(YjsRedisService yjsRedisService) {
+    return new YjsRoom(
+        "room1",
+        RoomLanes.single(Runnable::run),
+        mock(ScheduledExecutorService.class),
+        yjsRedisService,
+        Runnable::run,
+        mock(MetricsService.class),
+        FlushWindow.disabled(),
+        0,
+        new UpdateRing(16, 1 << 20),
+        new DuplicateWindow(16, 1 << 20),
+        0,
+        0);
+  }
+
+  private static OutboundSession openSession() {
+    OutboundSession session = mock(OutboundSession.class);
+    when(session.isOpen()).thenReturn(true);
+    return session;
+  }
+}
@@ -0,0 +1,458 @@
+package com.codeshare.websocket.room;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.infrastructure.redis.YjsRedisService;
+import com.codeshare.websocket.session.OutboundSession;
+import com.codeshare.websocket.yjs.Lib0Encoder;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import com.codeshare.websocket.yjs.YjsUpdates;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+public class YjsRoomTest {
+  private static final byte[] INSERT_A = {1, 1, 1, 0, 0x04, 1, 1, 't', 1, 'a', 0};
+  private static final byte[] APPEND_B = {1, 1, 1, 1, (byte) 0x84, 1, 0, 1, 'b', 0};
+  private static final byte[] APPEND_C = {1, 1, 1, 2, (byte) 0x84, 1, 1, 1, 'c', 0};
+
+  private YjsRedisService yjsRedisService;
+  private MetricsService metricsService;
+  private ScheduledExecutorService scheduler;
+  private Executor redisExecutor = Runnable::run;
+  private YjsRoom room;
+  private OutboundSession alice;
+  private OutboundSession bob;
+
+  @BeforeEach
+  void setUp() {
+    yjsRedisService = mock(YjsRedisService.class);
+    metricsService = mock(MetricsService.class);
+    scheduler = mock(ScheduledExecutorService.class);
+    room = createRoom(FlushWindow.disabled());
+  }
+
+  private YjsRoom createRoom(FlushWindow flushWindow) {
+    return createRoom(flushWindow, 0);
+  }
+
+  private YjsRoom createRoom(FlushWindow flushWindow, long awarenessIntervalNanos) {
+    return createRoom(flushWindow, awarenessIntervalNanos, 0);
+  }
+
+  private YjsRoom createRoom(
+      FlushWindow flushWindow, long awarenessIntervalNanos, long spectatorIntervalNanos) {
+    YjsRoom room =
+        new YjsRoom(
+            "room1",
+            RoomLanes.single(Runnable::run),
+            scheduler,
+            yjsRedisService,
+            redisExecutor,
+            metricsService,
+            flushWindow,
+            awarenessIntervalNanos,
+            new UpdateRing(16, 1 << 20),
+            new DuplicateWindow(16, 1 << 20),
+            0,
+            spectatorIntervalNanos);
+    alice = openSession();
+    bob = openSession();
+    room.join(alice, -1);
+    room.join(bob, -1);
+    return room;
+  }
+
+  @Test
+  void testNewRoomAsksOtherInstancesForStateOnlyWhenTold() {
+    verify(yjsRedisService, never()).publishDocumentUpdate(any(), any(), any(ByteBuffer.class));
+
+    room.requestState();
+
+    verify(yjsRedisService)
+        .publishDocumentUpdate(
+            "room1", "server", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+  }
+
+  @Test
+  void testStateRequestCarriesWhatTheDocumentAlreadyHolds() {
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    room.requestState();
+
+    verify(yjsRedisService)
+        .publishDocumentUpdate(
+            "room1",
+            "server",
+            YjsProtocol.syncStep1(YjsUpdates.encodeStateVectorFromUpdate(INSERT_A)));
+  }
+
+  @Test
+  void testJoinSendsServerSyncStep1() {
+    verify(alice).send(YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+  }
+
+  @Test
+  void testSyncStep1IsAnsweredByTheServerOnly() {
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    room.receive(bob, "bob", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+
+    verify(bob).send(YjsProtocol.syncStep2(INSERT_A));
+    verify(alice, times(1)).send(YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+    verify(yjsRedisService, never())
+        .publishDocumentUpdate(
+            eq("room1"), eq("bob"), eq(YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR)));
+  }
+
+  @Test
+  void testUpdateIsAppliedPublishedAndRelayedToOthers() {
+    ByteBuffer update = YjsProtocol.syncUpdate(INSERT_A);
+
+    room.receive(alice, "alice", update);
+
+    verify(yjsRedisService).publishSequencedUpdate("room1", "alice", update);
+    verify(bob).send(update);
+    verify(alice, never()).send(update);
+  }
+
+  @Test
+  void testRedisCallsRunOffTheRoomInOrderAndSequencesComeBackToIt() {
+    Queue<Runnable> redisCalls = new ArrayDeque<>();
+    redisExecutor = redisCalls::add;
+    room = createRoom(FlushWindow.disabled());
+    when(yjsRedisService.publishSequencedUpdate(any(), any(), any())).thenReturn(1L, 2L);
+    when(yjsRedisService.claimSyncAnswer(eq("room1"), any())).thenReturn(true);
+    ByteBuffer first = YjsProtocol.syncUpdate(INSERT_A);
+    ByteBuffer second = YjsProtocol.syncUpdate(APPEND_B);
+
+    room.receive(alice, "alice", first);
+    room.receive(alice, "alice", second);
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT,
+            YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR),
+            "server"));
+
+    // Fanned out without waiting on Redis, which the room's turns never called
+    verify(bob).send(first);
+    verify(bob).send(second);
+    verifyNoInteractions(yjsRedisService);
+
+    Runnable call;
+    while ((call = redisCalls.poll()) != null) {
+      call.run();
+    }
+    var order = inOrder(yjsRedisService);
+    order.verify(yjsRedisService).publishSequencedUpdate("room1", "alice", first);
+    order.verify(yjsRedisService).publishSequencedUpdate("room1", "alice", second);
+    order.verify(yjsRedisService).claimSyncAnswer(eq("room1"), any());
+    order
+        .verify(yjsRedisService)
+        .publishDocumentUpdate(
+            "room1",
+            "server",
+            YjsProtocol.syncStep2(YjsUpdates.mergeUpdates(List.of(INSERT_A, APPEND_B))));
+
+    // Both numbered updates reached the ring
+    OutboundSession carol = openSession();
+    room.join(carol, 1);
+    room.receive(carol, "carol", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+    verify(carol).send(YjsProtocol.syncStep2(APPEND_B));
+  }
+
+  @Test
+  void testResentUpdateIsNeitherRelayedNorPublishedAgain() {
+    ByteBuffer update = YjsProtocol.syncUpdate(INSERT_A);
+    room.receive(alice, "alice", update);
+
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    room.receive(bob, "bob", YjsProtocol.syncStep2(INSERT_A));
+
+    verify(bob, times(1)).send(update);
+    verify(alice, never()).send(update);
+    verify(yjsRedisService, times(1)).publishSequencedUpdate(any(), any(), any());
+    verify(metricsService, times(2)).recordYjsDuplicateSuppressed(INSERT_A.length);
+  }
+
+  @Test
+  void testRemoteUpdateIsAppliedAndRelayedToEveryone() {
+    ByteBuffer update = YjsProtocol.syncUpdate(INSERT_A);
+
+    room.deliver(new YjsRedisService.YjsMessage(YjsRedisService.MessageType.DOCUMENT, update, "x"));
+    room.receive(bob, "bob", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+
+    verify(alice).send(update);
+    verify(bob).send(update);
+    verify(bob).send(YjsProtocol.syncStep2(INSERT_A));
+  }
+
+  @Test
+  void testLeftSessionReceivesNothing() {
+    room.leave(bob);
+
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    verify(bob, never()).send(YjsProtocol.syncUpdate(INSERT_A));
+  }
+
+  @Test
+  void testFirstUpdateInQuietRoomIsSentImmediately() {
+    room = createRoom(FlushWindow.ofMillis(5, 20));
+
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    verify(bob).send(YjsProtocol.syncUpdate(INSERT_A));
+    verifyNoInteractions(scheduler);
+  }
+
+  @Test
+  void testUpdatesWithinWindowAreMergedIntoOneFrameAndPublish() {
+    room = createRoom(FlushWindow.ofMillis(5, 60_000));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_C));
+    verify(bob, never()).send(YjsProtocol.syncUpdate(APPEND_B));
+
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler)
+        .schedule(flush.capture(), eq(TimeUnit.MILLISECONDS.toNanos(5)), eq(TimeUnit.NANOSECONDS));
+    flush.getValue().run();
+
+    ByteBuffer merged =
+        YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(List.of(APPEND_B, APPEND_C)));
+    verify(bob).send(merged);
+    verify(alice, never()).send(merged);
+    verify(yjsRedisService).publishSequencedUpdate("room1", "alice", merged);
+    verify(metricsService).recordYjsBatchFlush(eq(2), anyLong());
+  }
+
+  @Test
+  void testMixedBatchPublishesOnlyLocalUpdatesAndReachesEveryone() {
+    room = createRoom(FlushWindow.ofMillis(5, 60_000));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, YjsProtocol.syncUpdate(APPEND_C), "carol"));
+
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(flush.capture(), anyLong(), any());
+    flush.getValue().run();
+
+    ByteBuffer merged =
+        YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(List.of(APPEND_B, APPEND_C)));
+    verify(alice).send(merged);
+    verify(bob).send(merged);
+    verify(yjsRedisService)
+        .publishSequencedUpdate("room1", "alice", YjsProtocol.syncUpdate(APPEND_B));
+  }
+
+  @Test
+  void testRemoteSyncStep1IsAnsweredOnlyIfThisInstanceClaimsIt() {
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    YjsRedisService.YjsMessage request =
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT,
+            YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR),
+            "server");
+
+    room.deliver(request);
+    verify(yjsRedisService, never())
+        .publishDocumentUpdate("room1", "server", YjsProtocol.syncStep2(INSERT_A));
+
+    when(yjsRedisService.claimSyncAnswer("room1", request)).thenReturn(true);
+    room.deliver(request);
+    verify(yjsRedisService)
+        .publishDocumentUpdate("room1", "server", YjsProtocol.syncStep2(INSERT_A));
+  }
+
+  @Test
+  void testRemoteSyncAnswerIsOnlyRelayedIfItChangesTheDocument() {
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+    byte[] held = YjsUpdates.mergeUpdates(List.of(INSERT_A, APPEND_B));
+    byte[] ahead = YjsUpdates.mergeUpdates(List.of(INSERT_A, APPEND_B, APPEND_C));
+
+    // Another instance opened the room and was sent the document; nothing in it is new here
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, YjsProtocol.syncStep2(held), "server"));
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, YjsProtocol.syncStep2(ahead), "server"));
+
+    verify(bob, never()).send(YjsProtocol.syncUpdate(held));
+    verify(bob).send(YjsProtocol.syncUpdate(ahead));
+    verify(metricsService).recordYjsDuplicateSuppressed(held.length);
+  }
+
+  @Test
+  void testResumingSessionGetsOnlyTheUpdatesItMissed() {
+    when(yjsRedisService.publishSequencedUpdate(any(), any(), any())).thenReturn(1L, 2L, 3L);
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_C));
+    OutboundSession carol = openSession();
+
+    room.join(carol, 1);
+    room.receive(carol, "carol", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+
+    verify(carol).send(YjsProtocol.syncStep2(YjsUpdates.mergeUpdates(List.of(APPEND_B, APPEND_C))));
+    verify(carol).send(YjsProtocol.resumeMarker(3));
+    verify(metricsService).recordYjsResume(true);
+  }
+
+  @Test
+  void testResumeFromBeforeTheRingFallsBackToFullDiff() {
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, YjsProtocol.syncUpdate(INSERT_A), "x", 5));
+    OutboundSession carol = openSession();
+
+    room.join(carol, 2);
+    room.receive(carol, "carol", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+
+    verify(carol).send(YjsProtocol.syncStep2(INSERT_A));
+    verify(carol).send(YjsProtocol.resumeMarker(5));
+    verify(metricsService).recordYjsResume(false);
+  }
+
+  @Test
+  void testOnlySyncedSessionsAreToldTheirSequence() {
+    room.receive(bob, "bob", YjsProtocol.syncStep1(YjsUpdates.EMPTY_STATE_VECTOR));
+
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.DOCUMENT, YjsProtocol.syncUpdate(INSERT_A), "x", 1));
+
+    verify(bob).send(YjsProtocol.resumeMarker(1));
+    verify(alice).send(YjsProtocol.syncUpdate(INSERT_A));
+    verify(alice, never()).send(YjsProtocol.resumeMarker(1));
+  }
+
+  @Test
+  void testAwarenessIsThrottledToLatestStatePerClient() {
+    room = createRoom(FlushWindow.disabled(), TimeUnit.MILLISECONDS.toNanos(100));
+
+    room.receive(alice, "alice", awareness(7, 1, "{\"x\":1}"));
+    verify(bob).send(awareness(7, 1, "{\"x\":1}"));
+    verify(yjsRedisService).publishAwarenessUpdate("room1", "server", awareness(7, 1, "{\"x\":1}"));
+
+    room.receive(alice, "alice", awareness(7, 2, "{\"x\":2}"));
+    room.receive(alice, "alice", awareness(7, 3, "{\"x\":3}"));
+    verify(bob, never()).send(awareness(7, 2, "{\"x\":2}"));
+
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler, times(1)).schedule(flush.capture(), anyLong(), eq(TimeUnit.NANOSECONDS));
+    flush.getValue().run();
+
+    verify(bob).send(awareness(7, 3, "{\"x\":3}"));
+    verify(bob, never()).send(awareness(7, 2, "{\"x\":2}"));
+    verify(metricsService).recordAwarenessSuperseded(1);
+  }
+
+  @Test
+  void testJoinAndQueryAwarenessGetCurrentStates() {
+    room.receive(alice, "alice", awareness(7, 1, "{}"));
+    OutboundSession carol = openSession();
+
+    room.join(carol, -1);
+    room.receive(bob, "bob", ByteBuffer.wrap(new byte[] {YjsProtocol.MESSAGE_QUERY_AWARENESS}));
+
+    verify(carol).send(awareness(7, 1, "{}"));
+    verify(bob, times(2)).send(awareness(7, 1, "{}"));
+  }
+
+  @Test
+  void testLeavingSessionClearsItsAwarenessForPeers() {
+    room.receive(alice, "alice", awareness(7, 1, "{}"));
+
+    room.leave(alice);
+
+    verify(bob).send(awareness(7, 2, "null"));
+    verify(yjsRedisService).publishAwarenessUpdate("room1", "server", awareness(7, 2, "null"));
+  }
+
+  @Test
+  void testRemoteAwarenessIsRelayedButNotRepublished() {
+    room.deliver(
+        new YjsRedisService.YjsMessage(
+            YjsRedisService.MessageType.AWARENESS, awareness(9, 1, "{}"), "carol"));
+
+    verify(alice).send(awareness(9, 1, "{}"));
+    verify(bob).send(awareness(9, 1, "{}"));
+    verify(yjsRedisService, never()).publishAwarenessUpdate(any(), any(), any());
+  }
+
+  @Test
+  void testSpectatorGetsTheDocumentThenBatchedUpdates() {
+    room = createRoom(FlushWindow.disabled(), 0, TimeUnit.MILLISECONDS.toNanos(500));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    OutboundSession carol = openSession();
+
+    room.joinSpectator(carol);
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_C));
+
+    verify(carol).send(YjsProtocol.syncStep2(INSERT_A));
+    verify(bob).send(YjsProtocol.syncUpdate(APPEND_C));
+    verify(carol, never()).send(YjsProtocol.syncUpdate(APPEND_B));
+    ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler, times(1))
+        .schedule(
+            flush.capture(), eq(TimeUnit.MILLISECONDS.toNanos(500)), eq(TimeUnit.NANOSECONDS));
+    flush.getValue().run();
+
+    verify(carol)
+        .send(YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(List.of(APPEND_B, APPEND_C))));
+    verify(carol, times(2)).send(any());
+  }
+
+  @Test
+  void testSpectatorGetsNoAwarenessOrSequence() {
+    when(yjsRedisService.publishSequencedUpdate(any(), any(), any())).thenReturn(1L);
+    room.receive(alice, "alice", awareness(7, 1, "{}"));
+    OutboundSession carol = openSession();
+
+    room.joinSpectator(carol);
+    room.receive(alice, "alice", awareness(7, 2, "{}"));
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(INSERT_A));
+    room.leave(carol);
+    room.receive(alice, "alice", YjsProtocol.syncUpdate(APPEND_B));
+
+    verify(bob).send(awareness(7, 2, "{}"));
+    verify(carol).send(YjsProtocol.syncUpdate(INSERT_A));
+    verify(carol, never()).send(YjsProtocol.syncUpdate(APPEND_B));
+    verify(carol, never()).send(YjsProtocol.resumeMarker(1));
+    verify(carol, times(2)).send(any());
+  }
+
+  private static ByteBuffer awareness(long clientId, long clock, String state) {
+    Lib0Encoder update = new Lib0Encoder();
+    update.writeVarUint(1);
+    update.writeVarUint(clientId);
+    update.writeVarUint(clock);
+    update.writeVarString(state);
+    return YjsProtocol.awareness(update.toByteArray());
+  }
+
+  private static OutboundSession openSession() {
+    OutboundSession session = mock(OutboundSession.class);
+    when(session.isOpen()).thenReturn(true);
+    return session;
+  }
+}
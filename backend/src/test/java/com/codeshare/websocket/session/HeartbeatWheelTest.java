@@ -0,0 +1,119 @@
+package com.codeshare.websocket.session;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+public class HeartbeatWheelTest {
+  private WebSocketSession session;
+  private MetricsService metricsService;
+  private HeartbeatWheel wheel;
+  private final AtomicInteger pings = new AtomicInteger();
+  private final AtomicInteger deaths = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    session = mock(WebSocketSession.class);
+    when(session.isOpen()).thenReturn(true);
+    when(session.getId()).thenReturn("s1");
+    metricsService = mock(MetricsService.class);
+    // 1 ms ticks: ping after 5 silent ticks, reap after 12
+    wheel = new HeartbeatWheel(metricsService, Runnable::run, 1, 5, 12);
+  }
+
+  @Test
+  void testSilentSessionIsPingedThenReaped() throws Exception {
+    wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+
+    advance(6);
+    assertEquals(1, pings.get());
+    assertEquals(0, deaths.get());
+
+    advance(7);
+    assertEquals(2, pings.get());
+    assertEquals(1, deaths.get());
+    verify(session).close(CloseStatuses.HEARTBEAT_TIMEOUT);
+    verify(metricsService).recordHeartbeatReaped();
+
+    advance(30);
+    assertEquals(2, pings.get());
+    assertEquals(1, deaths.get());
+  }
+
+  @Test
+  void testActiveSessionIsNeitherPingedNorReaped() {
+    HeartbeatWheel.Heartbeat heartbeat =
+        wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+
+    for (int i = 0; i < 50; i++) {
+      wheel.advance();
+      if (i % 4 == 0) {
+        heartbeat.touch();
+      }
+    }
+
+    assertEquals(0, pings.get());
+    assertEquals(0, deaths.get());
+  }
+
+  @Test
+  void testPongKeepsQuietSessionAlive() {
+    HeartbeatWheel.Heartbeat heartbeat =
+        wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+
+    for (int i = 0; i < 50; i++) {
+      int before = pings.get();
+      wheel.advance();
+      if (pings.get() > before) {
+        heartbeat.touch();
+      }
+    }
+
+    assertTrue(pings.get() >= 8);
+    assertEquals(0, deaths.get());
+  }
+
+  @Test
+  void testClosedSessionIsReapedOnItsNextVisit() {
+    wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+    when(session.isOpen()).thenReturn(false);
+
+    advance(6);
+
+    assertEquals(0, pings.get());
+    assertEquals(1, deaths.get());
+  }
+
+  @Test
+  void testCancelledSessionIsDroppedAndCannotBeCancelledAfterReaping() {
+    HeartbeatWheel.Heartbeat cancelled =
+        wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+    assertTrue(cancelled.cancel());
+    advance(20);
+    assertEquals(0, pings.get() + deaths.get());
+
+    HeartbeatWheel.Heartbeat reaped =
+        wheel.register(session, pings::incrementAndGet, deaths::incrementAndGet);
+    advance(20);
+    assertEquals(1, deaths.get());
+    assertFalse(reaped.cancel());
+  }
+
+  @Test
+  void testRejectsTimeoutNotAfterInterval() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new HeartbeatWheel(metricsService, Runnable::run, 1000, 25000, 25000));
+  }
+
+  private void advance(int ticks) {
+    for (int i = 0; i < ticks; i++) {
+      wheel.advance();
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package com.codeshare.websocket.session;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import com.codeshare.infrastructure.metrics.MetricsService;
+import com.codeshare.websocket.yjs.YjsProtocol;
+import com.codeshare.websocket.yjs.YjsUpdates;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+public class OutboundSessionTest {
+  private static final byte[] INSERT_A = {1, 1, 1, 0, 0x04, 1, 1, 't', 1, 'a', 0};
+  private static final byte[] APPEND_B = {1, 1, 1, 1, (byte) 0x84, 1, 0, 1, 'b', 0};
+  private static final byte[] APPEND_C = {1, 1, 1, 2, (byte) 0x84, 1, 1, 1, 'c', 0};
+
+  private WebSocketSession session;
+  private MetricsService metricsService;
+  private Queue<Runnable> tasks;
+
+  @BeforeEach
+  void setUp() {
+    session = mock(WebSocketSession.class);
+    when(session.isOpen()).thenReturn(true);
+    when(session.getId()).thenReturn("s1");
+    metricsService = mock(MetricsService.class);
+    tasks = new ArrayDeque<>();
+  }
+
+  @Test
+  void testFramesAreSentInOrderByOneDrainTask() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.send(awareness(1));
+    outbound.send(awareness(2));
+    outbound.send(awareness(3));
+
+    assertEquals(1, tasks.size());
+    runTasks();
+    assertEquals(List.of(1, 2, 3), sentAwarenessIds());
+  }
+
+  @Test
+  void testPingIsWrittenInTurnWithFrames() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.ping();
+    runTasks();
+
+    ArgumentCaptor<WebSocketMessage<?>> sent = ArgumentCaptor.forClass(WebSocketMessage.class);
+    verify(session, times(2)).sendMessage(sent.capture());
+    assertInstanceOf(BinaryMessage.class, sent.getAllValues().get(0));
+    assertInstanceOf(PingMessage.class, sent.getAllValues().get(1));
+  }
+
+  @Test
+  void testDocumentUpdatesGoAheadOfAwarenessAndPresence() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.sendPresence(text("{\"users\":[\"a\"]}"));
+    outbound.send(awareness(1));
+    outbound.sendPresence(text("{\"users\":[\"a\",\"b\"]}"));
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    runTasks();
+
+    ArgumentCaptor<WebSocketMessage<?>> sent = ArgumentCaptor.forClass(WebSocketMessage.class);
+    verify(session, times(3)).sendMessage(sent.capture());
+    List<WebSocketMessage<?>> messages = sent.getAllValues();
+    assertEquals(YjsProtocol.syncUpdate(INSERT_A), messages.get(0).getPayload());
+    assertEquals(awareness(1), messages.get(1).getPayload());
+    // The first presence broadcast was superseded before it went out
+    assertEquals("{\"users\":[\"a\",\"b\"]}", ((TextMessage) messages.get(2)).getPayload());
+  }
+
+  @Test
+  void testAwarenessGetsATurnOnceTheLaneBudgetIsSpent() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT, 20);
+
+    outbound.send(awareness(1));
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.send(YjsProtocol.syncStep2(APPEND_B));
+    outbound.send(YjsProtocol.syncStep2(APPEND_C));
+    runTasks();
+
+    assertEquals(
+        List.of(
+            YjsProtocol.syncUpdate(INSERT_A),
+            YjsProtocol.syncStep2(APPEND_B),
+            awareness(1),
+            YjsProtocol.syncStep2(APPEND_C)),
+        sentFrames());
+  }
+
+  @Test
+  void testBacklogOfUpdatesIsSentAsOneMergedFrame() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.send(awareness(1));
+    outbound.send(YjsProtocol.syncUpdate(APPEND_B));
+    outbound.send(YjsProtocol.syncUpdate(APPEND_C));
+
+    runTasks();
+    List<ByteBuffer> sent = sentFrames();
+    assertEquals(2, sent.size());
+    assertEquals(
+        YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(List.of(INSERT_A, APPEND_B, APPEND_C))),
+        sent.get(0));
+    assertEquals(awareness(1), sent.get(1));
+    verify(metricsService).recordOutboundBacklogMerged(3);
+  }
+
+  @Test
+  void testUpdatesAreNotMergedWithoutBacklog() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    runTasks();
+    outbound.send(YjsProtocol.syncUpdate(APPEND_B));
+    runTasks();
+
+    assertEquals(
+        List.of(YjsProtocol.syncUpdate(INSERT_A), YjsProtocol.syncUpdate(APPEND_B)), sentFrames());
+    verify(metricsService, never()).recordOutboundBacklogMerged(anyInt());
+  }
+
+  @Test
+  void testDropAwarenessKeepsDocumentFrames() throws Exception {
+    OutboundSession outbound = create(20, OverflowPolicy.DROP_AWARENESS);
+
+    outbound.send(awareness(1));
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.send(awareness(2));
+
+    runTasks();
+    List<ByteBuffer> sent = sentFrames();
+    assertEquals(1, sent.size());
+    assertEquals(YjsProtocol.syncUpdate(INSERT_A), sent.get(0));
+    verify(metricsService, times(2)).recordOutboundOverflow("dropped_awareness", 1);
+    verify(session, never()).close(any());
+  }
+
+  @Test
+  void testCoalesceMergesQueuedUpdates() throws Exception {
+    OutboundSession outbound = create(30, OverflowPolicy.COALESCE);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.send(awareness(1));
+    outbound.send(YjsProtocol.syncUpdate(APPEND_B));
+    outbound.send(awareness(2));
+
+    // The merge is a task of its own, not run by the sending thread; it goes first here, as when
+    // the drain task is stuck on a slow socket
+    verify(metricsService, never()).recordOutboundOverflow(eq("coalesced"), anyInt());
+    assertEquals(2, tasks.size());
+    ((ArrayDeque<Runnable>) tasks).pollLast().run();
+    verify(metricsService).recordOutboundOverflow("coalesced", 2);
+
+    runTasks();
+    List<ByteBuffer> sent = sentFrames();
+    assertEquals(2, sent.size());
+    assertEquals(
+        YjsProtocol.syncUpdate(YjsUpdates.mergeUpdates(List.of(INSERT_A, APPEND_B))), sent.get(0));
+    assertEquals(awareness(2), sent.get(1));
+  }
+
+  @Test
+  void testCoalesceResyncsWithoutMergingWhenTheTimeLimitIsHit() throws Exception {
+    OutboundSession outbound =
+        new OutboundSession(
+            session, "room1", tasks::add, metricsService, 1 << 20, 1, OverflowPolicy.COALESCE, 1);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    Thread.sleep(5);
+    outbound.send(YjsProtocol.syncUpdate(APPEND_B));
+
+    runTasks();
+    verify(session, never()).sendMessage(any());
+    verify(session).close(CloseStatuses.RESYNC_REQUIRED);
+    verify(metricsService, never()).recordOutboundOverflow(eq("coalesced"), anyInt());
+    verify(metricsService).recordOutboundOverflow("disconnected", 1);
+  }
+
+  @Test
+  void testDisconnectClosesWithResyncCode() throws Exception {
+    OutboundSession outbound = create(16, OverflowPolicy.DISCONNECT);
+
+    outbound.send(YjsProtocol.syncUpdate(INSERT_A));
+    outbound.send(YjsProtocol.syncUpdate(APPEND_B));
+    outbound.send(awareness(1));
+
+    runTasks();
+    verify(session, never()).sendMessage(any());
+    verify(session).close(CloseStatuses.RESYNC_REQUIRED);
+    assertFalse(outbound.isOpen());
+    verify(metricsService).recordOutboundOverflow("disconnected", 1);
+  }
+
+  @Test
+  void testQueueMetricsReturnToZero() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+
+    outbound.send(awareness(1));
+    outbound.send(awareness(2));
+    runTasks();
+
+    ArgumentCaptor<Integer> frames = ArgumentCaptor.forClass(Integer.class);
+    ArgumentCaptor<Long> bytes = ArgumentCaptor.forClass(Long.class);
+    verify(metricsService, atLeastOnce()).recordOutboundQueued(frames.capture(), bytes.capture());
+    assertEquals(0, frames.getAllValues().stream().mapToInt(Integer::intValue).sum());
+    assertEquals(0, bytes.getAllValues().stream().mapToLong(Long::longValue).sum());
+    verify(metricsService, never()).recordOutboundOverflow(any(), anyInt());
+  }
+
+  @Test
+  void testSendFailureReleasesSession() throws Exception {
+    OutboundSession outbound = create(1024, OverflowPolicy.DISCONNECT);
+    doThrow(new IOException("broken pipe")).when(session).sendMessage(any());
+
+    outbound.send(awareness(1));
+    runTasks();
+    outbound.send(awareness(2));
+
+    assertTrue(tasks.isEmpty());
+    assertFalse(outbound.isOpen());
+    verify(metricsService, never()).recordMessageSent(any());
+    verify(metricsService, times(1)).recordOutboundQueued(1, 7L);
+  }
+
+  private OutboundSession create(long bufferSizeLimit, OverflowPolicy policy) {
+    return create(bufferSizeLimit, policy, 1 << 16);
+  }
+
+  private OutboundSession create(long bufferSizeLimit, OverflowPolicy policy, long laneBudget) {
+    return new OutboundSession(
+        session, "room1", tasks::add, metricsService, bufferSizeLimit, 60_000, policy, laneBudget);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  private List<ByteBuffer> sentFrames() throws Exception {
+    ArgumentCaptor<WebSocketMessage<?>> captor = ArgumentCaptor.forClass(WebSocketMessage.class);
+    verify(session, atLeast(0)).sendMessage(captor.capture());
+    List<ByteBuffer> frames = new ArrayList<>();
+    for (WebSocketMessage<?> message : captor.getAllValues()) {
+      frames.add(((BinaryMessage) message).getPayload());
+    }
+    return frames;
+  }
+
+  private List<Integer> sentAwarenessIds() throws Exception {
+    List<Integer> ids = new ArrayList<>();
+    for (ByteBuffer frame : sentFrames()) {
+      ids.add((int) frame.get(frame.limit() - 1));
+    }
+    return ids;
+  }
+
+  private static ByteBuffer text(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** An awareness frame whose last byte identifies it. */
+  private static ByteBuffer awareness(int id) {
+    byte[] state = "{}".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(4 + state.length + 1);
+    frame.put((byte) YjsProtocol.MESSAGE_AWARENESS).put((byte) 1).put((byte) 9).put((byte) 0);
+    frame.put(state).put((byte) id).flip();
+    return frame;
+  }
+}
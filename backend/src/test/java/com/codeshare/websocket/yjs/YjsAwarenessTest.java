@@ -0,0 +1,79 @@
+package com.codeshare.websocket.yjs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class YjsAwarenessTest {
+
+  @Test
+  void testOnlyLatestStatePerClientIsSent() {
+    YjsAwareness awareness = new YjsAwareness();
+
+    awareness.apply(update(7, 1, "{\"x\":1}"), true, 0);
+    awareness.apply(update(7, 2, "{\"x\":2}"), true, 0);
+    YjsAwareness.Applied applied = awareness.apply(update(7, 3, "{\"x\":3}"), true, 0);
+
+    assertEquals(1, applied.superseded());
+    YjsAwareness.Changes changes = awareness.takeChanges(0);
+    assertArrayEquals(update(7, 3, "{\"x\":3}"), changes.all());
+    assertArrayEquals(changes.all(), changes.local());
+    assertFalse(awareness.hasChanges());
+  }
+
+  @Test
+  void testStaleClockIsIgnored() {
+    YjsAwareness awareness = new YjsAwareness();
+    awareness.apply(update(7, 5, "{}"), false, 0);
+    awareness.takeChanges(0);
+
+    YjsAwareness.Applied applied = awareness.apply(update(7, 4, "{\"old\":true}"), false, 0);
+
+    assertTrue(applied.present().isEmpty());
+    assertFalse(awareness.hasChanges());
+  }
+
+  @Test
+  void testRemoteStatesAreNotRepublished() {
+    YjsAwareness awareness = new YjsAwareness();
+
+    awareness.apply(update(1, 1, "{}"), false, 0);
+    awareness.apply(update(2, 1, "{}"), true, 0);
+
+    YjsAwareness.Changes changes = awareness.takeChanges(0);
+    assertArrayEquals(update(2, 1, "{}"), changes.local());
+    assertNotNull(changes.all());
+  }
+
+  @Test
+  void testRemoveAnnouncesNullStateWithNextClock() {
+    YjsAwareness awareness = new YjsAwareness();
+    awareness.apply(update(7, 3, "{}"), true, 0);
+    awareness.takeChanges(0);
+
+    awareness.remove(List.of(7L), 0);
+
+    assertArrayEquals(update(7, 4, "null"), awareness.takeChanges(0).all());
+    assertNull(awareness.encodeSnapshot(0));
+  }
+
+  @Test
+  void testSnapshotSkipsOutdatedStates() {
+    YjsAwareness awareness = new YjsAwareness();
+    awareness.apply(update(7, 1, "{}"), false, 0);
+
+    assertArrayEquals(update(7, 1, "{}"), awareness.encodeSnapshot(0));
+    assertNull(awareness.encodeSnapshot(TimeUnit.SECONDS.toNanos(31)));
+  }
+
+  static byte[] update(long clientId, long clock, String state) {
+    Lib0Encoder encoder = new Lib0Encoder();
+    encoder.writeVarUint(1);
+    encoder.writeVarUint(clientId);
+    encoder.writeVarUint(clock);
+    encoder.writeVarString(state);
+    return encoder.toByteArray();
+  }
+}
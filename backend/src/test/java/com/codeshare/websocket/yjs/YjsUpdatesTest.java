@@ -0,0 +1,126 @@
+package com.codeshare.websocket.yjs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class YjsUpdatesTest {
+
+  // Client 1 inserts "abc" into the root Y.Text "monaco"
+  private static final byte[] INSERT_ABC = bytes(1, 1, 1, 0, 0x04, 1, 6, "monaco", 3, "abc", 0);
+
+  // Client 1 appends "de" after 'c' (origin 1:2)
+  private static final byte[] APPEND_DE = bytes(1, 1, 1, 3, 0x84, 1, 2, 2, "de", 0);
+
+  // Deletes 'b' (1:1); a delete-only update has no structs
+  private static final byte[] DELETE_B = bytes(0, 1, 1, 1, 1, 1);
+
+  @Test
+  void testMergeUpdatesKeepsStructsOfOneClientContiguous() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE));
+
+    assertArrayEquals(
+        bytes(1, 2, 1, 0, 0x04, 1, 6, "monaco", 3, "abc", 0x84, 1, 2, 2, "de", 0), merged);
+  }
+
+  @Test
+  void testMergeUpdatesIsOrderIndependentAndIdempotent() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE, DELETE_B));
+
+    assertArrayEquals(merged, YjsUpdates.mergeUpdates(List.of(DELETE_B, APPEND_DE, INSERT_ABC)));
+    assertArrayEquals(merged, YjsUpdates.mergeUpdates(List.of(merged, merged)));
+    assertArrayEquals(merged, YjsUpdates.mergeUpdates(List.of(merged, APPEND_DE)));
+  }
+
+  @Test
+  void testMergeUpdatesCarriesDeleteSet() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, DELETE_B));
+
+    assertArrayEquals(bytes(1, 1, 1, 0, 0x04, 1, 6, "monaco", 3, "abc", 1, 1, 1, 1, 1), merged);
+  }
+
+  @Test
+  void testDiffUpdateSplitsItemAtRemoteClock() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE));
+
+    byte[] diff = YjsUpdates.diffUpdate(merged, bytes(1, 1, 2));
+
+    assertArrayEquals(bytes(1, 2, 1, 2, 0x84, 1, 1, 1, "c", 0x84, 1, 2, 2, "de", 0), diff);
+  }
+
+  @Test
+  void testDiffUpdateAgainstEmptyStateVectorReturnsEverything() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE, DELETE_B));
+
+    assertArrayEquals(merged, YjsUpdates.diffUpdate(merged, YjsUpdates.EMPTY_STATE_VECTOR));
+  }
+
+  @Test
+  void testDiffUpdateWhenRemoteIsUpToDateKeepsOnlyDeleteSet() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, DELETE_B));
+
+    assertArrayEquals(bytes(0, 1, 1, 1, 1, 1), YjsUpdates.diffUpdate(merged, bytes(1, 1, 3)));
+  }
+
+  @Test
+  void testEncodeStateVectorFromUpdate() {
+    byte[] merged = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE));
+
+    byte[] stateVector = YjsUpdates.encodeStateVectorFromUpdate(merged);
+
+    assertArrayEquals(bytes(1, 1, 5), stateVector);
+    assertEquals(Map.of(1L, 5L), YjsUpdates.decodeStateVector(stateVector));
+  }
+
+  @Test
+  void testContainsRequiresEveryStructAndDeletion() {
+    byte[] state = YjsUpdates.mergeUpdates(List.of(INSERT_ABC, DELETE_B));
+
+    assertTrue(YjsUpdates.contains(state, INSERT_ABC));
+    assertTrue(YjsUpdates.contains(state, DELETE_B));
+    assertTrue(YjsUpdates.contains(state, YjsUpdates.EMPTY_UPDATE));
+    assertFalse(YjsUpdates.contains(state, APPEND_DE));
+    assertFalse(YjsUpdates.contains(INSERT_ABC, DELETE_B));
+  }
+
+  @Test
+  void testValidateRejectsTruncatedUpdate() {
+    byte[] truncated = new byte[INSERT_ABC.length - 3];
+    System.arraycopy(INSERT_ABC, 0, truncated, 0, truncated.length);
+
+    assertThrows(IllegalArgumentException.class, () -> YjsUpdates.validate(truncated));
+  }
+
+  @Test
+  void testDocumentAnswersSyncStep1WithMissingUpdates() {
+    YjsDocument document = new YjsDocument();
+    assertTrue(document.isEmpty());
+
+    document.applyUpdate(INSERT_ABC);
+    document.applyUpdate(APPEND_DE);
+
+    assertFalse(document.isEmpty());
+    assertArrayEquals(bytes(1, 1, 5), document.encodeStateVector());
+    assertArrayEquals(
+        YjsUpdates.mergeUpdates(List.of(INSERT_ABC, APPEND_DE)),
+        document.encodeDiff(YjsUpdates.EMPTY_STATE_VECTOR));
+    assertArrayEquals(bytes(0, 0), document.encodeDiff(bytes(1, 1, 5)));
+  }
+
+  /** Builds a byte array from ints (single bytes) and strings (raw UTF-8). */
+  private static byte[] bytes(Object... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Object part : parts) {
+      if (part instanceof String s) {
+        out.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+      } else {
+        out.write((Integer) part);
+      }
+    }
+    return out.toByteArray();
+  }
+}
@@ -6,9 +6,18 @@ import * as Y from 'yjs';
 import { MonacoBinding } from 'y-monaco';
 import { WebsocketProvider } from 'y-websocket';
 import type { Awareness } from 'y-protocols/awareness';
+import * as decoding from 'lib0/decoding';
 import { API_CONFIG, apiCall, API_ENDPOINTS } from '@/config/api';
 import { useToast } from './Toast';
 import { notifyError } from '@/lib/notify';
+import { muxWebSocket } from '@/lib/yjsMux';
+
+// Custom y-websocket message type carrying the room's update sequence (see YjsProtocol)
+const MESSAGE_RESUME_MARKER = 100;
+// Close code a server sends while draining for shutdown (see CloseStatuses)
+const CLOSE_SERVER_DRAINING = 4003;
+// Clients sent away by a draining server spread their reconnects over this window
+const DRAIN_RECONNECT_JITTER_MS = 10_000;
 
 interface MonacoEditorProps {
   language?: string;
@@ -112,13 +121,43 @@ const MonacoEditor: React.FC<MonacoEditorProps> = ({
     // 1. Create Yjs doc and provider
     const ydoc = new Y.Doc();
     ydocRef.current = ydoc;
-    const provider = new WebsocketProvider(API_CONFIG.YJS_WS_URL, roomId, ydoc);
+    const provider = new WebsocketProvider(
+      API_CONFIG.YJS_WS_URL,
+      roomId,
+      ydoc,
+      API_CONFIG.YJS_MUX_URL ? { WebSocketPolyfill: muxWebSocket(API_CONFIG.YJS_MUX_URL) } : {}
+    );
     providerRef.current = provider;
 
-    // 2. Set initial content if available
+    // The server tells us the last update sequence we have; presenting it when the
+    // provider reconnects lets the server send only the updates we missed
+    provider.messageHandlers[MESSAGE_RESUME_MARKER] = (_encoder, decoder) => {
+      provider.params = { ...provider.params, seq: String(decoding.readVarUint(decoder)) };
+    };
+
+    // A draining server closes sessions in waves; reconnecting after a random delay rather
+    // than at once keeps each wave from landing on the remaining servers in the same instant
+    let drainReconnect: ReturnType<typeof setTimeout> | undefined;
+    provider.on('connection-close', (event: CloseEvent | null) => {
+      if (event?.code !== CLOSE_SERVER_DRAINING) return;
+      // Cancels the provider's own immediate retry
+      provider.disconnect();
+      clearTimeout(drainReconnect);
+      drainReconnect = setTimeout(
+        () => provider.connect(),
+        Math.random() * DRAIN_RECONNECT_JITTER_MS
+      );
+    });
+
+    // 2. Seed from the saved snapshot only once the server has sent the room state,
+    // and only if nobody has written to the room yet (otherwise the text is duplicated)
     if (initialContent) {
-      const ytext = ydoc.getText('monaco');
-      ytext.insert(0, initialContent);
+      provider.once('sync', (isSynced: boolean) => {
+        const ytext = ydoc.getText('monaco');
+        if (isSynced && ytext.length === 0) {
+          ytext.insert(0, initialContent);
+        }
+      });
     }
 
     // 2.5. Monitor WebSocket connection status
@@ -177,6 +216,7 @@ const MonacoEditor: React.FC<MonacoEditorProps> = ({
       if (saveTimeoutRef.current) {
         clearTimeout(saveTimeoutRef.current);
       }
+      clearTimeout(drainReconnect);
       // Proper cleanup to prevent memory leaks
       if (providerRef.current) {
         providerRef.current.destroy();
@@ -4,6 +4,8 @@ export const API_CONFIG = {
   WS_URL: process.env.NEXT_PUBLIC_WS_URL || "ws://localhost:8080/ws/editor",
   YJS_WS_URL:
     process.env.NEXT_PUBLIC_YJS_WS_URL || "ws://localhost:8080/ws/yjs",
+  // When set, every room shares one multiplexed connection instead of a socket per room
+  YJS_MUX_URL: process.env.NEXT_PUBLIC_YJS_MUX_URL,
 };
 
 // API endpoints
@@ -0,0 +1,211 @@
+// Carries many y-websocket rooms over one /ws/mux connection (see MuxWebSocketHandler).
+// Every frame starts with a 2-byte big-endian channel id; channel 0 carries control messages.
+const CONTROL_CHANNEL = 0;
+const SUBSCRIBE = 1;
+const UNSUBSCRIBE = 2;
+const CLOSED = 3;
+const MAX_CHANNEL = 0xffff;
+
+const CONNECTING = 0;
+const OPEN = 1;
+const CLOSING = 2;
+const CLOSED_STATE = 3;
+
+const encoder = new TextEncoder();
+
+/** One physical /ws/mux socket shared by every room opened against the same URL. */
+class MuxConnection {
+  private socket: WebSocket | null = null;
+  private readonly channels = new Map<number, MuxChannel>();
+  private nextChannel = 1;
+
+  constructor(private readonly url: string) {}
+
+  attach(channel: MuxChannel): number {
+    let id = this.nextChannel;
+    while (this.channels.has(id)) id = (id % MAX_CHANNEL) + 1;
+    this.nextChannel = (id % MAX_CHANNEL) + 1;
+    this.channels.set(id, channel);
+
+    if (this.socket?.readyState === OPEN) {
+      this.subscribe(id, channel);
+    } else if (this.socket === null) {
+      this.connect();
+    }
+    return id;
+  }
+
+  detach(id: number) {
+    if (!this.channels.delete(id)) return;
+    if (this.socket?.readyState === OPEN) {
+      const control = new Uint8Array(5);
+      new DataView(control.buffer).setUint16(3, id);
+      control[2] = UNSUBSCRIBE;
+      this.socket.send(control);
+    }
+    // The socket only lives while some room needs it
+    if (this.channels.size === 0) {
+      this.socket?.close();
+      this.socket = null;
+    }
+  }
+
+  send(id: number, data: ArrayBufferLike | ArrayBufferView) {
+    const payload =
+      data instanceof ArrayBuffer
+        ? new Uint8Array(data)
+        : new Uint8Array(
+            (data as ArrayBufferView).buffer,
+            (data as ArrayBufferView).byteOffset,
+            (data as ArrayBufferView).byteLength
+          );
+    const frame = new Uint8Array(2 + payload.byteLength);
+    new DataView(frame.buffer).setUint16(0, id);
+    frame.set(payload, 2);
+    this.socket?.send(frame);
+  }
+
+  private connect() {
+    const socket = new WebSocket(this.url);
+    socket.binaryType = 'arraybuffer';
+    this.socket = socket;
+
+    socket.onopen = () => {
+      this.channels.forEach((channel, id) => this.subscribe(id, channel));
+    };
+    socket.onmessage = (event: MessageEvent<ArrayBuffer>) => this.receive(event.data);
+    socket.onerror = (event) => {
+      this.channels.forEach((channel) => channel.onerror?.(event));
+    };
+    socket.onclose = (event) => {
+      // A socket closed because its rooms all left has nothing to tell anyone
+      if (this.socket !== socket) return;
+      this.socket = null;
+      // Each room's provider reconnects on its own, which opens a new socket
+      const channels = [...this.channels.values()];
+      this.channels.clear();
+      channels.forEach((channel) => channel.closed(event.code, event.reason));
+    };
+  }
+
+  private subscribe(id: number, channel: MuxChannel) {
+    const room = encoder.encode(channel.roomId);
+    const control = new Uint8Array(13 + room.byteLength);
+    const view = new DataView(control.buffer);
+    view.setUint16(0, CONTROL_CHANNEL);
+    view.setUint8(2, SUBSCRIBE);
+    view.setUint16(3, id);
+    view.setBigInt64(5, channel.resumeFrom);
+    control.set(room, 13);
+    this.socket?.send(control);
+    channel.opened();
+  }
+
+  private receive(data: ArrayBuffer) {
+    if (data.byteLength < 2) return;
+    const view = new DataView(data);
+    const id = view.getUint16(0);
+    if (id !== CONTROL_CHANNEL) {
+      this.channels.get(id)?.message(data.slice(2));
+      return;
+    }
+    if (data.byteLength >= 7 && view.getUint8(2) === CLOSED) {
+      const closedId = view.getUint16(3);
+      const channel = this.channels.get(closedId);
+      this.channels.delete(closedId);
+      channel?.closed(view.getUint16(5), '');
+    }
+  }
+}
+
+/**
+ * A room's channel, shaped like the browser WebSocket so y-websocket can drive it through its
+ * WebSocketPolyfill option. The room and resume sequence come from the URL the provider builds.
+ */
+class MuxChannel {
+  readonly CONNECTING = CONNECTING;
+  readonly OPEN = OPEN;
+  readonly CLOSING = CLOSING;
+  readonly CLOSED = CLOSED_STATE;
+
+  readonly roomId: string;
+  readonly resumeFrom: bigint;
+  readyState = CONNECTING;
+  binaryType: BinaryType = 'arraybuffer';
+  onopen: ((event: Event) => void) | null = null;
+  onmessage: ((event: MessageEvent) => void) | null = null;
+  onclose: ((event: CloseEvent) => void) | null = null;
+  onerror: ((event: Event) => void) | null = null;
+
+  private readonly id: number;
+  // Frames the server sent before the open event had fired
+  private pending: ArrayBuffer[] = [];
+
+  constructor(
+    private readonly connection: MuxConnection,
+    url: string
+  ) {
+    const parsed = new URL(url);
+    this.roomId = decodeURIComponent(parsed.pathname.split('/').pop() ?? '');
+    const seq = parsed.searchParams.get('seq');
+    this.resumeFrom = seq !== null && /^\d+$/.test(seq) ? BigInt(seq) : BigInt(-1);
+    this.id = connection.attach(this);
+  }
+
+  send(data: ArrayBufferLike | ArrayBufferView) {
+    if (this.readyState === OPEN) this.connection.send(this.id, data);
+  }
+
+  close() {
+    if (this.readyState === CLOSING || this.readyState === CLOSED_STATE) return;
+    this.connection.detach(this.id);
+    this.closed(1000, '');
+  }
+
+  opened() {
+    if (this.readyState !== CONNECTING) return;
+    // Handlers are assigned right after construction, so open in a later task
+    setTimeout(() => {
+      if (this.readyState !== CONNECTING) return;
+      this.readyState = OPEN;
+      this.onopen?.(new Event('open'));
+      const pending = this.pending;
+      this.pending = [];
+      pending.forEach((data) => this.message(data));
+    });
+  }
+
+  message(data: ArrayBuffer) {
+    if (this.readyState === CONNECTING) {
+      this.pending.push(data);
+    } else if (this.readyState === OPEN) {
+      this.onmessage?.(new MessageEvent('message', { data }));
+    }
+  }
+
+  closed(code: number, reason: string) {
+    if (this.readyState === CLOSED_STATE) return;
+    this.readyState = CLOSED_STATE;
+    setTimeout(() => this.onclose?.(new CloseEvent('close', { code, reason })));
+  }
+}
+
+const connections = new Map<string, MuxConnection>();
+
+/**
+ * A WebSocket constructor for y-websocket's WebSocketPolyfill option that opens each room as a
+ * channel of one shared connection to muxUrl, instead of a socket per room.
+ */
+export function muxWebSocket(muxUrl: string): typeof WebSocket {
+  let connection = connections.get(muxUrl);
+  if (!connection) {
+    connection = new MuxConnection(muxUrl);
+    connections.set(muxUrl, connection);
+  }
+  const shared = connection;
+  return class extends MuxChannel {
+    constructor(url: string) {
+      super(shared, url);
+    }
+  } as unknown as typeof WebSocket;
+}
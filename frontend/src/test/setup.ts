@@ -66,6 +66,11 @@ vi.mock("y-websocket", () => ({
       getStates: vi.fn(() => new Map()),
     },
     on: vi.fn(),
+    once: vi.fn(),
+    messageHandlers: [],
+    params: {},
+    connect: vi.fn(),
+    disconnect: vi.fn(),
     destroy: vi.fn(),
   })),
 }));